@@ -5,12 +5,23 @@ import sdis.network.ChannelsHandler;
 import sdis.network.MulticastChannel;
 import sdis.network.TCPChannel;
 import sdis.protocol.BackupChunk;
+import sdis.protocol.BackupProtocol;
 import sdis.protocol.DeleteFile;
 import sdis.protocol.GetChunk;
+import sdis.protocol.GetChunks;
 import sdis.storage.Chunk;
+import sdis.storage.ChunkSink;
 import sdis.storage.ChunkState;
+import sdis.storage.ChunkStore;
+import sdis.storage.ContentChunker;
 import sdis.storage.Disk;
+import sdis.storage.ErasureLayout;
 import sdis.storage.FileChunker;
+import sdis.storage.FileManifest;
+import sdis.storage.ReedSolomon;
+import sdis.storage.RestoreAssembler;
+import sdis.storage.StripeDecoder;
+import sdis.utils.Utilities;
 
 import java.io.*;
 import java.net.InetAddress;
@@ -21,11 +32,12 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.ExportException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BackupService implements RMI {
 
@@ -49,6 +61,18 @@ public class BackupService implements RMI {
      * Semaphore for restoring chunks
      */
     public Semaphore sem = new Semaphore(1);
+    /**
+     * Time to wait for the chunks of a restore before asking for the spare ones, in millis
+     */
+    private static final int SPARE_CHUNKS_DELAY = 2000;
+    /**
+     * Time to wait for the other fragments of a stripe when rebuilding a fragment, in millis
+     */
+    private static final int REPAIR_TIMEOUT = 30000;
+    /**
+     * Lock of the restores, only one runs at a time since they share the semaphore
+     */
+    private final ReentrantLock restoring = new ReentrantLock(true);
     /**
      * Identification of the server
      */
@@ -57,11 +81,19 @@ public class BackupService implements RMI {
     /**
      * Files received deletion
      */
-    public HashMap<String,HashMap<Integer,Integer>> receivedDeletion;
+    public Map<String, Map<Integer,Integer>> receivedDeletion;
     /**
      * File name of the disk
      */
     private String DISK_FILENAME = "disk " + serverId + ".iso";
+    /**
+     * File name of the disk journal
+     */
+    private String JOURNAL_FILENAME = "disk " + serverId + ".journal";
+    /**
+     * Directory of the manifests of the files backed up incrementally
+     */
+    private String MANIFESTS_DIRECTORY = serverId + "manifests";
 
     /**
      * Constructor of sdis.BackupService
@@ -72,9 +104,19 @@ public class BackupService implements RMI {
         this.isRunning = new AtomicBoolean(false);
         this.serverId = serverId;
         this.DISK_FILENAME = serverId + "_disk" + ".iso";
+        this.JOURNAL_FILENAME = serverId + "_disk" + ".journal";
+        this.MANIFESTS_DIRECTORY = serverId + "_manifests";
+        long start = System.currentTimeMillis();
         this.disk = loadDisk();
+        try {
+            this.disk.openJournal(new File(DISK_FILENAME), new File(JOURNAL_FILENAME));
+            this.disk.openStore(ChunkStore.open(serverId));
+        } catch (IOException e) {
+            throw new RemoteException("Failed to open the disk!", e);
+        }
         saveDisk();
-        this.receivedDeletion = new HashMap<>();
+        System.out.println("Disk ready in " + (System.currentTimeMillis() - start) + " ms.");
+        this.receivedDeletion = new ConcurrentHashMap<>();
 
         // Print disk information
         disk.printInfo();
@@ -154,20 +196,24 @@ public class BackupService implements RMI {
     }
 
     /**
-     * Load the disk
+     * Load the disk. A disk that can not be loaded is kept aside and an empty disk
+     * is started instead, the chunks it held are deleted when verifying the store.
      *
-     * @return loaded disk
+     * @return loaded disk, an empty disk if it could not be loaded
      */
     public Disk loadDisk() {
         final File diskFile = new File(DISK_FILENAME);
 
         // Disk already exists
         if (diskFile.exists() && !diskFile.isDirectory()) {
-            try {
-                return (Disk) new ObjectInputStream(new FileInputStream(diskFile)).readObject();
-            } catch (ClassNotFoundException | IOException e) {
-                System.out.println("Failed to load the disk! " + e.getMessage());
-                return null;
+            try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(diskFile)))) {
+                return (Disk) input.readObject();
+            } catch (ClassNotFoundException | IOException | ClassCastException e) {
+                System.out.println("Failed to load the disk! " + e.getMessage() + " Starting an empty disk!");
+                File brokenFile = new File(DISK_FILENAME + ".broken");
+                if (!diskFile.renameTo(brokenFile))
+                    System.out.println("Failed to keep the disk aside as " + brokenFile + "!");
+                return new Disk();
             }
         }
         // Disk does not exist
@@ -178,14 +224,10 @@ public class BackupService implements RMI {
     }
 
     /**
-     * Save the disk to the HDD
+     * Save the disk to the HDD, compacting its journal
      */
     public void saveDisk() {
-        try {
-            new ObjectOutputStream(new FileOutputStream(DISK_FILENAME)).writeObject(disk);
-        } catch (IOException e) {
-            System.out.println("Failed to save the disk! " + e.getMessage());
-        }
+        disk.checkpoint();
     }
 
     /**
@@ -196,6 +238,9 @@ public class BackupService implements RMI {
 
         channelsHandler.start();
 
+        // Peers must know about the chunks lost while this peer was down
+        disk.announceLostChunks();
+
         System.out.println("Backup service is now running.");
     }
 
@@ -207,6 +252,9 @@ public class BackupService implements RMI {
 
         channelsHandler.stop();
 
+        disk.closeJournal();
+        disk.closeStore();
+
         System.out.println("Backup service is now stopped.");
     }
 
@@ -268,9 +316,7 @@ public class BackupService implements RMI {
         String id = FileChunker.getFileChecksum(file);
 
         this.disk.addFilename(filename, id);
-        if(this.getDisk().idSet.indexOf(id) == -1)
-            this.getDisk().idSet.add(id);
-        this.getDisk().saveDisk();
+        this.getDisk().addOwnFileId(id);
 
         //
         int part = 0;
@@ -304,6 +350,203 @@ public class BackupService implements RMI {
 
     }
 
+    /**
+     * Remote function to backup the given file incrementally. The file is split
+     * at content defined boundaries and only the chunks whose content is not in
+     * the previous version of the file are sent.
+     *
+     * @param filename  the name of the file to be backed up
+     * @param repDegree the degree of replication for the new chunks
+     * @throws IOException
+     */
+    @Override
+    public int backupInc(String filename, int repDegree) throws IOException {
+        File file = new File(filename);
+
+        if (!file.exists()) {
+            return -1;
+        }
+
+        String id = FileChunker.getFileChecksum(file);
+        String previousId = this.getDisk().getId(filename);
+
+        // The file has not changed
+        if (id.equals(previousId))
+            return 0;
+
+        File manifests = new File(MANIFESTS_DIRECTORY);
+        FileManifest previous = previousId != null ? FileManifest.load(manifests, previousId) : null;
+        FileManifest manifest = new FileManifest(id, previous);
+        // A version backed up without a manifest is deleted with the file
+        if (previousId != null)
+            manifest.addVersion(previousId);
+
+        Map<String, FileManifest.Part> reusable = previous != null ? previous.indexByHash() : new HashMap<>();
+
+        this.getDisk().addOwnFileId(id);
+
+        int part = 0;
+        int reused = 0;
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            ContentChunker chunker = new ContentChunker(inputStream);
+            byte[] data;
+            while ((data = chunker.next()) != null) {
+                byte[] hash = FileManifest.hash(data);
+                FileManifest.Part known = reusable.get(Base64.getEncoder().encodeToString(hash));
+                if (known != null) {
+                    manifest.addPart(hash, known.getFileId(), known.getChunkNo(), data.length);
+                    reused++;
+                    continue;
+                }
+
+                manifest.addPart(hash, id, part, data.length);
+                reusable.put(Base64.getEncoder().encodeToString(hash), manifest.getParts().get(manifest.getParts().size() - 1));
+
+                Chunk newChunk = new Chunk(id, part++, data, repDegree);
+                Thread thread = new Thread(new BackupChunk(newChunk));
+                thread.start();
+            }
+        }
+
+        if (!manifest.save(manifests))
+            return -1;
+        if (previous != null)
+            FileManifest.delete(manifests, previousId);
+
+        this.getDisk().addNumberOfChunks(id, part);
+        this.getDisk().addFilename(filename, id);
+
+        System.out.println("Backed up " + part + " new chunks, reused " + reused + " chunks.");
+
+        return 0;
+    }
+
+    /**
+     * Remote function to backup the given file with erasure coding. The chunks of the
+     * file are grouped into stripes of data chunks, each stripe is extended with parity
+     * chunks and every chunk is kept by a single peer, distinct for the chunks of a stripe.
+     *
+     * @param filename        the name of the file to be backed up
+     * @param dataFragments   number of data chunks of a stripe
+     * @param parityFragments number of parity chunks of a stripe
+     * @throws IOException
+     */
+    @Override
+    public int backupErasure(String filename, int dataFragments, int parityFragments) throws IOException {
+        File file = new File(filename);
+
+        if (this.disk.filenames.containsKey(filename))
+            return -2;
+
+        if (!file.exists() || dataFragments <= 0 || parityFragments <= 0
+                || dataFragments + parityFragments > ReedSolomon.MAX_FRAGMENTS)
+            return -1;
+
+        String id = FileChunker.getFileChecksum(file);
+        ErasureLayout layout = new ErasureLayout(id, dataFragments, parityFragments, file.length());
+        if (!layout.save(new File(MANIFESTS_DIRECTORY)))
+            return -1;
+
+        this.disk.addFilename(filename, id);
+        this.getDisk().addOwnFileId(id);
+
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            for (int stripe = 0; stripe < layout.getStripes(); stripe++) {
+                // Read the data fragments of the stripe, padded to encode them
+                int fragments = layout.getDataFragments(stripe);
+                byte[][] data = new byte[fragments][layout.getFragmentLength(stripe)];
+                for (int index = 0; index < fragments; index++) {
+                    int chunkNo = layout.getChunkNo(stripe, index);
+                    int length = layout.getLength(chunkNo);
+                    int read = 0;
+                    while (read < length) {
+                        int size = inputStream.read(data[index], read, length - read);
+                        if (size < 0)
+                            throw new EOFException("File changed while being backed up");
+                        read += size;
+                    }
+                    backupFragment(new Chunk(id, chunkNo, Arrays.copyOf(data[index], length), 1), layout);
+                }
+
+                byte[][] parity = layout.getCode(stripe).encode(data);
+                for (int index = 0; index < parityFragments; index++)
+                    backupFragment(new Chunk(id, layout.getChunkNo(stripe, fragments + index), parity[index], 1), layout);
+            }
+        }
+
+        this.getDisk().addNumberOfChunks(id, layout.getStripes() * layout.getWidth());
+
+        System.out.println("Backed up " + layout.getStripes() + " stripes of " + dataFragments + "+" + parityFragments + " chunks.");
+
+        return 0;
+    }
+
+    /**
+     * Backup a fragment of a file backed up with erasure coding
+     *
+     * @param fragment fragment to be backed up
+     * @param layout   layout of the file
+     */
+    private void backupFragment(Chunk fragment, ErasureLayout layout) {
+        Thread thread = new Thread(new BackupChunk(fragment, true, layout.getWidth()));
+        thread.start();
+    }
+
+    /**
+     * Get the layout of an own file backed up with erasure coding
+     *
+     * @param id file id of the file
+     * @return layout of the file, null if not backed up with erasure coding
+     */
+    public ErasureLayout getErasureLayout(String id) {
+        return ErasureLayout.load(new File(MANIFESTS_DIRECTORY), id);
+    }
+
+    /**
+     * Rebuild a fragment of a file backed up with erasure coding from the other fragments of its stripe
+     *
+     * @param layout  layout of the file
+     * @param chunkNo chunk number of the fragment
+     * @return rebuilt fragment, null if it could not be rebuilt
+     */
+    public Chunk rebuildFragment(ErasureLayout layout, int chunkNo) {
+        int stripe = layout.getStripe(chunkNo);
+        StripeDecoder decoder = new StripeDecoder(layout, stripe);
+
+        SortedSet<Integer> fragments = new TreeSet<>();
+        for (int index = 0; index < layout.getDataFragments(stripe) + layout.getParityFragments(); index++)
+            if (layout.getChunkNo(stripe, index) != chunkNo)
+                fragments.add(layout.getChunkNo(stripe, index));
+
+        try {
+            if (!restoreChunks(layout.getFileId(), fragments, Collections.emptySet(), decoder, false, REPAIR_TIMEOUT))
+                return null;
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        byte[] data = decoder.getFragment(chunkNo);
+        return data != null ? new Chunk(layout.getFileId(), chunkNo, data, 1) : null;
+    }
+
+    /**
+     * Delete the older versions of a file backed up incrementally
+     *
+     * @param id file id of the current version
+     */
+    private void deleteVersions(String id) {
+        File manifests = new File(MANIFESTS_DIRECTORY);
+        FileManifest manifest = FileManifest.load(manifests, id);
+        if (manifest == null)
+            return;
+
+        for (String version : manifest.getVersions())
+            if (!version.equals(id))
+                (new DeleteFile(version, false)).run();
+
+        FileManifest.delete(manifests, id);
+    }
+
     /**
      * Remote function to restore file
      *
@@ -313,41 +556,198 @@ public class BackupService implements RMI {
      */
     @Override
     public int restore(String filename) throws InterruptedException, IOException {
+        return restoreFile(filename, false);
+    }
+
+    /**
+     * Restore a file, one version after the other for files backed up incrementally
+     *
+     * @param filename filename to be restored
+     * @param enhanced true to restore with the enhanced protocol
+     * @return -1 if errors have occurred
+     * @throws InterruptedException
+     */
+    private int restoreFile(String filename, boolean enhanced) throws InterruptedException {
 
         String id = this.getDisk().getId(filename);
 
         if (id == null)
             return -1;
 
-        int numberOfChunks = this.getDisk().getNumberOfChunks(id);
+        FileManifest manifest = FileManifest.load(new File(MANIFESTS_DIRECTORY), id);
+        ErasureLayout layout = getErasureLayout(id);
+
+        Map<String, SortedSet<Integer>> chunks;
+        Set<Integer> spares = Collections.emptySet();
+        RestoreAssembler assembler;
+        if (layout != null) {
+            // The parity chunks are only asked for if some data chunks do not arrive
+            chunks = Collections.singletonMap(id, layout.getChunks(true));
+            spares = layout.getChunks(false);
+            assembler = RestoreAssembler.open(new File(id), layout);
+        } else if (manifest != null) {
+            chunks = manifest.getChunks();
+            assembler = RestoreAssembler.open(new File(id), manifest);
+        } else {
+            int numberOfChunks = this.getDisk().getNumberOfChunks(id);
+
+            SortedSet<Integer> numbers = new TreeSet<>();
+            for (int i = 0; i < numberOfChunks; i++)
+                numbers.add(i);
+            chunks = Collections.singletonMap(id, numbers);
+            assembler = RestoreAssembler.open(new File(id), (long) FileChunker.getMaxSizeChunk() * numberOfChunks);
+        }
+        if (assembler == null)
+            return -1;
 
-        ArrayList<Integer> array = new ArrayList<>();
+        // Delete the partial file if the restore does not finish
+        boolean finished = false;
+        try {
+            for (Map.Entry<String, SortedSet<Integer>> versionChunks : chunks.entrySet())
+                restoreChunks(versionChunks.getKey(), versionChunks.getValue(), spares, assembler, enhanced, 0);
+            finished = assembler.finish();
+        } finally {
+            if (!finished)
+                assembler.abort();
+        }
+        if (!finished)
+            return -1;
 
-        for (int i = 0; i < numberOfChunks; i++)
-            array.add(i);
+        File file = assembler.getFile();
 
-        getChannelsHandler().waitingForChunks.put(id, array);
-        getChannelsHandler().waitingForChunksTCP.add(id);
+        if (file.canWrite())
+            file.renameTo(new File(filename));
 
-        //locking semaphore to wait for all chunks to be restored
-        sem.acquire();
+        return 0;
+    }
 
-        for (int i = 0; i < numberOfChunks; i++) {
-            Chunk newChunk = new Chunk(id, i, (new byte[0]), 0);
-            Thread thread = new Thread(new GetChunk(newChunk));
-            thread.start();
+    /**
+     * Restore chunks of a file id, waiting for all of them to arrive or to be no longer needed by the sink.
+     * One restore runs at a time, since they share the semaphore. A restore that runs out of time
+     * gives up, forgetting the chunks it was waiting for.
+     *
+     * @param id           file id of the chunks
+     * @param chunkNumbers numbers of the chunks
+     * @param spareNumbers numbers of the chunks to ask for if the others take too long to arrive
+     * @param sink         destination of the chunks
+     * @param enhanced     true to restore with the enhanced protocol
+     * @param timeout      time to wait for the chunks in milliseconds, 0 to wait until they arrive
+     * @return true if the chunks arrived, false if the time ran out
+     * @throws InterruptedException
+     */
+    private boolean restoreChunks(String id, Set<Integer> chunkNumbers, Set<Integer> spareNumbers, ChunkSink sink, boolean enhanced, long timeout) throws InterruptedException {
+        if (chunkNumbers.isEmpty() && spareNumbers.isEmpty())
+            return true;
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        // Wait for the restore running to end
+        if (timeout <= 0)
+            restoring.lockInterruptibly();
+        else if (!restoring.tryLock(timeout, TimeUnit.MILLISECONDS))
+            return false;
+
+        try {
+            return restoreChunks(id, chunkNumbers, spareNumbers, sink, enhanced, timeout, deadline);
+        } finally {
+            restoring.unlock();
         }
+    }
 
-        //waits to aquire the sem ->ends the restore of all files
+    /**
+     * Restore chunks of a file id, once the restores before it ended
+     *
+     * @param id           file id of the chunks
+     * @param chunkNumbers numbers of the chunks
+     * @param spareNumbers numbers of the chunks to ask for if the others take too long to arrive
+     * @param sink         destination of the chunks
+     * @param enhanced     true to restore with the enhanced protocol
+     * @param timeout      time to wait for the chunks in milliseconds, 0 to wait until they arrive
+     * @param deadline     time to give up at, in milliseconds since the epoch
+     * @return true if the chunks arrived, false if the time ran out
+     * @throws InterruptedException
+     */
+    private boolean restoreChunks(String id, Set<Integer> chunkNumbers, Set<Integer> spareNumbers, ChunkSink sink, boolean enhanced, long timeout, long deadline) throws InterruptedException {
+        //locking semaphore to wait for all chunks to be restored
         sem.acquire();
-        sem.release();
 
-        File file = new File(id);
+        ArrayList<Integer> waiting = new ArrayList<>(chunkNumbers);
+        waiting.addAll(spareNumbers);
+        getChannelsHandler().restoreSinks.put(id, sink);
+        getChannelsHandler().waitingForChunks.put(id, waiting);
+        getChannelsHandler().waitingForChunksTCP.add(id);
 
-        if (file.canWrite())
-            file.renameTo(new File(filename));
+        boolean arrived = false;
+        try {
+            getChunks(id, chunkNumbers, enhanced);
+
+            //waits to aquire the sem ->ends the restore of all files
+            if (!spareNumbers.isEmpty())
+                arrived = sem.tryAcquire(SPARE_CHUNKS_DELAY, TimeUnit.MILLISECONDS);
+            if (!spareNumbers.isEmpty() && !arrived) {
+                // Ask for the spare chunks that are still needed
+                List<Integer> needed = new ArrayList<>(spareNumbers);
+                synchronized (waiting) {
+                    needed.retainAll(waiting);
+                }
+                getChunks(id, needed, enhanced);
+            }
+            if (!arrived)
+                arrived = acquire(timeout, deadline);
+        } finally {
+            getChannelsHandler().restoreSinks.remove(id);
+            // When giving up, the handler releases the semaphore if the last chunk arrived meanwhile
+            if (arrived || getChannelsHandler().waitingForChunks.remove(id, waiting)) {
+                getChannelsHandler().waitingForChunksTCP.remove(id);
+                sem.release();
+            }
+        }
+        return arrived;
+    }
 
-        return 0;
+    /**
+     * Acquire the semaphore of the restores
+     *
+     * @param timeout  time to wait in milliseconds, 0 to wait until acquired
+     * @param deadline time to give up at, in milliseconds since the epoch
+     * @return true if acquired, false if the time ran out
+     * @throws InterruptedException
+     */
+    private boolean acquire(long timeout, long deadline) throws InterruptedException {
+        if (timeout <= 0) {
+            sem.acquire();
+            return true;
+        }
+        return sem.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ask the peers for chunks of a file id
+     *
+     * @param id           file id of the chunks
+     * @param chunkNumbers numbers of the chunks
+     * @param enhanced     true to restore with the enhanced protocol
+     */
+    private void getChunks(String id, Collection<Integer> chunkNumbers, boolean enhanced) {
+        int port = enhanced ? getChannelsHandler().getChannelByType(ChannelType.TDR).getPort() : -1;
+        if (GetChunks.isEnabled()) {
+            // Ask for the chunks of each span of chunk numbers with a single message
+            BitSet chunks = new BitSet();
+            for (int chunkNumber : chunkNumbers)
+                chunks.set(chunkNumber);
+            for (int first = chunks.nextSetBit(0); first >= 0; first = chunks.nextSetBit(first + BackupProtocol.MAX_BITMAP_SPAN)) {
+                Thread thread = new Thread(new GetChunks(id, Utilities.span(chunks, first, BackupProtocol.MAX_BITMAP_SPAN), enhanced, port));
+                thread.start();
+            }
+            return;
+        }
+
+        for (int chunkNumber : chunkNumbers) {
+            Chunk newChunk = new Chunk(id, chunkNumber, (new byte[0]), 0);
+            GetChunk getChunk = enhanced ? new GetChunk(newChunk, true, port) : new GetChunk(newChunk);
+            Thread thread = new Thread(getChunk);
+            thread.start();
+        }
     }
     /**
      * Remote function to delete a file
@@ -362,6 +762,8 @@ public class BackupService implements RMI {
         if (id == null)
             return -1;
 
+        deleteVersions(id);
+        ErasureLayout.delete(new File(MANIFESTS_DIRECTORY), id);
         (new DeleteFile(id,false)).run();
 
         this.getDisk().removeFilename(filename);
@@ -383,6 +785,9 @@ public class BackupService implements RMI {
         if (id == null)
             return -1;
 
+        deleteVersions(id);
+        ErasureLayout.delete(new File(MANIFESTS_DIRECTORY), id);
+
         Thread thread = new Thread(){
             public void run(){
 
@@ -390,7 +795,7 @@ public class BackupService implements RMI {
                 int waitingTime = 1000;
 
                 //creating receiver
-                receivedDeletion.put(id,new HashMap<>());
+                receivedDeletion.put(id,new ConcurrentHashMap<>());
 
                 while(!finished){
                     System.out.println("Sending delete message");
@@ -467,9 +872,7 @@ public class BackupService implements RMI {
         String id = FileChunker.getFileChecksum(file);
 
         this.disk.addFilename(filename, id);
-        if(this.getDisk().idSet.indexOf(id) == -1)
-            this.getDisk().idSet.add(id);
-        this.getDisk().saveDisk();
+        this.getDisk().addOwnFileId(id);
 
         //
         int part = 0;
@@ -516,39 +919,6 @@ public class BackupService implements RMI {
      */
     @Override
     public int restoreEnh(String filename) throws InterruptedException, IOException {
-        String id = this.getDisk().getId(filename);
-
-        if (id == null)
-            return -1;
-
-        int numberOfChunks = this.getDisk().getNumberOfChunks(id);
-
-        ArrayList<Integer> array = new ArrayList<>();
-
-        for (int i = 0; i < numberOfChunks; i++)
-            array.add(i);
-
-        getChannelsHandler().waitingForChunks.put(id, array);
-        getChannelsHandler().waitingForChunksTCP.add(id);
-
-        //locking semaphore to wait for all chunks to be restored
-        sem.acquire();
-
-        for (int i = 0; i < numberOfChunks; i++) {
-            Chunk newChunk = new Chunk(id, i, (new byte[0]), 0);
-            Thread thread = new Thread(new GetChunk(newChunk, true, getChannelsHandler().getChannelByType(ChannelType.TDR).getPort()));
-            thread.start();
-        }
-
-        //waits to aquire the sem ->ends the restore of all files
-        sem.acquire();
-        sem.release();
-
-        File file = new File(id);
-
-        if (file.canWrite())
-            file.renameTo(new File(filename));
-
-        return 0;
+        return restoreFile(filename, true);
     }
 }
\ No newline at end of file
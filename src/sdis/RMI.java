@@ -18,6 +18,27 @@ public interface RMI extends Remote {
      */
     int backup(String filename, int repDegree) throws IOException;
 
+    /**
+     * Remote function to backup the given file incrementally, sending only
+     * the chunks that changed since its previous version
+     *
+     * @param filename  the name of the file to be backed up
+     * @param repDegree the degree of replication for the new chunks
+     * @throws IOException
+     */
+    int backupInc(String filename, int repDegree) throws IOException;
+
+    /**
+     * Remote function to backup the given file with erasure coding, each stripe of
+     * data chunks extended with parity chunks and each fragment kept by a distinct peer
+     *
+     * @param filename        the name of the file to be backed up
+     * @param dataFragments   number of data chunks of a stripe
+     * @param parityFragments number of parity chunks of a stripe
+     * @throws IOException
+     */
+    int backupErasure(String filename, int dataFragments, int parityFragments) throws IOException;
+
     /**
      * Remote function to restore file
      *
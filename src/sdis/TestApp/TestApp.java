@@ -61,6 +61,32 @@ public class TestApp {
                 else if(answer == -2)
                     System.out.println("File with same name already exists");
 
+                break;
+            case "BACKUPINC":
+                if (args.length < 4) {
+                    System.out.println("Please execute the backup service using the following format:");
+                    System.out.println("java TestApp <peer_ap> BACKUPINC <file_path> <rep_degree> ");
+                    return;
+                }
+
+                answer = rmi.backupInc(args[2].toString(), Integer.parseInt(args[3]));
+                if (answer == -1)
+                    System.out.println("File does not exist");
+
+                break;
+            case "BACKUPEC":
+                if (args.length < 5) {
+                    System.out.println("Please execute the backup service using the following format:");
+                    System.out.println("java TestApp <peer_ap> BACKUPEC <file_path> <data_chunks> <parity_chunks> ");
+                    return;
+                }
+
+                answer = rmi.backupErasure(args[2].toString(), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+                if (answer == -1)
+                    System.out.println("File does not exist or invalid number of chunks");
+                else if (answer == -2)
+                    System.out.println("File already backed up");
+
                 break;
             case "RESTORE":
                 if (args.length < 3) {
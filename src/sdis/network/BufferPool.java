@@ -0,0 +1,81 @@
+package sdis.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers to receive packets into. The buffers are allocated
+ * when first needed, up to a maximum, and reused once released.
+ */
+public class BufferPool {
+
+    /**
+     * Released buffers ready to be reused
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+    /**
+     * Capacity of each buffer
+     */
+    private final int capacity;
+
+    /**
+     * Maximum number of buffers
+     */
+    private final int maxBuffers;
+
+    /**
+     * Number of buffers allocated so far
+     */
+    private final AtomicInteger allocated;
+
+    /**
+     * Constructor of BufferPool
+     *
+     * @param capacity   capacity of each buffer
+     * @param maxBuffers maximum number of buffers
+     */
+    public BufferPool(final int capacity, final int maxBuffers) {
+        this.free = new ConcurrentLinkedQueue<>();
+        this.capacity = capacity;
+        this.maxBuffers = maxBuffers;
+        this.allocated = new AtomicInteger(0);
+    }
+
+    /**
+     * Acquire a cleared buffer
+     *
+     * @return acquired buffer, null if all the buffers are in use
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null)
+            return buffer;
+
+        if (allocated.incrementAndGet() > maxBuffers) {
+            allocated.decrementAndGet();
+            return null;
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Release a buffer so it can be reused
+     *
+     * @param buffer buffer to be released
+     */
+    public void release(final ByteBuffer buffer) {
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    /**
+     * Get the number of buffers in use
+     *
+     * @return number of buffers in use
+     */
+    public int getInUse() {
+        return allocated.get() - free.size();
+    }
+}
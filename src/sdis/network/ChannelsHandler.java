@@ -3,23 +3,33 @@ package sdis.network;
 import sdis.BackupService;
 import sdis.protocol.*;
 import sdis.storage.Chunk;
+import sdis.storage.ChunkCodec;
 import sdis.storage.ChunkState;
+import sdis.storage.ChunkSink;
+import sdis.storage.ErasureLayout;
 import sdis.utils.Utilities;
 
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Handler for all the multicast channels
+ * Handler for all the multicast channels. Messages are handled by the shard of their
+ * file id, so the state of a file is only changed by one thread at a time while the
+ * maps holding the state of every file are shared by all the shards.
  */
 public class ChannelsHandler {
 
     /**
-     * Map with the chunks we are waiting for being restored
+     * Map with the chunks we are waiting for being restored, each list is locked while read or changed
      * <FileId, ChunkNo>
      */
     public final Map<String, ArrayList<Integer>> waitingForChunks;
@@ -27,7 +37,18 @@ public class ChannelsHandler {
     /**
      * Chunks that are received enhanced
      */
-    public  final ArrayList<String> waitingForChunksTCP;
+    public final List<String> waitingForChunksTCP;
+
+    /**
+     * Destinations of the chunks of the files being restored
+     * <FileId, ChunkSink>
+     */
+    public final Map<String, ChunkSink> restoreSinks;
+
+    /**
+     * Time after a chunk is stored to check if it reached its replication degree, in milliseconds
+     */
+    private static final int REP_DEGREE_CHECK_DELAY = 10000;
 
     /**
      * Map with all the channels and correspondent thread
@@ -47,6 +68,12 @@ public class ChannelsHandler {
      */
     private final Map<String, Map<Integer, RestoreChunk>> chunksForRestore;
 
+    /**
+     * Chunks being sent for a restore after a get chunks message
+     * <FileId, RestoreChunks>
+     */
+    private final Map<String, RestoreChunks> streamsForRestore;
+
     /**
      * Chunks to backup again because they were removed and the count dropped below the desired
      * level of replication.
@@ -59,6 +86,11 @@ public class ChannelsHandler {
      */
     private final String serverId;
 
+    /**
+     * The id of the server, as it is in the headers of its messages
+     */
+    private final byte[] serverIdBytes;
+
     /**
      * Stored messages received
      */
@@ -69,19 +101,53 @@ public class ChannelsHandler {
      */
     private Map<String, Map<Integer, Integer>> storedListened;
 
+    /**
+     * Dispatcher of the received messages and of the work they start
+     */
+    private final MessageDispatcher dispatcher;
+
+    /**
+     * Connections to the TCP channels of other peers
+     */
+    private final TCPConnectionPool connectionPool;
+
+    /**
+     * Pacer of the messages sent to the MDB channel
+     */
+    private final MessagePacer pacer;
+
+    /**
+     * Chunks stored and not yet acknowledged, when the stored messages of a file are sent together
+     * <FileId, ChunkNo>
+     */
+    private final Map<String, BitSet> pendingStored;
+
+    /**
+     * True to send the stored messages of a file together
+     */
+    private final boolean batchStored;
+
     /**
      * Constructor of ChannelsHandler
      */
     public ChannelsHandler(final String serverId) {
         this.channels = new HashMap<>();
         this.mirrorDevices = BackupService.getInstance().getDisk().getMirrorDevices();
-        this.storedMessagesReceived = new HashMap<>();
-        this.waitingForChunks = new HashMap<>();
-        this.waitingForChunksTCP = new ArrayList<>();
-        this.chunksForRestore = new HashMap<>();
-        this.chunksBackupAgain = new HashMap<>();
-        this.storedListened = new HashMap<>();
+        this.storedMessagesReceived = new ConcurrentHashMap<>();
+        this.waitingForChunks = new ConcurrentHashMap<>();
+        this.waitingForChunksTCP = new CopyOnWriteArrayList<>();
+        this.restoreSinks = new ConcurrentHashMap<>();
+        this.chunksForRestore = new ConcurrentHashMap<>();
+        this.streamsForRestore = new ConcurrentHashMap<>();
+        this.chunksBackupAgain = new ConcurrentHashMap<>();
+        this.storedListened = new ConcurrentHashMap<>();
         this.serverId = serverId;
+        this.serverIdBytes = serverId.getBytes(StandardCharsets.ISO_8859_1);
+        this.dispatcher = new MessageDispatcher();
+        this.connectionPool = new TCPConnectionPool();
+        this.pacer = MessagePacer.fromProperties();
+        this.pendingStored = new ConcurrentHashMap<>();
+        this.batchStored = StoredChunks.isEnabled();
     }
 
     /**
@@ -110,8 +176,23 @@ public class ChannelsHandler {
             // Close safely the channel
             final Channel channel = entry.getKey();
             System.out.println(channel.getType() + " has been closed.");
+            if (channel instanceof MulticastChannel) {
+                MulticastChannel multicastChannel = (MulticastChannel) channel;
+                System.out.println(channel.getType() + " received " + multicastChannel.getReceivedPackets() + " packets ("
+                        + multicastChannel.getReceivedBytes() + "b), dropped " + multicastChannel.getDroppedPackets() + " packets.");
+            } else if (channel instanceof TCPChannel) {
+                TCPChannel tcpChannel = (TCPChannel) channel;
+                System.out.println(channel.getType() + " received " + tcpChannel.getReceivedMessages() + " messages over "
+                        + tcpChannel.getAcceptedConnections() + " connections.");
+            }
             channel.close();
         }
+
+        // Let the messages already received be handled
+        dispatcher.shutdown();
+        dispatcher.printInfo();
+        pacer.printInfo();
+        connectionPool.close();
     }
 
     /**
@@ -132,6 +213,33 @@ public class ChannelsHandler {
         channels.remove(channel);
     }
 
+    /**
+     * Get the connections to the TCP channels of other peers
+     *
+     * @return pool of connections
+     */
+    public TCPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Get the pacer of the messages sent to the MDB channel
+     *
+     * @return pacer of the MDB channel
+     */
+    public MessagePacer getPacer() {
+        return pacer;
+    }
+
+    /**
+     * Get the dispatcher of the received messages and of the work they start
+     *
+     * @return message dispatcher
+     */
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     /**
      * Get a channel by its type
      *
@@ -155,6 +263,7 @@ public class ChannelsHandler {
             @Override
             public void run() {
                 System.out.println(channel.getType() + " is listening.");
+                final MessageHeader parser = new MessageHeader();
 
                 while (BackupService.getInstance().isRunning.get()) {
                     if (channel.getType() == ChannelType.TDR) {
@@ -165,17 +274,18 @@ public class ChannelsHandler {
                         //System.out.println("Received " + data.getLength() + " bytes.");
 
                         // Handle the received message
-                        new Thread(() ->    handleMessage(data, data.length, null, channel.getType())).start();
+                        decodeMessage(parser, ByteBuffer.wrap(data), null, channel.getType());
                     } else {
-                        final DatagramPacket data = (DatagramPacket) channel.read();
-                        if (data == null)
+                        final Packet packet = (Packet) channel.read();
+                        if (packet == null)
                             continue;
 
-                        //System.out.println("Received " + data.getLength() + " bytes.");
-
-                        // Handle the received message
-                        new Thread(() -> handleMessage(data.getData(), data.getLength(), data.getAddress(), channel.getType())).start();
-                        //handleMessage(data, channel.getType());
+                        // Handle the received message, its buffer is reused once decoded
+                        try {
+                            decodeMessage(parser, packet.getData(), packet.getAddress(), channel.getType());
+                        } finally {
+                            packet.release();
+                        }
                     }
                 }
             }
@@ -185,15 +295,28 @@ public class ChannelsHandler {
     }
 
     /**
-     * Send a message to a channel
+     * Send a message to a channel, waiting for the pacer if sent to the MDB channel
      *
      * @param message message to be sent
      * @param channel channel of the message to be sent
      * @return true if message was sent, false otherwise
      */
     public boolean sendMessage(final byte[] message, ChannelType channel) {
+        if (channel == ChannelType.MDB)
+            pacer.acquire(message.length);
+        return writeMessage(message, channel);
+    }
+
+    /**
+     * Send a message to a channel without waiting for the pacer, for messages whose tokens were already taken
+     *
+     * @param message message to be sent
+     * @param channel channel of the message to be sent
+     * @return true if message was sent, false otherwise
+     */
+    public boolean writeMessage(final byte[] message, ChannelType channel) {
         Channel messageChannel = getChannelByType(channel);
-        if (channel == null)
+        if (messageChannel == null)
             return false;
         return messageChannel.write(message);
     }
@@ -205,98 +328,129 @@ public class ChannelsHandler {
      */
 
     /**
-     * Handle a received message
+     * Decode a received message, copying what is needed out of its data, and dispatch it to the shard of its file id.
+     * Messages of this peer and malformed ones are dropped before any work is dispatched.
      *
-     * @param data    data that was received
-     * @param length  length of the data received
+     * @param parser  parser of the headers of the channel
+     * @param data    data that was received, only valid while being decoded
      * @param address address of the sender
      * @param channel channel that got the message
      */
-    private synchronized void handleMessage(final byte[] data, final int length, final InetAddress address, ChannelType channel) {
-        String[] header = Utilities.extractHeader(data);
-        if (header == null || header.length <= 0)
+    private void decodeMessage(final MessageHeader parser, final ByteBuffer data, final InetAddress address, final ChannelType channel) {
+        if (!parser.parse(data) || parser.isSender(serverIdBytes))
             return;
 
-        if (header[BackupProtocol.SENDER_INDEX].equals(this.serverId))
-            return;
+        final MessageHeader header = parser.detach();
+        final String fileId = header.getString(BackupProtocol.FILE_ID_INDEX);
+
+        // Only the data channels carry a body
+        final byte[] body;
+        if (channel != ChannelType.MC) {
+            ByteBuffer bodyView = parser.getBody();
+            body = new byte[bodyView.remaining()];
+            bodyView.get(body);
+        } else body = null;
+
+        dispatcher.dispatch(channel, fileId, () -> handleMessage(header, fileId, body, address, channel));
+    }
 
+    /**
+     * Handle a received message
+     *
+     * @param header  header of the message
+     * @param fileId  file id of the message
+     * @param body    body of the message, null on the control channel
+     * @param address address of the sender
+     * @param channel channel that got the message
+     */
+    private void handleMessage(final MessageHeader header, final String fileId, final byte[] body, final InetAddress address, ChannelType channel) {
+        final int version = header.getVersion();
 
         // Control Channel
         if (channel == ChannelType.MC) {
-            switch (header[BackupProtocol.MESSAGE_TYPE_INDEX]) {
-                case BackupProtocol.STORED_MESSAGE:
-                    handleStoredChunk(header[BackupProtocol.FILE_ID_INDEX],
-                            Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                            header[BackupProtocol.SENDER_INDEX]);
+            switch (header.getType()) {
+                case STORED:
+                    handleStoredChunk(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                            header.getString(BackupProtocol.SENDER_INDEX));
                     break;
-                case BackupProtocol.GETCHUNK_MESSAGE:
-                    if (header[BackupProtocol.VERSION_INDEX].equals(Integer.toString(BackupProtocol.VERSION_ENHANCEMENT)))
-                        handleGetChunk(header[BackupProtocol.FILE_ID_INDEX],
-                                Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                                address,
-                                Integer.parseInt(header[BackupProtocol.TCP_PORT]));
-                    else
-                        handleGetChunk(header[BackupProtocol.FILE_ID_INDEX],
-                                Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                                address,
-                                -1);
+                case STOREDBATCH:
+                    BitSet storedChunks = Utilities.fromBitmap(header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                            header.getString(BackupProtocol.BITMAP_INDEX));
+                    if (storedChunks != null && !storedChunks.isEmpty())
+                        handleStoredChunks(fileId, storedChunks, header.getString(BackupProtocol.SENDER_INDEX));
                     break;
-                case BackupProtocol.DELETE_MESSAGE:
-                    if (header[BackupProtocol.VERSION_INDEX].equals(Integer.toString(BackupProtocol.VERSION_ENHANCEMENT)))
-                        handleDeleteFile(header[BackupProtocol.FILE_ID_INDEX],true);
-                    else handleDeleteFile(header[BackupProtocol.FILE_ID_INDEX],false);
+                case GETCHUNK:
+                    handleGetChunk(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX), address,
+                            version == BackupProtocol.VERSION_ENHANCEMENT ? header.getInt(BackupProtocol.TCP_PORT) : -1);
                     break;
-                case BackupProtocol.REMOVED_MESSAGE:
-                    handleRemovedChunk(header[BackupProtocol.FILE_ID_INDEX],
-                            Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                            header[BackupProtocol.SENDER_INDEX]);
+                case GETCHUNKS:
+                    BitSet requestedChunks = Utilities.fromBitmap(header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                            header.getString(BackupProtocol.BITMAP_INDEX));
+                    if (requestedChunks != null)
+                        handleGetChunks(fileId, requestedChunks, address,
+                                version == BackupProtocol.VERSION_ENHANCEMENT ? header.getInt(BackupProtocol.GETCHUNKS_TCP_PORT) : -1);
                     break;
-                case BackupProtocol.DELETED_MESSAGE:
-                    if(!BackupService.getInstance().receivedDeletion.containsKey(header[BackupProtocol.FILE_ID_INDEX]))
+                case DELETE:
+                    handleDeleteFile(fileId, version == BackupProtocol.VERSION_ENHANCEMENT);
+                    break;
+                case HAVE:
+                    ChunkCodec haveCodec = getCodec(header, BackupProtocol.HAVE_CODEC_INDEX);
+                    if (haveCodec != null)
+                        handleHaveChunk(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                                header.getInt(BackupProtocol.REPLICATION_DEG_INDEX),
+                                header.getString(BackupProtocol.CONTENT_HASH_INDEX), haveCodec);
+                    break;
+                case REMOVED:
+                    handleRemovedChunk(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                            header.getString(BackupProtocol.SENDER_INDEX));
+                    break;
+                case DELETEDCHUNK:
+                    Map<Integer, Integer> deletions = BackupService.getInstance().receivedDeletion.get(fileId);
+                    if (deletions == null)
                         return;
-                    if(!BackupService.getInstance().receivedDeletion.get(header[BackupProtocol.FILE_ID_INDEX]).containsKey(Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]))) {
-                        BackupService.getInstance().receivedDeletion.get(header[BackupProtocol.FILE_ID_INDEX]).put(
-                                Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]), 1);
-                    }
-                    else {
-                        BackupService.getInstance().receivedDeletion.get(header[BackupProtocol.FILE_ID_INDEX]).put(
-                                Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                                BackupService.getInstance().receivedDeletion.get(header[BackupProtocol.FILE_ID_INDEX]).get(
-                                        Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX])) + 1
-                                );
-                    }
+                    deletions.merge(header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX), 1, Integer::sum);
                     break;
             }
         }
         // Data Backup Channel
         else if (channel == ChannelType.MDB) {
-            switch (header[BackupProtocol.MESSAGE_TYPE_INDEX]) {
-                case BackupProtocol.PUTCHUNK_MESSAGE:
-                    byte[] body = Utilities.extractBody(data, length);
-                    if (header[BackupProtocol.VERSION_INDEX].equals(Integer.toString(BackupProtocol.VERSION_ENHANCEMENT)))
-                        handlePutChunkEnh(header[BackupProtocol.FILE_ID_INDEX],
-                                Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                                Integer.parseInt(header[BackupProtocol.REPLICATION_DEG_INDEX]), body);
-                    else
-                        handlePutChunk(header[BackupProtocol.FILE_ID_INDEX],
-                                Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                                Integer.parseInt(header[BackupProtocol.REPLICATION_DEG_INDEX]), body);
-                    break;
-            }
+            if (header.getType() != MessageType.PUTCHUNK)
+                return;
+
+            ChunkCodec putCodec;
+            if (version == BackupProtocol.VERSION_ENHANCEMENT)
+                handlePutChunkEnh(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                        header.getInt(BackupProtocol.REPLICATION_DEG_INDEX), body,
+                        header.getFieldCount() > BackupProtocol.STRIPE_WIDTH_INDEX
+                                ? header.getInt(BackupProtocol.STRIPE_WIDTH_INDEX) : 0);
+            else if ((putCodec = getCodec(header, BackupProtocol.CODEC_INDEX)) != null)
+                handlePutChunk(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX),
+                        header.getInt(BackupProtocol.REPLICATION_DEG_INDEX), body, putCodec);
         }
         // Data Restore Channel or TCP Restore Channel
         else if (channel == ChannelType.MDR || channel == ChannelType.TDR) {
-            switch (header[BackupProtocol.MESSAGE_TYPE_INDEX]) {
-                case BackupProtocol.CHUNK_MESSAGE:
-                    byte[] body = Utilities.extractBody(data, length);
-                    handleRestoreChunk(header[BackupProtocol.FILE_ID_INDEX],
-                            Integer.parseInt(header[BackupProtocol.CHUNK_NUMBER_INDEX]),
-                            body, channel);
-                    break;
-            }
+            if (header.getType() != MessageType.CHUNK)
+                return;
+
+            ChunkCodec codec = getCodec(header, BackupProtocol.CHUNK_CODEC_INDEX);
+            if (codec != null)
+                handleRestoreChunk(fileId, header.getInt(BackupProtocol.CHUNK_NUMBER_INDEX), body, codec, channel);
         }
     }
 
+    /**
+     * Get the codec of the body of a message
+     *
+     * @param header header of the message
+     * @param index  index of the codec field, only present in the compression version of the protocol
+     * @return codec of the body, null if unknown
+     */
+    private static ChunkCodec getCodec(final MessageHeader header, final int index) {
+        if (header.getVersion() != BackupProtocol.VERSION_COMPRESSION)
+            return ChunkCodec.NONE;
+        return header.getFieldCount() > index ? ChunkCodec.fromHeader(header.getString(index)) : null;
+    }
+
     /**
      * Handle the stored chunk
      *
@@ -304,31 +458,97 @@ public class ChannelsHandler {
      * @param chunkNumber number of the chunk
      * @param deviceId    device that has mirrored the chunk
      */
-    private synchronized void handleStoredChunk(final String fileId, final int chunkNumber, final String deviceId) {
+    private void handleStoredChunk(final String fileId, final int chunkNumber, final String deviceId) {
 
         System.out.println("Received Stored from " + deviceId + "- Chunk Number : " + chunkNumber);
 
-        addStoredConfirmation(fileId, chunkNumber, deviceId);
+        BitSet chunks = new BitSet();
+        chunks.set(chunkNumber);
+        countStored(fileId, chunks, deviceId);
+    }
+
+    /**
+     * Handle the stored chunks, acknowledging many chunks of a file at once
+     *
+     * @param fileId   file id of the chunks
+     * @param chunks   numbers of the chunks
+     * @param deviceId device that has mirrored the chunks
+     */
+    private void handleStoredChunks(final String fileId, final BitSet chunks, final String deviceId) {
+
+        System.out.println("Received Stored from " + deviceId + "- Chunks : " + chunks.cardinality() + " from " + chunks.nextSetBit(0));
+
+        countStored(fileId, chunks, deviceId);
+    }
 
-        if (storedMessagesReceived.containsKey(fileId))
-            if (storedMessagesReceived.get(fileId).containsKey(chunkNumber))
-                storedMessagesReceived.get(fileId).put(chunkNumber, storedMessagesReceived.get(fileId).get(chunkNumber) + 1);
+    /**
+     * Count the stored confirmations of chunks of a file
+     *
+     * @param fileId   file id of the chunks
+     * @param chunks   numbers of the chunks
+     * @param deviceId device that has mirrored the chunks
+     */
+    private void countStored(final String fileId, final BitSet chunks, final String deviceId) {
+        int device = Integer.parseInt(deviceId);
+        Map<Integer, Integer> received = storedMessagesReceived.get(fileId);
+
+        for (int chunkNumber = chunks.nextSetBit(0); chunkNumber >= 0; chunkNumber = chunks.nextSetBit(chunkNumber + 1)) {
+            BackupService.getInstance().getDisk().increaseMirrors(fileId, chunkNumber, device);
+
+            if (received != null)
+                received.computeIfPresent(chunkNumber, (number, count) -> count + 1);
+
+            if (!BackupService.getInstance().getDisk().hasChunk(fileId, chunkNumber)) {
+                final int listenedChunk = chunkNumber;
+                this.storedListened.compute(fileId, (id, listened) -> {
+                    if (listened == null)
+                        listened = new HashMap<>();
+                    listened.merge(listenedChunk, 1, Integer::sum);
+                    return listened;
+                });
+            }
 
-        if (!BackupService.getInstance().getDisk().hasChunk(fileId, chunkNumber)) {
-            if (!this.storedListened.containsKey(fileId))
-                this.storedListened.put(fileId, new HashMap<>());
-            if (this.storedListened.get(fileId).containsKey(chunkNumber))
-                this.storedListened.get(fileId).put(chunkNumber, this.storedListened.get(fileId).get(chunkNumber) + 1);
-            else this.storedListened.get(fileId).put(chunkNumber, 1);
+            // Update replication degree if that is the case
+            BackupService.getInstance().getDisk().increaseReplicas(fileId, chunkNumber, device);
         }
+    }
 
-        // Update replication degree if that is the case
-        Chunk chunk = BackupService.getInstance().getDisk().getChunk(fileId, chunkNumber);
-        if (chunk != null) {
-            ChunkState chunkState = chunk.getState();
-            chunkState.increaseReplicas(Integer.parseInt(deviceId));
-            BackupService.getInstance().getDisk().updateChunkState(chunk);
+    /**
+     * Acknowledge a stored chunk, together with the other chunks of its file stored before the response is sent
+     *
+     * @param chunk stored chunk
+     */
+    private void acknowledgeStored(final Chunk chunk) {
+        if (!batchStored) {
+            dispatcher.respond(new StoredChunk(chunk)::send);
+            return;
         }
+
+        boolean[] first = {false};
+        pendingStored.compute(chunk.getFileID(), (fileId, chunks) -> {
+            if (chunks == null) {
+                chunks = new BitSet();
+                first[0] = true;
+            }
+            chunks.set(chunk.getChunkNo());
+            return chunks;
+        });
+        if (first[0])
+            dispatcher.respond(() -> flushStored(chunk.getFileID()));
+    }
+
+    /**
+     * Send the stored messages of the chunks of a file not yet acknowledged
+     *
+     * @param fileId file id of the chunks
+     */
+    private void flushStored(final String fileId) {
+        BitSet chunks = pendingStored.remove(fileId);
+        if (chunks == null)
+            return;
+
+        for (int first = chunks.nextSetBit(0); first >= 0; first = chunks.nextSetBit(first + BackupProtocol.MAX_BITMAP_SPAN))
+            new StoredChunks(fileId, Utilities.span(chunks, first, BackupProtocol.MAX_BITMAP_SPAN)).send();
     }
 
     /**
@@ -338,10 +558,11 @@ public class ChannelsHandler {
      * @param chunkNumber          number of the chunk
      * @param minReplicationDegree minimum replication degree of the chunk
      * @param data                 data of the chunk
+     * @param stripeWidth          number of fragments of the stripe of an erasure coded fragment, 0 otherwise
      */
-    private synchronized void handlePutChunkEnh(final String fileId, final int chunkNumber, final int minReplicationDegree, final byte[] data) {
+    private void handlePutChunkEnh(final String fileId, final int chunkNumber, final int minReplicationDegree, final byte[] data, final int stripeWidth) {
 
-        if(BackupService.getInstance().getDisk().idSet.indexOf(fileId) != -1)
+        if(BackupService.getInstance().getDisk().isOwnFileId(fileId))
             return;
 
         // Check if we were waiting the backup the chunk we are receiving
@@ -352,39 +573,86 @@ public class ChannelsHandler {
                 return;
             }
         }
-        try {
-            if (!this.storedListened.containsKey(fileId))
-                this.storedListened.put(fileId, new HashMap<>());
-            if (!this.storedListened.get(fileId).containsKey(chunkNumber))
-                this.storedListened.get(fileId).put(chunkNumber, 0);
-            Thread.sleep((int) (Math.random() * 400));
-        } catch (InterruptedException ignore) {
-        }
-        if (this.storedListened.get(fileId).get(chunkNumber) < minReplicationDegree) {
-            this.storedListened.get(fileId).remove(chunkNumber);
-            if (this.storedListened.get(fileId).isEmpty())
-                this.storedListened.remove(fileId);
-            handlePutChunk(fileId, chunkNumber, minReplicationDegree, data);
-        } else {
-            this.storedListened.get(fileId).remove(chunkNumber);
-            if (this.storedListened.get(fileId).isEmpty())
-                this.storedListened.remove(fileId);
-        }
+        this.storedListened.compute(fileId, (id, listened) -> {
+            if (listened == null)
+                listened = new HashMap<>();
+            listened.putIfAbsent(chunkNumber, 0);
+            return listened;
+        });
+
+        // Count the stored messages for a while, the shard handles other messages meanwhile
+        dispatcher.defer(fileId, () -> decidePutChunk(fileId, chunkNumber, minReplicationDegree, data, stripeWidth),
+                () -> stopListening(fileId, chunkNumber), (long) (Math.random() * BackupProtocol.MAX_RESPONSE_DELAY));
     }
 
     /**
-     * Handle the put chunk
+     * Stop counting the stored messages of a chunk. The counts of a file are only changed while
+     * computing its entry, as the continuation of a put chunk may be shed on another thread.
+     *
+     * @param fileId      file id of the chunk
+     * @param chunkNumber number of the chunk
+     * @return number of stored messages counted, null if they were not being counted
+     */
+    private Integer stopListening(final String fileId, final int chunkNumber) {
+        Integer[] stored = new Integer[1];
+        this.storedListened.computeIfPresent(fileId, (id, listened) -> {
+            stored[0] = listened.remove(chunkNumber);
+            return listened.isEmpty() ? null : listened;
+        });
+        return stored[0];
+    }
+
+    /**
+     * Store a chunk of a putchunk message with the enhancement, once the stored messages of other
+     * peers have been counted, if they are not enough
      *
      * @param fileId               file id of the chunk
      * @param chunkNumber          number of the chunk
      * @param minReplicationDegree minimum replication degree of the chunk
      * @param data                 data of the chunk
+     * @param stripeWidth          number of fragments of the stripe of an erasure coded fragment, 0 otherwise
+     */
+    private void decidePutChunk(final String fileId, final int chunkNumber, final int minReplicationDegree, final byte[] data, final int stripeWidth) {
+        Integer stored = stopListening(fileId, chunkNumber);
+        if (stored == null)
+            return;
+
+        // Fragments of the same stripe are kept by distinct peers
+        boolean holdsStripe = stripeWidth > 0 && holdsStripe(fileId, chunkNumber, stripeWidth);
+        if (!holdsStripe && stored < minReplicationDegree)
+            handlePutChunk(fileId, chunkNumber, minReplicationDegree, data, ChunkCodec.NONE);
+    }
+
+    /**
+     * Check if this peer keeps another fragment of the stripe of a fragment
+     *
+     * @param fileId      file id of the fragment
+     * @param chunkNumber chunk number of the fragment
+     * @param stripeWidth number of fragments of the stripe
+     * @return true if another fragment of the stripe is stored, false otherwise
+     */
+    private static boolean holdsStripe(final String fileId, final int chunkNumber, final int stripeWidth) {
+        int first = chunkNumber - chunkNumber % stripeWidth;
+        for (int fragment = first; fragment < first + stripeWidth; fragment++)
+            if (fragment != chunkNumber && BackupService.getInstance().getDisk().hasChunk(fileId, fragment))
+                return true;
+        return false;
+    }
+
+    /**
+     * Handle the put chunk
+     *
+     * @param fileId               file id of the chunk
+     * @param chunkNumber          number of the chunk
+     * @param minReplicationDegree minimum replication degree of the chunk
+     * @param data                 data of the chunk, as encoded by the codec
+     * @param codec                codec of the data
      */
-    private synchronized void handlePutChunk(final String fileId, final int chunkNumber, final int minReplicationDegree, final byte[] data) {
+    private void handlePutChunk(final String fileId, final int chunkNumber, final int minReplicationDegree, final byte[] data, final ChunkCodec codec) {
         // A peer must never store the chunks of its own files.
 
 
-        if(BackupService.getInstance().getDisk().idSet.indexOf(fileId) != -1)
+        if(BackupService.getInstance().getDisk().isOwnFileId(fileId))
             return;
 
         addStoredConfirmation(fileId, chunkNumber, BackupService.getInstance().getServerId());
@@ -401,13 +669,13 @@ public class ChannelsHandler {
 
         // Backup the received chunk
         Chunk chunk = new Chunk(fileId, chunkNumber, data, minReplicationDegree);
+        chunk.getState().setCodec(codec);
 
         chunk.getState().increaseReplicas(Integer.parseInt(BackupService.getInstance().getServerId()));
 
         // Check if chunk has been stored already
         if (BackupService.getInstance().getDisk().hasChunk(fileId, chunkNumber)) {
-            Thread thread = new Thread(new StoredChunk(chunk));
-            thread.start();
+            BackupService.getInstance().getDisk().whenDurable(fileId, chunkNumber, () -> acknowledgeStored(chunk));
             return;
         }
 
@@ -417,28 +685,86 @@ public class ChannelsHandler {
         if (!BackupService.getInstance().getDisk().saveChunk(chunk))
             return;
 
-        // Send stored message
-        Thread thread = new Thread(new StoredChunk(chunk));
-        thread.start();
+        // Send stored message once the chunk is durable
+        BackupService.getInstance().getDisk().whenDurable(fileId, chunkNumber, () -> acknowledgeStored(chunk));
 
-        new Thread(() -> checkRepDegree(chunk)).start();
+        dispatcher.schedule(() -> checkRepDegree(chunk), REP_DEGREE_CHECK_DELAY);
 
     }
 
-    private void checkRepDegree(Chunk chunk){
-        //wait 10 seconds
-        try {
-            Thread.sleep(10000);
-        } catch (InterruptedException ignore) {
+    /**
+     * Handle the have chunk, storing the chunk without its body if its content is already held
+     *
+     * @param fileId               file id of the chunk
+     * @param chunkNumber          number of the chunk
+     * @param minReplicationDegree minimum replication degree of the chunk
+     * @param contentHash          SHA-256 hash of the content of the chunk, in hexadecimal
+     * @param codec                codec of the content of the chunk
+     */
+    private void handleHaveChunk(final String fileId, final int chunkNumber, final int minReplicationDegree, final String contentHash, final ChunkCodec codec) {
+        // A peer must never store the chunks of its own files.
+        if (BackupService.getInstance().getDisk().isOwnFileId(fileId))
+            return;
+
+        byte[] hash = Utilities.fromHex(contentHash);
+        if (hash == null)
+            return;
+
+        // Check if chunk has been stored already, with the same content
+        ChunkState state = BackupService.getInstance().getDisk().getChunkState(fileId, chunkNumber);
+        if (state != null) {
+            if (state.getContentHash() != null && !Arrays.equals(state.getContentHash(), hash))
+                return;
+        } else {
+            // Store the chunk by its content, if held
+            state = new ChunkState(minReplicationDegree, 0);
+            state.setContentHash(hash);
+            state.setCodec(codec);
+            state.increaseReplicas(Integer.parseInt(BackupService.getInstance().getServerId()));
+            if (!BackupService.getInstance().getDisk().aliasChunk(fileId, chunkNumber, state))
+                return;
         }
 
+        addStoredConfirmation(fileId, chunkNumber, BackupService.getInstance().getServerId());
+
+        // Send stored message once the chunk is durable
+        Chunk stored = new Chunk(fileId, chunkNumber, new byte[0], state);
+        BackupService.getInstance().getDisk().whenDurable(fileId, chunkNumber, () -> acknowledgeStored(stored));
+    }
+
+    /**
+     * Rebuild a removed fragment of an own file backed up with erasure coding, when no peer keeps it
+     *
+     * @param fileId      file id of the fragment
+     * @param chunkNumber chunk number of the fragment
+     */
+    private void repairFragment(final String fileId, final int chunkNumber) {
+        if (!BackupService.getInstance().getDisk().isOwnFileId(fileId) || getStoredConfirmations(fileId, chunkNumber) > 0)
+            return;
+
+        ErasureLayout layout = BackupService.getInstance().getErasureLayout(fileId);
+        if (layout == null)
+            return;
+
+        BackupRemovedChunk backupRemovedChunk = new BackupRemovedChunk(new Chunk(fileId, chunkNumber, new byte[0], 1), layout);
+        dispatcher.schedule(() -> backupRemovedChunk.backUp(dispatcher, () -> {
+        }), (long) (Math.random() * BackupProtocol.MAX_RESPONSE_DELAY));
+    }
+
+    /**
+     * Back up a stored chunk again if it is still below its replication degree
+     *
+     * @param chunk stored chunk
+     */
+    private void checkRepDegree(Chunk chunk){
         if(!BackupService.getInstance().getDisk().hasChunk(chunk.getFileID(),chunk.getChunkNo())) {
             return;
         }
 
         if(getStoredConfirmations(chunk.getFileID(),chunk.getChunkNo()) < chunk.getState().getMinReplicationDegree()) {
             BackupChunk backupChunk = new BackupChunk(chunk, false);
-            backupChunk.run();
+            backupChunk.backUp(dispatcher, () -> {
+            });
         }
     }
 
@@ -450,7 +776,7 @@ public class ChannelsHandler {
      * @param address     address to send the file
      * @param port        port to send the file (-1 to use non enhanced)
      */
-    private synchronized void handleGetChunk(final String fileId, final int chunkNumber, final InetAddress address, final int port) {
+    private void handleGetChunk(final String fileId, final int chunkNumber, final InetAddress address, final int port) {
         Chunk chunk = BackupService.getInstance().getDisk().getChunk(fileId, chunkNumber);
         if (chunk == null)
             return;
@@ -458,13 +784,39 @@ public class ChannelsHandler {
 
         RestoreChunk restoreChunk = new RestoreChunk(chunk, (port != -1), address, port);
 
-        if (!chunksForRestore.containsKey(chunk.getFileID()))
-            chunksForRestore.put(chunk.getFileID(), new HashMap<>());
-        chunksForRestore.get(chunk.getFileID()).put(chunk.getChunkNo(), restoreChunk);
+        chunksForRestore.computeIfAbsent(chunk.getFileID(), k -> new HashMap<>()).put(chunk.getChunkNo(), restoreChunk);
 
         // Send restore chunk
-        Thread thread = new Thread(restoreChunk);
-        thread.start();
+        dispatcher.respond(restoreChunk::send);
+    }
+
+    /**
+     * Handle the get chunks. Sends the chunks held a few at a time, adding them to the ones
+     * still being sent for the same restore.
+     *
+     * @param fileId  file id of the chunks
+     * @param chunks  numbers of the chunks
+     * @param address address to send the chunks
+     * @param port    port to send the chunks (-1 to use non enhanced)
+     */
+    private void handleGetChunks(final String fileId, final BitSet chunks, final InetAddress address, final int port) {
+        BitSet held = new BitSet();
+        for (int chunkNumber = chunks.nextSetBit(0); chunkNumber >= 0; chunkNumber = chunks.nextSetBit(chunkNumber + 1))
+            if (BackupService.getInstance().getDisk().hasChunk(fileId, chunkNumber))
+                held.set(chunkNumber);
+        if (held.isEmpty())
+            return;
+
+        RestoreChunks stream = streamsForRestore.get(fileId);
+        if (stream != null && stream.add(held, address, port))
+            return;
+
+        RestoreChunks restoreChunks = new RestoreChunks(fileId, address, port);
+        restoreChunks.add(held, address, port);
+        streamsForRestore.put(fileId, restoreChunks);
+
+        // Send the chunks after a random delay, skipping the ones other peers send first
+        restoreChunks.send(dispatcher, () -> streamsForRestore.remove(fileId, restoreChunks));
     }
 
     /**
@@ -472,10 +824,14 @@ public class ChannelsHandler {
      *
      * @param fileId      file id of the chunk
      * @param chunkNumber number of the chunk
-     * @param data        data of the chunk
+     * @param data        data of the chunk, as encoded by the codec
+     * @param codec       codec of the data
      */
-    private synchronized void handleRestoreChunk(final String fileId, final int chunkNumber, final byte[] data, ChannelType channel) {
+    private void handleRestoreChunk(final String fileId, final int chunkNumber, final byte[] data, final ChunkCodec codec, ChannelType channel) {
         // Check if we were waiting to send this chunk for being restored
+        RestoreChunks stream = streamsForRestore.get(fileId);
+        if (stream != null && stream.cancel(chunkNumber))
+            return;
         if (chunksForRestore.containsKey(fileId)) {
             Map<Integer, RestoreChunk> chunks = chunksForRestore.get(fileId);
             if (chunks.containsKey(chunkNumber)) {
@@ -485,31 +841,42 @@ public class ChannelsHandler {
         }
 
         // Check if we were expecting the chunk to come
-        if (!waitingForChunks.containsKey(fileId))
+        final List<Integer> chunksWaiting = waitingForChunks.get(fileId);
+        if (chunksWaiting == null)
             return;
 
         // Check data length
         if (data.length <= 0 && waitingForChunksTCP.indexOf(fileId) != 1 && channel == ChannelType.MDR)
             return;
 
-        final List<Integer> chunksWaiting = waitingForChunks.get(fileId);
-        if (!chunksWaiting.contains(chunkNumber))
-            return;
-
-        ChunkState state = BackupService.getInstance().getDisk().getChunkState(fileId, chunkNumber);
-        if (state == null)
-            state = new ChunkState(1, 1);
-        final Chunk chunk = new Chunk(fileId, chunkNumber, data, state);
-        BackupService.getInstance().getDisk().saveToFile(chunk);
+        synchronized (chunksWaiting) {
+            if (!chunksWaiting.contains(chunkNumber))
+                return;
+        }
 
-        chunksWaiting.remove(Integer.valueOf(chunkNumber));
+        ChunkSink sink = restoreSinks.get(fileId);
+        if (sink == null)
+            return;
+        // Chunks are only decompressed when written to the restored file
+        byte[] decoded = codec.decompress(data);
+        if (decoded == null)
+            return;
+        sink.writeChunk(fileId, chunkNumber, ByteBuffer.wrap(decoded));
 
-        if (chunksWaiting.isEmpty()) {
-            waitingForChunks.remove(fileId);
-            waitingForChunksTCP.remove(fileId);
-            BackupService.getInstance().sem.release();
+        synchronized (chunksWaiting) {
+            chunksWaiting.remove(Integer.valueOf(chunkNumber));
+            // Erasure coded fragments are no longer needed once their stripe is decoded
+            chunksWaiting.removeIf(number -> !sink.isNeeded(fileId, number));
+            if (!chunksWaiting.isEmpty())
+                return;
         }
 
+        // The restore may have given up meanwhile, then it is the one releasing the semaphore
+        if (!waitingForChunks.remove(fileId, chunksWaiting))
+            return;
+        waitingForChunksTCP.remove(fileId);
+        BackupService.getInstance().sem.release();
+
         //System.out.println("Restored the chunk successfully("+chunkNumber+")!");
     }
 
@@ -518,7 +885,7 @@ public class ChannelsHandler {
      *
      * @param fileId file id to delete all the chunks
      */
-    private synchronized void handleDeleteFile(final String fileId,boolean enhanced) {
+    private void handleDeleteFile(final String fileId,boolean enhanced) {
         if (!BackupService.getInstance().getDisk().removeChunks(fileId,enhanced)) {
             System.out.println("Failed to delete a file from the backup!");
             return;
@@ -533,31 +900,36 @@ public class ChannelsHandler {
      * @param chunkNumber number of the chunk
      * @param deviceId    device that has removed the chunk
      */
-    private synchronized void handleRemovedChunk(final String fileId, final int chunkNumber, final String deviceId) {
+    private void handleRemovedChunk(final String fileId, final int chunkNumber, final String deviceId) {
 
         decreaseStoredConfirmation(fileId,chunkNumber,deviceId);
 
         // Update replication degree if that is the case
-        Chunk chunk = BackupService.getInstance().getDisk().getChunk(fileId, chunkNumber);
-        if (chunk == null)
+        ChunkState state = BackupService.getInstance().getDisk().decreaseReplicas(fileId, chunkNumber, Integer.parseInt(deviceId));
+        if (state == null) {
+            repairFragment(fileId, chunkNumber);
             return;
-
-        chunk.getState().decreaseReplicas(Integer.parseInt(deviceId));
-        BackupService.getInstance().getDisk().updateChunkState(chunk);
+        }
 
         // Check replication level
-        if (chunk.getState().isSafe())
+        if (state.isSafe())
+            return;
+
+        // Only read the chunk from the disk when it has to be backed up again
+        Chunk chunk = BackupService.getInstance().getDisk().getChunk(fileId, chunkNumber);
+        if (chunk == null)
             return;
 
         System.out.println("sending");
 
         BackupRemovedChunk backupRemovedChunk = new BackupRemovedChunk(chunk);
 
-        final Thread thread = new Thread(backupRemovedChunk);
-        if (!chunksBackupAgain.containsKey(chunk.getFileID()))
-            chunksBackupAgain.put(chunk.getFileID(), new HashMap<>());
-        chunksBackupAgain.get(chunk.getFileID()).put(chunk.getChunkNo(), backupRemovedChunk);
-        thread.start();
+        chunksBackupAgain.computeIfAbsent(chunk.getFileID(), k -> new ConcurrentHashMap<>()).put(chunk.getChunkNo(), backupRemovedChunk);
+        dispatcher.schedule(() -> backupRemovedChunk.backUp(dispatcher, () -> {
+            Map<Integer, BackupRemovedChunk> chunksToBackupAgain = chunksBackupAgain.get(fileId);
+            if (chunksToBackupAgain != null)
+                chunksToBackupAgain.remove(chunkNumber, backupRemovedChunk);
+        }), (long) (Math.random() * BackupProtocol.MAX_RESPONSE_DELAY));
     }
 
     /**
@@ -573,7 +945,7 @@ public class ChannelsHandler {
      * @param chunkNumber chunk number to get those
      * @return number of confirmations for the given chunk
      */
-    public synchronized int getStoredConfirmations(final String fileId, final int chunkNumber) {
+    public int getStoredConfirmations(final String fileId, final int chunkNumber) {
         if (!mirrorDevices.containsKey(fileId))
             return -1;
 
@@ -591,16 +963,8 @@ public class ChannelsHandler {
      * @param chunkNumber chunk number to add the confirmation
      * @param deviceId    device id that has stored the chunk
      */
-    private synchronized void addStoredConfirmation(final String fileId, final int chunkNumber, final String deviceId) {
-        if (!mirrorDevices.containsKey(fileId))
-            mirrorDevices.put(fileId,new HashMap<>());
-
-        Map<Integer, ChunkState> fileReplicasCount = mirrorDevices.get(fileId);
-        if (!fileReplicasCount.containsKey(chunkNumber))
-            fileReplicasCount.put(chunkNumber,new ChunkState(-1,0));
-
-        fileReplicasCount.get(chunkNumber).increaseReplicas(Integer.parseInt(deviceId));
-        BackupService.getInstance().getDisk().setMirrorDevices(mirrorDevices);
+    private void addStoredConfirmation(final String fileId, final int chunkNumber, final String deviceId) {
+        BackupService.getInstance().getDisk().increaseMirrors(fileId, chunkNumber, Integer.parseInt(deviceId));
     }
 
     /**
@@ -610,16 +974,8 @@ public class ChannelsHandler {
      * @param chunkNumber chunk number to add the confirmation
      * @param deviceId    device id that has stored the chunk
      */
-    public synchronized void decreaseStoredConfirmation(final String fileId, final int chunkNumber, final String deviceId){
-        if(!mirrorDevices.containsKey(fileId))
-        {
-            mirrorDevices.put(fileId, new HashMap<>());
-        }
-        Map<Integer, ChunkState> fileReplicasCount = mirrorDevices.get(fileId);
-        if (!fileReplicasCount.containsKey(chunkNumber))
-            fileReplicasCount.put(chunkNumber,new ChunkState(-1,0));
-        fileReplicasCount.get(chunkNumber).decreaseReplicas(Integer.parseInt(deviceId));
-        BackupService.getInstance().getDisk().setMirrorDevices(mirrorDevices);
+    public void decreaseStoredConfirmation(final String fileId, final int chunkNumber, final String deviceId){
+        BackupService.getInstance().getDisk().decreaseMirrors(fileId, chunkNumber, Integer.parseInt(deviceId));
     }
 
     /**
@@ -0,0 +1,477 @@
+package sdis.network;
+
+import sdis.protocol.BackupProtocol;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher of the received messages and of the work they start. Messages are
+ * decoded by the thread of their channel and handled by the shard of their file id,
+ * a single thread with a bounded queue, so the messages of a file are handled one at
+ * a time and in order while those of other files run in parallel. A full shard sheds
+ * MDB messages and makes the other channels wait. Delayed responses run on a scheduler
+ * and longer protocol work on a background stage. Work that finds the stage full is held
+ * back and handed over as the stage finishes its tasks, as that work must not be lost, and
+ * new work waits while too many steps are already waiting for the stage.
+ */
+public class MessageDispatcher {
+
+    /**
+     * System property with the number of shards handling the messages
+     */
+    public static final String SHARDS_PROPERTY = "sdis.dispatch.shards";
+
+    /**
+     * System property with the capacity of the queue of each shard
+     */
+    public static final String QUEUE_PROPERTY = "sdis.dispatch.queue";
+
+    /**
+     * Default capacity of the queue of each shard
+     */
+    private static final int DEFAULT_QUEUE = 1024;
+
+    /**
+     * Number of threads sending delayed responses
+     */
+    private static final int RESPONSE_THREADS = 4;
+
+    /**
+     * Number of threads of the background stage
+     */
+    private static final int BACKGROUND_THREADS = 8;
+
+    /**
+     * Capacity of the queue of the background stage
+     */
+    private static final int BACKGROUND_QUEUE = 256;
+
+    /**
+     * Number of steps waiting for the background stage, delayed, held back or queued, above which new work waits
+     */
+    private static final int MAX_WAITING_STEPS = 1024;
+
+    /**
+     * Time to wait for the stages to finish when shut down, in milliseconds
+     */
+    private static final int SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * Shards handling the messages, chosen by file id
+     */
+    private final Stage[] shards;
+
+    /**
+     * Number of messages handled from each channel
+     */
+    private final Map<ChannelType, AtomicLong> handled;
+
+    /**
+     * Number of messages shed from each channel
+     */
+    private final Map<ChannelType, AtomicLong> shed;
+
+    /**
+     * Scheduler of the delayed responses
+     */
+    private final ScheduledThreadPoolExecutor responses;
+
+    /**
+     * Stage of the longer protocol work
+     */
+    private final Stage background;
+
+    /**
+     * Steps held back while the background stage is full, in the order they are handed over, guarded by itself
+     */
+    private final Queue<Runnable> held;
+
+    /**
+     * Number of steps waiting for the background stage, guarded by held
+     */
+    private int waitingSteps;
+
+    /**
+     * True on the threads running steps of the background stage, whose next steps never wait
+     */
+    private final ThreadLocal<Boolean> stepping;
+
+    /**
+     * Number of times work was held back because the background stage was full
+     */
+    private final AtomicLong heldBack;
+
+    /**
+     * Number of times new work waited for the steps already waiting
+     */
+    private final AtomicLong producerWaits;
+
+    /**
+     * Constructor of MessageDispatcher
+     */
+    public MessageDispatcher() {
+        int count = Math.max(1, Integer.getInteger(SHARDS_PROPERTY, 2 * Runtime.getRuntime().availableProcessors()));
+        int queue = Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE);
+
+        this.shards = new Stage[count];
+        for (int i = 0; i < count; i++)
+            shards[i] = new Stage("shard-" + i, 1, queue);
+
+        this.handled = new EnumMap<>(ChannelType.class);
+        this.shed = new EnumMap<>(ChannelType.class);
+        for (ChannelType type : ChannelType.values()) {
+            handled.put(type, new AtomicLong(0));
+            shed.put(type, new AtomicLong(0));
+        }
+
+        this.responses = new ScheduledThreadPoolExecutor(RESPONSE_THREADS, daemonThreads("responses"));
+        this.background = new Stage("background", BACKGROUND_THREADS, BACKGROUND_QUEUE);
+        this.held = new ArrayDeque<>();
+        this.stepping = ThreadLocal.withInitial(() -> false);
+        this.heldBack = new AtomicLong(0);
+        this.producerWaits = new AtomicLong(0);
+    }
+
+    /**
+     * Dispatch a decoded message to the shard of its file id
+     *
+     * @param channel channel of the message
+     * @param fileId  file id of the message
+     * @param handler handler of the message
+     * @return true if dispatched, false if it was shed
+     */
+    public boolean dispatch(final ChannelType channel, final String fileId, final Runnable handler) {
+        boolean dispatched = shardOf(fileId).submit(() -> {
+            handler.run();
+            handled.get(channel).incrementAndGet();
+        }, channel == ChannelType.MDB);
+        if (!dispatched)
+            shed.get(channel).incrementAndGet();
+        return dispatched;
+    }
+
+    /**
+     * Continue handling a message of a file id after a delay, on the shard of the file id,
+     * so that the shard handles other messages meanwhile. The continuation is shed if the
+     * shard is full when the delay ends, running the given clean up instead.
+     *
+     * @param fileId file id of the message
+     * @param task   rest of the handling
+     * @param shed   clean up of the handling if the rest is shed, run on the scheduler
+     * @param delay  delay in milliseconds
+     */
+    public void defer(final String fileId, final Runnable task, final Runnable shed, final long delay) {
+        responses.schedule(() -> {
+            if (!shardOf(fileId).submit(task, true))
+                shed.run();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a response after a random delay, so that peers do not all respond at once
+     *
+     * @param send sender of the response, which must not block for long
+     */
+    public void respond(final Runnable send) {
+        responses.schedule(send, (long) (Math.random() * BackupProtocol.MAX_RESPONSE_DELAY), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run some protocol work on the background stage after a delay. While the stage is full
+     * the work is held back and handed over as the stage finishes its tasks, so it is only
+     * lost on shut down. New work waits while too many steps are already waiting for the
+     * stage, the next steps of the work running on the stage never wait. The work should
+     * not block for long, waits between its steps are scheduled again.
+     *
+     * @param task  protocol work to run
+     * @param delay delay in milliseconds
+     * @throws RejectedExecutionException if the dispatcher was shut down or the wait interrupted
+     */
+    public void schedule(final Runnable task, final long delay) {
+        admit(!stepping.get());
+        try {
+            responses.schedule(() -> handOver(step(task)), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Count a step waiting for the background stage, first waiting for the steps already waiting if asked to
+     *
+     * @param wait true to wait while too many steps are waiting
+     * @throws RejectedExecutionException if the dispatcher was shut down or the wait interrupted
+     */
+    private void admit(final boolean wait) {
+        synchronized (held) {
+            if (wait && waitingSteps >= MAX_WAITING_STEPS)
+                producerWaits.incrementAndGet();
+            while (wait && waitingSteps >= MAX_WAITING_STEPS) {
+                if (responses.isShutdown())
+                    throw new RejectedExecutionException("Dispatcher shut down");
+                try {
+                    held.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for the background stage");
+                }
+            }
+            waitingSteps++;
+        }
+    }
+
+    /**
+     * Stop counting a step waiting for the background stage, once it runs
+     */
+    private void release() {
+        synchronized (held) {
+            waitingSteps--;
+            held.notifyAll();
+        }
+    }
+
+    /**
+     * Wrap some protocol work as a step of the background stage, which hands over the held
+     * back steps once it is done
+     *
+     * @param task protocol work to run
+     * @return step of the background stage
+     */
+    private Runnable step(final Runnable task) {
+        return () -> {
+            release();
+            stepping.set(true);
+            try {
+                task.run();
+            } finally {
+                stepping.set(false);
+                handOver(null);
+            }
+        };
+    }
+
+    /**
+     * Queue a step on the background stage, after the steps held back, holding it back too
+     * if the stage is full
+     *
+     * @param step step to queue, null to only hand over the held back steps
+     */
+    private void handOver(final Runnable step) {
+        synchronized (held) {
+            while (!held.isEmpty() && background.offer(held.peek()))
+                held.remove();
+            if (step == null || (held.isEmpty() && background.offer(step)))
+                return;
+            if (background.executor.isShutdown())
+                return;
+            held.add(step);
+            heldBack.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of messages waiting in the queues of the shards
+     *
+     * @return number of waiting messages
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Stage shard : shards)
+            depth += shard.executor.getQueue().size();
+        return depth;
+    }
+
+    /**
+     * Print the metrics of every channel and stage
+     */
+    public void printInfo() {
+        for (ChannelType type : ChannelType.values())
+            System.out.println(type + " - handled:" + handled.get(type).get() + " shed:" + shed.get(type).get());
+        for (Stage shard : shards)
+            shard.printInfo();
+        background.printInfo();
+        synchronized (held) {
+            System.out.println("background - held back:" + heldBack.get() + " holding:" + held.size()
+                    + " waiting steps:" + waitingSteps + " producer waits:" + producerWaits.get());
+        }
+        System.out.println("responses - pending:" + responses.getQueue().size() + " sent:" + responses.getCompletedTaskCount());
+    }
+
+    /**
+     * Shut down the stages, letting them finish the work already queued
+     */
+    public void shutdown() {
+        for (Stage shard : shards)
+            shard.executor.shutdown();
+        responses.shutdown();
+        background.executor.shutdown();
+        synchronized (held) {
+            held.notifyAll();
+        }
+        try {
+            for (Stage shard : shards)
+                shard.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            responses.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignore) {
+        }
+        background.executor.shutdownNow();
+    }
+
+    /**
+     * Get the shard of a file id
+     *
+     * @param fileId file id of a message
+     * @return shard handling the messages of the file id
+     */
+    private Stage shardOf(final String fileId) {
+        return shards[Math.floorMod(fileId.hashCode(), shards.length)];
+    }
+
+    /**
+     * Get a factory of named daemon threads
+     *
+     * @param name name of the threads
+     * @return thread factory
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Stage of the dispatcher, a pool of threads with a bounded queue
+     */
+    private static class Stage {
+
+        /**
+         * Name of the stage
+         */
+        private final String name;
+
+        /**
+         * Executor of the stage
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * Number of tasks handled
+         */
+        private final AtomicLong handled;
+
+        /**
+         * Number of tasks shed
+         */
+        private final AtomicLong shedTasks;
+
+        /**
+         * Deepest the queue has been
+         */
+        private final AtomicInteger maxDepth;
+
+        /**
+         * Constructor of Stage
+         *
+         * @param name    name of the stage
+         * @param threads number of threads
+         * @param queue   capacity of the queue
+         */
+        private Stage(final String name, final int threads, final int queue) {
+            this.name = name;
+            this.handled = new AtomicLong(0);
+            this.shedTasks = new AtomicLong(0);
+            this.maxDepth = new AtomicInteger(0);
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queue), daemonThreads(name), new ThreadPoolExecutor.AbortPolicy());
+            this.executor.prestartAllCoreThreads();
+        }
+
+        /**
+         * Submit a task to the stage
+         *
+         * @param task task to be run
+         * @param shed true to shed the task when the queue is full, false to wait for room
+         * @return true if submitted, false if it was shed
+         */
+        private boolean submit(final Runnable task, final boolean shed) {
+            Runnable guarded = guard(task);
+            try {
+                executor.execute(guarded);
+            } catch (RejectedExecutionException e) {
+                if (shed || executor.isShutdown() || !waitForRoom(guarded)) {
+                    shedTasks.incrementAndGet();
+                    return false;
+                }
+            }
+            maxDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+            return true;
+        }
+
+        /**
+         * Offer a task to the stage, without counting it as shed when the queue is full
+         *
+         * @param task task to be run
+         * @return true if queued, false if the queue is full or the stage shut down
+         */
+        private boolean offer(final Runnable task) {
+            try {
+                executor.execute(guard(task));
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+            maxDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+            return true;
+        }
+
+        /**
+         * Guard a task, so that an error does not end the thread running it
+         *
+         * @param task task to be run
+         * @return guarded task
+         */
+        private Runnable guard(final Runnable task) {
+            return () -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println(name + ": Error while handling a message ! " + e);
+                }
+                handled.incrementAndGet();
+            };
+        }
+
+        /**
+         * Wait for room in the queue of the stage, the channel stops reading meanwhile
+         *
+         * @param task task to be queued
+         * @return true if queued, false if interrupted
+         */
+        private boolean waitForRoom(final Runnable task) {
+            try {
+                executor.getQueue().put(task);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Print the metrics of the stage
+         */
+        private void printInfo() {
+            System.out.println(name + " - queued:" + executor.getQueue().size() + " max queued:" + maxDepth.get()
+                    + " handled:" + handled.get() + " shed:" + shedTasks.get());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package sdis.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket pacing the messages sent to a channel. Each message takes its length
+ * in tokens, which refill at the rate of the pacer up to a small burst. In the adaptive
+ * mode the rate grows by a fixed step for every rate worth of confirmed bytes and halves,
+ * at most once per second, when a message has to be sent again.
+ */
+public class MessagePacer {
+
+    /**
+     * System property with the rate of the pacer, in bytes per second
+     */
+    public static final String RATE_PROPERTY = "sdis.pacing.rate";
+
+    /**
+     * Default rate of the pacer, in bytes per second
+     */
+    private static final long DEFAULT_RATE = 4 * 1024 * 1024;
+
+    /**
+     * Lowest rate of the adaptive mode, one chunk per second
+     */
+    private static final double MIN_RATE = Channel.MAX_SIZE_PACKET;
+
+    /**
+     * Highest rate of the adaptive mode, as a multiple of the configured rate
+     */
+    private static final int MAX_RATE_FACTOR = 16;
+
+    /**
+     * Growth of the rate in the adaptive mode for every rate worth of confirmed bytes, in bytes per second
+     */
+    private static final double ADDITIVE_INCREASE = 256 * 1024;
+
+    /**
+     * Minimum time between two decreases of the rate, in nanoseconds
+     */
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Time worth of tokens that may be used at once, in nanoseconds
+     */
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Mode of the pacer
+     */
+    private final PacingMode mode;
+
+    /**
+     * Highest rate of the pacer, in bytes per second
+     */
+    private final double maxRate;
+
+    /**
+     * Current rate of the pacer, in bytes per second
+     */
+    private double rate;
+
+    /**
+     * Time at which the tokens of the messages already paced have been refilled, in nanoseconds
+     */
+    private long nextFree;
+
+    /**
+     * Time of the last decrease of the rate, in nanoseconds
+     */
+    private long lastDecrease;
+
+    /**
+     * Time of the first message paced, in nanoseconds, 0 if none
+     */
+    private long firstSend;
+
+    /**
+     * Time of the last confirmation, in nanoseconds
+     */
+    private long lastConfirmation;
+
+    /**
+     * Number of bytes sent
+     */
+    private final AtomicLong sentBytes;
+
+    /**
+     * Number of bytes confirmed by the peers
+     */
+    private final AtomicLong confirmedBytes;
+
+    /**
+     * Number of times the rate was decreased
+     */
+    private final AtomicLong decreases;
+
+    /**
+     * Constructor of MessagePacer
+     *
+     * @param mode mode of the pacer
+     * @param rate rate of the pacer, in bytes per second
+     */
+    public MessagePacer(final PacingMode mode, final long rate) {
+        this.mode = mode;
+        this.rate = Math.max(MIN_RATE, rate);
+        this.maxRate = MAX_RATE_FACTOR * this.rate;
+        this.nextFree = System.nanoTime();
+        this.sentBytes = new AtomicLong(0);
+        this.confirmedBytes = new AtomicLong(0);
+        this.decreases = new AtomicLong(0);
+    }
+
+    /**
+     * Get a pacer as configured by the {@link PacingMode#PACING_PROPERTY} and {@link #RATE_PROPERTY} system properties
+     *
+     * @return configured pacer
+     */
+    public static MessagePacer fromProperties() {
+        return new MessagePacer(PacingMode.fromProperties(), Long.getLong(RATE_PROPERTY, DEFAULT_RATE));
+    }
+
+    /**
+     * Wait until a message may be sent
+     *
+     * @param bytes length of the message
+     */
+    public void acquire(final int bytes) {
+        long wait = take(bytes);
+        if (wait > 0)
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+    }
+
+    /**
+     * Take the tokens of a message without waiting for them, the message must then be sent after the returned time
+     *
+     * @param bytes length of the message
+     * @return time to wait until the message may be sent, in nanoseconds
+     */
+    public long take(final int bytes) {
+        sentBytes.addAndGet(bytes);
+        long wait = reserve(bytes);
+        return mode == PacingMode.NONE ? 0 : Math.max(0, wait);
+    }
+
+    /**
+     * Take the tokens of a message
+     *
+     * @param bytes length of the message
+     * @return time to wait until the message may be sent, in nanoseconds
+     */
+    private synchronized long reserve(final int bytes) {
+        long now = System.nanoTime();
+        if (firstSend == 0)
+            firstSend = now;
+
+        // Tokens left unused refill the bucket only up to the burst
+        if (nextFree < now - BURST)
+            nextFree = now - BURST;
+        long wait = nextFree - now;
+        nextFree += (long) (bytes * 1e9 / rate);
+        return wait;
+    }
+
+    /**
+     * Record that a message sent once was confirmed by enough peers
+     *
+     * @param bytes length of the message
+     */
+    public synchronized void confirmed(final int bytes) {
+        confirmedBytes.addAndGet(bytes);
+        lastConfirmation = System.nanoTime();
+        if (mode == PacingMode.ADAPTIVE)
+            rate = Math.min(maxRate, rate + ADDITIVE_INCREASE * bytes / rate);
+    }
+
+    /**
+     * Record that a message was not confirmed by enough peers and has to be sent again
+     */
+    public synchronized void congested() {
+        long now = System.nanoTime();
+        if (mode != PacingMode.ADAPTIVE || now - lastDecrease < DECREASE_INTERVAL)
+            return;
+
+        lastDecrease = now;
+        rate = Math.max(MIN_RATE, rate / 2);
+        decreases.incrementAndGet();
+    }
+
+    /**
+     * Get the current rate of the pacer
+     *
+     * @return rate in bytes per second
+     */
+    public synchronized long getRate() {
+        return (long) rate;
+    }
+
+    /**
+     * Get the rate of the bytes confirmed since the first message was sent
+     *
+     * @return goodput in bytes per second, 0 if nothing was confirmed
+     */
+    public synchronized long getGoodput() {
+        if (firstSend == 0 || lastConfirmation <= firstSend)
+            return 0;
+        return (long) (confirmedBytes.get() * 1e9 / (lastConfirmation - firstSend));
+    }
+
+    /**
+     * Print the metrics of the pacer
+     */
+    public void printInfo() {
+        System.out.println("MDB pacing " + mode + " - rate:" + getRate() / 1024 + "KiB/s sent:" + sentBytes.get()
+                + "b confirmed:" + confirmedBytes.get() + "b goodput:" + getGoodput() / 1024 + "KiB/s decreases:" + decreases.get());
+    }
+}
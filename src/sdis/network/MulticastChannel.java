@@ -1,16 +1,41 @@
 package sdis.network;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketTimeoutException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Multicast Connection
+ * Multicast Connection. Packets are received into pooled direct buffers,
+ * packets that arrive while every buffer is in use are dropped.
  */
 public class MulticastChannel implements Channel {
 
+    /**
+     * System property with the name of the network interface to join the multicast groups on
+     */
+    public static final String INTERFACE_PROPERTY = "sdis.multicast.interface";
+
+    /**
+     * System property with the number of buffers each channel may receive into at once
+     */
+    public static final String BUFFERS_PROPERTY = "sdis.multicast.buffers";
+
+    /**
+     * Default number of buffers of each channel
+     */
+    private static final int DEFAULT_BUFFERS = 64;
+
+    /**
+     * Time to wait for a packet before giving up a read, in milliseconds
+     */
+    private static final int READ_TIMEOUT = 1000;
+
     /**
      * Multicast Channel type
      */
@@ -27,19 +52,49 @@ public class MulticastChannel implements Channel {
     private final int port;
 
     /**
-     * Multicast socket
+     * Datagram channel joined to the multicast group
+     */
+    private final DatagramChannel datagramChannel;
+
+    /**
+     * Datagram channel messages are sent through, blocking unlike the one packets are received from
+     */
+    private final DatagramChannel sendChannel;
+
+    /**
+     * Membership of the multicast group
+     */
+    private final MembershipKey membership;
+
+    /**
+     * Selector to wait for packets with a timeout
+     */
+    private final Selector selector;
+
+    /**
+     * Pool of the buffers packets are received into
+     */
+    private final BufferPool pool;
+
+    /**
+     * Buffer packets are received into when every pooled buffer is in use, to drop them
+     */
+    private final ByteBuffer dropBuffer;
+
+    /**
+     * Number of packets received
      */
-    private final MulticastSocket multiCastSocket;
+    private final AtomicLong receivedPackets;
 
     /**
-     * Buffer where the data received will be written to
+     * Number of bytes received
      */
-    private byte[] buffer;
+    private final AtomicLong receivedBytes;
 
     /**
-     * Data packet to received the data from the channel
+     * Number of packets dropped because every buffer was in use
      */
-    private DatagramPacket dataPacket;
+    private final AtomicLong droppedPackets;
 
     /**
      * Constructor of MulticastChannel
@@ -55,8 +110,57 @@ public class MulticastChannel implements Channel {
         this.port = port;
 
         // Join the multicast channel
-        this.multiCastSocket = new MulticastSocket(port);
-        this.multiCastSocket.joinGroup(address);
+        NetworkInterface networkInterface = getNetworkInterface();
+        this.datagramChannel = DatagramChannel.open(address instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                .bind(new InetSocketAddress(port))
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+                .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        this.membership = datagramChannel.join(address, networkInterface);
+        this.sendChannel = DatagramChannel.open(address instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+                .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+        this.datagramChannel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.datagramChannel.register(selector, SelectionKey.OP_READ);
+
+        this.pool = new BufferPool(MAX_SIZE_PACKET, Integer.getInteger(BUFFERS_PROPERTY, DEFAULT_BUFFERS));
+        this.dropBuffer = ByteBuffer.allocateDirect(MAX_SIZE_PACKET);
+        this.receivedPackets = new AtomicLong(0);
+        this.receivedBytes = new AtomicLong(0);
+        this.droppedPackets = new AtomicLong(0);
+    }
+
+    /**
+     * Get the network interface to join the multicast groups on, the one named by the
+     * {@link #INTERFACE_PROPERTY} system property or else the first one up that supports multicast
+     *
+     * @return network interface
+     * @throws IOException no network interface supports multicast
+     */
+    private static NetworkInterface getNetworkInterface() throws IOException {
+        String name = System.getProperty(INTERFACE_PROPERTY);
+        if (name != null) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface == null)
+                throw new IOException("Unknown network interface " + name);
+            return networkInterface;
+        }
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast())
+                continue;
+            if (!networkInterface.isLoopback())
+                return networkInterface;
+            loopback = networkInterface;
+        }
+        if (loopback == null)
+            throw new IOException("No network interface supports multicast");
+        return loopback;
     }
 
     /**
@@ -87,20 +191,34 @@ public class MulticastChannel implements Channel {
     }
 
     /**
-     * Read a packet from the multicast channel
+     * Read a packet from the multicast channel, into a pooled buffer
      *
-     * @return DatagramPacket
+     * @return Packet, null if none arrived in time or it was dropped
      */
     public Object read() {
-        // Cached items
-        this.buffer = new byte[MAX_SIZE_PACKET];
-        this.dataPacket = new DatagramPacket(buffer, buffer.length);
         try {
-            multiCastSocket.setSoTimeout(1000); // Wait one second to read data
-            multiCastSocket.receive(dataPacket);
-            return dataPacket;
-        } catch (SocketTimeoutException e) {
-            return null;
+            if (selector.select(READ_TIMEOUT) == 0)
+                return null;
+            selector.selectedKeys().clear();
+
+            ByteBuffer buffer = pool.acquire();
+            if (buffer == null) {
+                // Every buffer is still being handled, drop the packet
+                dropBuffer.clear();
+                if (datagramChannel.receive(dropBuffer) != null)
+                    droppedPackets.incrementAndGet();
+                return null;
+            }
+
+            SocketAddress sender = datagramChannel.receive(buffer);
+            if (sender == null) {
+                pool.release(buffer);
+                return null;
+            }
+            buffer.flip();
+            receivedPackets.incrementAndGet();
+            receivedBytes.addAndGet(buffer.remaining());
+            return new Packet(buffer, ((InetSocketAddress) sender).getAddress(), pool);
         } catch (IOException e) {
             System.out.println(type + ": Error while reading. " + e.getMessage());
             return null;
@@ -115,7 +233,7 @@ public class MulticastChannel implements Channel {
      */
     public boolean write(final byte[] message) {
         try {
-            multiCastSocket.send(new DatagramPacket(message, message.length, address, port));
+            sendChannel.send(ByteBuffer.wrap(message), new InetSocketAddress(address, port));
             return true;
         } catch (IOException e) {
             System.out.println(type + ": Error while writing. " + e.getMessage());
@@ -123,15 +241,44 @@ public class MulticastChannel implements Channel {
         }
     }
 
+    /**
+     * Get the number of packets received
+     *
+     * @return number of packets received
+     */
+    public long getReceivedPackets() {
+        return receivedPackets.get();
+    }
+
+    /**
+     * Get the number of bytes received
+     *
+     * @return number of bytes received
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Get the number of packets dropped because every buffer was in use
+     *
+     * @return number of packets dropped
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
     /**
      * Close the multicast socket channel
      */
     public void close() {
+        membership.drop();
         try {
-            multiCastSocket.leaveGroup(address);
+            selector.close();
+            datagramChannel.close();
+            sendChannel.close();
         } catch (IOException e) {
-            System.out.println(type + ": Error while leaving group. " + e.getMessage());
+            System.out.println(type + ": Error while closing. " + e.getMessage());
         }
-        multiCastSocket.close();
     }
-}
\ No newline at end of file
+}
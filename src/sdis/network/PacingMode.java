@@ -0,0 +1,43 @@
+package sdis.network;
+
+/**
+ * Pacing of the messages sent to the MDB channel
+ */
+public enum PacingMode {
+
+    /**
+     * Messages are sent as soon as they are ready
+     */
+    NONE,
+
+    /**
+     * Messages are sent at the configured rate
+     */
+    FIXED,
+
+    /**
+     * Messages are sent at a rate that starts at the configured one, grows while the chunks
+     * are confirmed and halves when they have to be sent again
+     */
+    ADAPTIVE;
+
+    /**
+     * System property with the name of the pacing mode
+     */
+    public static final String PACING_PROPERTY = "sdis.pacing";
+
+    /**
+     * Get the mode configured by the {@link #PACING_PROPERTY} system property
+     *
+     * @return configured mode, ADAPTIVE by default
+     */
+    public static PacingMode fromProperties() {
+        String name = System.getProperty(PACING_PROPERTY, ADAPTIVE.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown pacing mode " + name + " ! Using " + ADAPTIVE);
+            return ADAPTIVE;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package sdis.network;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Packet received into a pooled buffer, which must be released once the packet is handled
+ */
+public class Packet {
+
+    /**
+     * Data of the packet, from position to limit
+     */
+    private final ByteBuffer data;
+
+    /**
+     * Address of the sender
+     */
+    private final InetAddress address;
+
+    /**
+     * Pool of the buffer of the packet
+     */
+    private final BufferPool pool;
+
+    /**
+     * Constructor of Packet
+     *
+     * @param data    data of the packet
+     * @param address address of the sender
+     * @param pool    pool of the buffer of the packet
+     */
+    Packet(final ByteBuffer data, final InetAddress address, final BufferPool pool) {
+        this.data = data;
+        this.address = address;
+        this.pool = pool;
+    }
+
+    /**
+     * Get the data of the packet, as a read-only view valid until the packet is released
+     *
+     * @return data of the packet
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the address of the sender
+     *
+     * @return address of the sender
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Release the buffer of the packet
+     */
+    public void release() {
+        pool.release(data);
+    }
+}
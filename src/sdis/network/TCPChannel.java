@@ -1,17 +1,45 @@
 package sdis.network;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * TCP Connection
+ * TCP Connection. Peers keep their connections open and stream messages over them,
+ * each framed by its length, so a single selector reads every connection.
  */
 public class TCPChannel implements Channel {
 
+    /**
+     * Size of the length that frames each message
+     */
+    static final int LENGTH_SIZE = 4;
+
+    /**
+     * Maximum length of a framed message, longer ones close their connection
+     */
+    static final int MAX_FRAME = 2 * MAX_SIZE_PACKET;
+
+    /**
+     * Time to wait for a message before giving up a read, in milliseconds
+     */
+    private static final int READ_TIMEOUT = 1000;
+
+    /**
+     * Time after which a connection without messages is closed, in milliseconds,
+     * longer than the time the senders keep their idle connections
+     */
+    private static final long IDLE_TIMEOUT = 2 * TCPConnectionPool.IDLE_TIMEOUT;
+
     /**
      * Multicast Channel type
      */
@@ -30,12 +58,27 @@ public class TCPChannel implements Channel {
     /**
      * Server socket
      */
-    private final ServerSocket channelSocket;
+    private final ServerSocketChannel channelSocket;
+
+    /**
+     * Selector of the server socket and of the connections
+     */
+    private final Selector selector;
+
+    /**
+     * Messages read and not yet returned
+     */
+    private final Queue<byte[]> received;
 
     /**
-     * Buffer where the data received will be written to
+     * Number of connections accepted
      */
-    private byte[] buffer;
+    private final AtomicLong acceptedConnections;
+
+    /**
+     * Number of messages received
+     */
+    private final AtomicLong receivedMessages;
 
     /**
      * Constructor of MulticastChannel
@@ -47,9 +90,17 @@ public class TCPChannel implements Channel {
         this.type = type;
 
         // Create server socket
-        this.channelSocket = new ServerSocket(0);
-        this.address = channelSocket.getInetAddress();
-        this.port = channelSocket.getLocalPort();
+        this.channelSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        this.address = channelSocket.socket().getInetAddress();
+        this.port = channelSocket.socket().getLocalPort();
+
+        this.channelSocket.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channelSocket.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.received = new ArrayDeque<>();
+        this.acceptedConnections = new AtomicLong(0);
+        this.receivedMessages = new AtomicLong(0);
     }
 
     /**
@@ -80,32 +131,109 @@ public class TCPChannel implements Channel {
     }
 
     /**
-     * Read a packet from the channel
+     * Read a message from any connection of the channel
      *
-     * @return DatagramPacket
+     * @return data of the message, null if none arrived in time
      */
     public Object read() {
-        // Cached items
-        final ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-        this.buffer = new byte[MAX_SIZE_PACKET];
+        if (!received.isEmpty())
+            return received.poll();
+
         try {
-            channelSocket.setSoTimeout(1); // Wait one second to read data
-            Socket socket = channelSocket.accept();
-            int bytesRead;
-            do {
-                bytesRead = socket.getInputStream().read(buffer);
-                if (bytesRead != -1)
-                    byteArray.write(buffer, 0, bytesRead);
-            } while (bytesRead != -1);
-            socket.close();
-            if (byteArray.size() <= 0)
-                return null;
-            return byteArray.toByteArray();
-        } catch (SocketTimeoutException e) {
-            return null;
+            selector.select(READ_TIMEOUT);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable())
+                    accept();
+                else if (key.isReadable())
+                    readFrames(key);
+            }
+            closeIdle();
         } catch (IOException e) {
             System.out.println(type + ": Error while reading. " + e.getMessage());
-            return null;
+        }
+        return received.poll();
+    }
+
+    /**
+     * Accept the pending connections
+     *
+     * @throws IOException error while accepting
+     */
+    private void accept() throws IOException {
+        SocketChannel connection;
+        while ((connection = channelSocket.accept()) != null) {
+            connection.configureBlocking(false);
+            connection.register(selector, SelectionKey.OP_READ, new Frame());
+            acceptedConnections.incrementAndGet();
+        }
+    }
+
+    /**
+     * Read the messages available on a connection, closing it at its end or on a malformed frame
+     *
+     * @param key key of the connection
+     */
+    private void readFrames(final SelectionKey key) {
+        SocketChannel connection = (SocketChannel) key.channel();
+        Frame frame = (Frame) key.attachment();
+        frame.lastActivity = System.currentTimeMillis();
+        try {
+            while (true) {
+                ByteBuffer target = frame.body == null ? frame.length : frame.body;
+                int read = connection.read(target);
+                if (read < 0) {
+                    closeConnection(key);
+                    return;
+                }
+                if (target.hasRemaining())
+                    return;
+
+                if (frame.body == null) {
+                    int length = frame.length.flip().getInt();
+                    if (length <= 0 || length > MAX_FRAME) {
+                        System.out.println(type + ": Invalid message length " + length + " !");
+                        closeConnection(key);
+                        return;
+                    }
+                    frame.body = ByteBuffer.allocate(length);
+                } else {
+                    received.add(frame.body.array());
+                    receivedMessages.incrementAndGet();
+                    frame.body = null;
+                    frame.length.clear();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(type + ": Error while reading a connection. " + e.getMessage());
+            closeConnection(key);
+        }
+    }
+
+    /**
+     * Close the connections that have been idle for too long
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys())
+            if (key.attachment() instanceof Frame && now - ((Frame) key.attachment()).lastActivity > IDLE_TIMEOUT)
+                closeConnection(key);
+    }
+
+    /**
+     * Close a connection
+     *
+     * @param key key of the connection
+     */
+    private void closeConnection(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
         }
     }
 
@@ -120,13 +248,55 @@ public class TCPChannel implements Channel {
     }
 
     /**
-     * Close the tcp socket channel
+     * Get the number of connections accepted
+     *
+     * @return number of connections accepted
+     */
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    /**
+     * Get the number of messages received
+     *
+     * @return number of messages received
+     */
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    /**
+     * Close the tcp socket channel and its connections
      */
     public void close() {
         try {
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+            selector.close();
             channelSocket.close();
         } catch (IOException e) {
             System.out.println(type + ": Error while closing tcp channel. " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Message being read from a connection
+     */
+    private static class Frame {
+
+        /**
+         * Length of the message
+         */
+        private final ByteBuffer length = ByteBuffer.allocate(LENGTH_SIZE);
+
+        /**
+         * Data of the message, null while its length is being read
+         */
+        private ByteBuffer body;
+
+        /**
+         * Time of the last data read from the connection, in milliseconds
+         */
+        private long lastActivity = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,143 @@
+package sdis.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of the connections to the TCP channels of other peers, one per peer. Messages
+ * are framed by their length and written one at a time on each connection, which is
+ * kept open for the next messages and reopened when it fails or has been idle.
+ */
+public class TCPConnectionPool {
+
+    /**
+     * Time after which an idle connection is reopened before being used, in milliseconds
+     */
+    static final long IDLE_TIMEOUT = 30000;
+
+    /**
+     * Time to wait for a connection to be established, in milliseconds
+     */
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    /**
+     * Connection to each peer
+     */
+    private final Map<InetSocketAddress, Connection> connections;
+
+    /**
+     * Constructor of TCPConnectionPool
+     */
+    public TCPConnectionPool() {
+        this.connections = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Send a message to a peer, framed by its length
+     *
+     * @param destination address of the TCP channel of the peer
+     * @param header      header of the message
+     * @param body        body of the message
+     * @return true if sent, false otherwise
+     */
+    public boolean send(final InetSocketAddress destination, final byte[] header, final ByteBuffer body) {
+        ByteBuffer view = body.duplicate();
+        ByteBuffer prefix = ByteBuffer.allocate(TCPChannel.LENGTH_SIZE + header.length);
+        prefix.putInt(header.length + view.remaining()).put(header).flip();
+
+        Connection connection = connections.computeIfAbsent(destination, Connection::new);
+        synchronized (connection) {
+            // A connection kept from before may have been closed by the peer, retry once on a new one
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    connection.write(new ByteBuffer[]{prefix.duplicate(), view.duplicate()});
+                    return true;
+                } catch (IOException e) {
+                    connection.close();
+                    if (attempt == 1)
+                        System.out.println("Failed to send to " + destination + " ! " + e.getMessage());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Close every connection
+     */
+    public void close() {
+        for (Connection connection : connections.values())
+            synchronized (connection) {
+                connection.close();
+            }
+        connections.clear();
+    }
+
+    /**
+     * Connection to a peer, used by one sender at a time
+     */
+    private static class Connection {
+
+        /**
+         * Address of the TCP channel of the peer
+         */
+        private final InetSocketAddress destination;
+
+        /**
+         * Socket of the connection, null while closed
+         */
+        private SocketChannel socket;
+
+        /**
+         * Time the connection was last used, in milliseconds
+         */
+        private long lastUsed;
+
+        /**
+         * Constructor of Connection
+         *
+         * @param destination address of the TCP channel of the peer
+         */
+        private Connection(final InetSocketAddress destination) {
+            this.destination = destination;
+        }
+
+        /**
+         * Write buffers to the peer, opening the connection if needed
+         *
+         * @param buffers buffers to be written, entirely
+         * @throws IOException error while connecting or writing
+         */
+        private void write(final ByteBuffer[] buffers) throws IOException {
+            long now = System.currentTimeMillis();
+            if (socket != null && now - lastUsed > IDLE_TIMEOUT)
+                close();
+            if (socket == null) {
+                socket = SocketChannel.open();
+                socket.socket().setTcpNoDelay(true);
+                socket.socket().connect(destination, CONNECT_TIMEOUT);
+            }
+
+            while (buffers[0].hasRemaining() || buffers[buffers.length - 1].hasRemaining())
+                socket.write(buffers);
+            lastUsed = now;
+        }
+
+        /**
+         * Close the connection
+         */
+        private void close() {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+}
@@ -2,16 +2,26 @@ package sdis.protocol;
 
 import sdis.BackupService;
 import sdis.network.ChannelType;
+import sdis.network.MessageDispatcher;
+import sdis.network.PacingMode;
 import sdis.storage.Chunk;
+import sdis.storage.ChunkCodec;
 import sdis.utils.Utilities;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Backup chunk protocol
  */
 public class BackupChunk implements BackupProtocol, Runnable {
 
+    /**
+     * System property to ask the peers for the content of a chunk before sending its body
+     */
+    public static final String HAVE_PROPERTY = "sdis.have";
+
     /**
      * Initial waiting time for responses in millis
      */
@@ -23,9 +33,9 @@ public class BackupChunk implements BackupProtocol, Runnable {
     private static final int MAX_ATTEMPTS = 5;
 
     /**
-     * Maximum Threads Running
+     * Maximum Threads Running, more when the rate they send at is paced by the MDB pacer
      */
-    private static Semaphore sem = new Semaphore(10);
+    private static Semaphore sem = new Semaphore(PacingMode.fromProperties() == PacingMode.NONE ? 10 : 128);
     /**
      * Chunk to be backed up
      */
@@ -36,6 +46,21 @@ public class BackupChunk implements BackupProtocol, Runnable {
      */
     private boolean enhanced;
 
+    /**
+     * Number of fragments of the stripe of the chunk when it is an erasure coded fragment, 0 otherwise
+     */
+    private final int stripeWidth;
+
+    /**
+     * Codec of the body of the message, null until the body is encoded
+     */
+    private ChunkCodec codec;
+
+    /**
+     * Body of the message, the data of the chunk as encoded by the codec
+     */
+    private ByteBuffer body;
+
     /**
      * Constructor of BackupChunk
      *
@@ -52,8 +77,21 @@ public class BackupChunk implements BackupProtocol, Runnable {
      * @param enhanced true to use the enhanced protocol, false otherwise
      */
     public BackupChunk(final Chunk chunk, boolean enhanced) {
+        this(chunk, enhanced, 0);
+    }
+
+    /**
+     * Constructor of BackupChunk for an erasure coded fragment, that peers
+     * only store if they do not keep another fragment of its stripe
+     *
+     * @param chunk       fragment to be backed up
+     * @param enhanced    true to use the enhanced protocol, false otherwise
+     * @param stripeWidth number of fragments of the stripe, 0 if not a fragment
+     */
+    public BackupChunk(final Chunk chunk, boolean enhanced, final int stripeWidth) {
         this.chunk = chunk;
         this.enhanced = enhanced;
+        this.stripeWidth = stripeWidth;
     }
 
     /**
@@ -68,9 +106,11 @@ public class BackupChunk implements BackupProtocol, Runnable {
         }
         int currentWaitingTime = INITIAL_WAITING_TIME;
         int currentAttempt = 1;
-        boolean finished = false;
 
-        byte[] message = getMessage();
+        // Only send the body if the peers that already hold the content are not enough
+        boolean finished = Boolean.getBoolean(HAVE_PROPERTY) && queryHolders();
+
+        byte[] message = finished ? null : getMessage();
 
         while (!finished) {
             // Listen for stored confirmations
@@ -88,11 +128,10 @@ public class BackupChunk implements BackupProtocol, Runnable {
             }
 
             // Check number confirmations
-            int numberConfirmations = BackupService.getInstance().getChannelsHandler().getStoredConfirmations(chunk.getFileID(), chunk.getChunkNo());
-            if (BackupService.getInstance().getDisk().hasChunk(chunk.getFileID(), chunk.getChunkNo()))
-                numberConfirmations++;
-            if (numberConfirmations < chunk.getState().getMinReplicationDegree()) {
+            if (getConfirmations() < chunk.getState().getMinReplicationDegree()) {
                 currentAttempt++;
+                // The peers did not keep up, slow down the sending of the chunks
+                BackupService.getInstance().getChannelsHandler().getPacer().congested();
 
                 if (currentAttempt > MAX_ATTEMPTS) {
                     System.out.println("Could not get the minimum replication degree for the chunk(" + chunk.getChunkNo() + ")!");
@@ -103,6 +142,7 @@ public class BackupChunk implements BackupProtocol, Runnable {
                 }
             } else {
                 //System.out.println("Chunk " + chunk.getChunkNo() + " got the minimum replication degree desired ( " + numberConfirmations + "/" + chunk.getState().getMinReplicationDegree() + ")!");
+                BackupService.getInstance().getChannelsHandler().getPacer().confirmed(message.length);
                 finished = true;
             }
 
@@ -112,6 +152,130 @@ public class BackupChunk implements BackupProtocol, Runnable {
         sem.release();
     }
 
+    /**
+     * Back up the chunk without blocking a thread while waiting for the confirmations. The messages
+     * are sent on the background stage of the dispatcher and the waits are scheduled on it.
+     *
+     * @param dispatcher dispatcher running the steps of the backup
+     * @param done       run once the chunk is backed up or the attempts are over
+     */
+    public void backUp(final MessageDispatcher dispatcher, final Runnable done) {
+        dispatcher.schedule(() -> {
+            // Only send the body if the peers that already hold the content are not enough
+            if (!Boolean.getBoolean(HAVE_PROPERTY)) {
+                attempt(dispatcher, 1, INITIAL_WAITING_TIME, done);
+                return;
+            }
+            encode();
+            new HaveChunk(chunk, Utilities.sha256(body), codec).run();
+            dispatcher.schedule(() -> {
+                if (getConfirmations() >= chunk.getState().getMinReplicationDegree())
+                    done.run();
+                else
+                    attempt(dispatcher, 1, INITIAL_WAITING_TIME, done);
+            }, INITIAL_WAITING_TIME);
+        }, 0);
+    }
+
+    /**
+     * Send the chunk once the pacer has the tokens for it and check the confirmations after the
+     * waiting time, trying again if they are not enough
+     *
+     * @param dispatcher  dispatcher running the steps of the backup
+     * @param attempt     number of the attempt
+     * @param waitingTime time to wait for the confirmations, in milliseconds
+     * @param done        run once the chunk is backed up or the attempts are over
+     */
+    private void attempt(final MessageDispatcher dispatcher, final int attempt, final int waitingTime, final Runnable done) {
+        byte[] message = getMessage();
+        long wait = BackupService.getInstance().getChannelsHandler().getPacer().take(message.length);
+        dispatcher.schedule(() -> {
+            BackupService.getInstance().getChannelsHandler().writeMessage(message, ChannelType.MDB);
+            check(dispatcher, message, attempt, waitingTime, done);
+        }, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    /**
+     * Check the confirmations of the chunk after the waiting time, trying again if they are not enough
+     *
+     * @param dispatcher  dispatcher running the steps of the backup
+     * @param message     message sent
+     * @param attempt     number of the attempt
+     * @param waitingTime time to wait for the confirmations, in milliseconds
+     * @param done        run once the chunk is backed up or the attempts are over
+     */
+    private void check(final MessageDispatcher dispatcher, final byte[] message, final int attempt, final int waitingTime, final Runnable done) {
+        dispatcher.schedule(() -> {
+            if (getConfirmations() >= chunk.getState().getMinReplicationDegree()) {
+                BackupService.getInstance().getChannelsHandler().getPacer().confirmed(message.length);
+                done.run();
+                return;
+            }
+            // The peers did not keep up, slow down the sending of the chunks
+            BackupService.getInstance().getChannelsHandler().getPacer().congested();
+
+            if (attempt >= MAX_ATTEMPTS) {
+                System.out.println("Could not get the minimum replication degree for the chunk(" + chunk.getChunkNo() + ")!");
+                done.run();
+                return;
+            }
+            attempt(dispatcher, attempt + 1, waitingTime * 2, done);
+        }, waitingTime);
+    }
+
+    /**
+     * Ask the peers that hold the content of the chunk to store it
+     *
+     * @return true if they are enough for the minimum replication degree, false otherwise
+     */
+    private boolean queryHolders() {
+        encode();
+        new HaveChunk(chunk, Utilities.sha256(body), codec).run();
+
+        // Wait confirmations
+        try {
+            Thread.sleep(INITIAL_WAITING_TIME);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        return getConfirmations() >= chunk.getState().getMinReplicationDegree();
+    }
+
+    /**
+     * Encode the body of the message. Chunks stored by this peer for other peers are sent as
+     * they are stored, only the chunks of the files of this peer are compressed with the
+     * configured codec.
+     */
+    private void encode() {
+        if (body != null)
+            return;
+
+        codec = chunk.getState().getCodec();
+        body = chunk.getBuffer();
+        if (codec != ChunkCodec.NONE || enhanced || !BackupService.getInstance().getDisk().isOwnFileId(chunk.getFileID()))
+            return;
+
+        ChunkCodec configured = ChunkCodec.fromProperties();
+        byte[] compressed = configured.compress(chunk.getData());
+        if (compressed != null) {
+            codec = configured;
+            body = ByteBuffer.wrap(compressed);
+        }
+    }
+
+    /**
+     * Get the number of peers that have stored the chunk
+     *
+     * @return number of stored confirmations, counting this peer
+     */
+    private int getConfirmations() {
+        int numberConfirmations = BackupService.getInstance().getChannelsHandler().getStoredConfirmations(chunk.getFileID(), chunk.getChunkNo());
+        if (BackupService.getInstance().getDisk().hasChunk(chunk.getFileID(), chunk.getChunkNo()))
+            numberConfirmations++;
+        return numberConfirmations;
+    }
+
 
     /**
      * Get the backup chunk protocol message
@@ -120,15 +284,19 @@ public class BackupChunk implements BackupProtocol, Runnable {
      */
     @Override
     public byte[] getMessage() {
+        encode();
         String header =
                 BackupProtocol.PUTCHUNK_MESSAGE + " "
-                        + (enhanced ? BackupProtocol.VERSION_ENHANCEMENT : BackupProtocol.VERSION) + " "
+                        + (codec != ChunkCodec.NONE ? BackupProtocol.VERSION_COMPRESSION
+                        : enhanced ? BackupProtocol.VERSION_ENHANCEMENT : BackupProtocol.VERSION) + " "
                         + BackupService.getInstance().getServerId() + " "
                         + chunk.getFileID() + " "
                         + chunk.getChunkNo() + " "
                         + chunk.getState().getMinReplicationDegree()
+                        + (codec != ChunkCodec.NONE ? " " + codec : "")
+                        + (codec == ChunkCodec.NONE && enhanced && stripeWidth > 0 ? " " + stripeWidth : "")
                         + BackupProtocol.CRLF
                         + BackupProtocol.CRLF;
-        return Utilities.concatBytes(header.getBytes(), chunk.getData());
+        return Utilities.concatBytes(header.getBytes(), body);
     }
 }
@@ -21,11 +21,26 @@ public interface BackupProtocol {
      */
     int VERSION_ENHANCEMENT = 2;
 
+    /**
+     * Version of the protocol with compressed chunks
+     */
+    int VERSION_COMPRESSION = 3;
+
     /**
      * End character
      */
     String CRLF = "\n\r";
 
+    /**
+     * Maximum random delay before responding to a message, in milliseconds
+     */
+    int MAX_RESPONSE_DELAY = 400;
+
+    /**
+     * Maximum span of chunk numbers of the bitmap of a message
+     */
+    int MAX_BITMAP_SPAN = 8192;
+
     /**
      *
      *          HEADER INDEXES
@@ -67,6 +82,41 @@ public interface BackupProtocol {
      */
     int TCP_PORT = 5;
 
+    /**
+     * Content hash field
+     */
+    int CONTENT_HASH_INDEX = 6;
+
+    /**
+     * Codec field of the put chunk message
+     */
+    int CODEC_INDEX = 6;
+
+    /**
+     * Codec field of the chunk message
+     */
+    int CHUNK_CODEC_INDEX = 5;
+
+    /**
+     * Codec field of the have message
+     */
+    int HAVE_CODEC_INDEX = 7;
+
+    /**
+     * Stripe width field of the enhanced put chunk message, for erasure coded fragments
+     */
+    int STRIPE_WIDTH_INDEX = 6;
+
+    /**
+     * Bitmap field of the stored chunks and get chunks messages, of the chunks from the one in the chunk number field
+     */
+    int BITMAP_INDEX = 5;
+
+    /**
+     * TCP port field of the enhanced get chunks message
+     */
+    int GETCHUNKS_TCP_PORT = 6;
+
     /**
      *
      *          MESSAGES
@@ -83,6 +133,11 @@ public interface BackupProtocol {
      */
     String STORED_MESSAGE = "STORED";
 
+    /**
+     * Stored chunks message type, acknowledging many chunks of a file
+     */
+    String STORED_BATCH_MESSAGE = "STOREDBATCH";
+
     /**
      * Deleted Chunk Message Type
      */
@@ -93,6 +148,11 @@ public interface BackupProtocol {
      */
     String GETCHUNK_MESSAGE = "GETCHUNK";
 
+    /**
+     * Get chunks message type, asking for many chunks of a file
+     */
+    String GETCHUNKS_MESSAGE = "GETCHUNKS";
+
     /**
      * Chunk message type
      */
@@ -108,6 +168,11 @@ public interface BackupProtocol {
      */
     String REMOVED_MESSAGE = "REMOVED";
 
+    /**
+     * Have message type
+     */
+    String HAVE_MESSAGE = "HAVE";
+
     /**
      * Get the protocol message
      *
@@ -1,6 +1,9 @@
 package sdis.protocol;
 
+import sdis.BackupService;
+import sdis.network.MessageDispatcher;
 import sdis.storage.Chunk;
+import sdis.storage.ErasureLayout;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -19,13 +22,30 @@ public class BackupRemovedChunk implements BackupProtocol, Runnable {
      */
     private final AtomicBoolean backup;
 
+    /**
+     * Layout of the file when the chunk is an erasure coded fragment to be rebuilt, null otherwise
+     */
+    private final ErasureLayout layout;
+
     /**
      * Constructor of BackupRemovedChunk
      *
      * @param chunk chunk to be backed up
      */
     public BackupRemovedChunk(final Chunk chunk) {
+        this(chunk, null);
+    }
+
+    /**
+     * Constructor of BackupRemovedChunk for an erasure coded fragment that no peer keeps,
+     * rebuilt from the other fragments of its stripe
+     *
+     * @param chunk  fragment to be backed up, without its data
+     * @param layout layout of the file
+     */
+    public BackupRemovedChunk(final Chunk chunk, final ErasureLayout layout) {
         this.chunk = chunk;
+        this.layout = layout;
         this.backup = new AtomicBoolean(true);
     }
 
@@ -35,18 +55,44 @@ public class BackupRemovedChunk implements BackupProtocol, Runnable {
     @Override
     public void run() {
         try {
-            Thread.sleep((int) (Math.random() * 400));
+            Thread.sleep((int) (Math.random() * MAX_RESPONSE_DELAY));
         } catch (InterruptedException ignore) {
         }
 
-        if (!backup.get())
+        backUp(BackupService.getInstance().getChannelsHandler().getDispatcher(), () -> {
+        });
+    }
+
+    /**
+     * Back up the chunk again right away, unless another peer has already done it.
+     * The backup goes on in the dispatcher, without blocking the calling thread for its waits.
+     *
+     * @param dispatcher dispatcher running the steps of the backup
+     * @param done       run once the backup is over, or right away if it is not needed
+     */
+    public void backUp(final MessageDispatcher dispatcher, final Runnable done) {
+        if (!backup.get()) {
+            done.run();
             return;
+        }
 
         //System.out.println("Backing up a removed chunk("+chunk.getChunkNo()+") because count dropped below the desired replication!");
 
-        new BackupChunk(chunk, false).run();
+        if (layout != null) {
+            Chunk fragment = BackupService.getInstance().rebuildFragment(layout, chunk.getChunkNo());
+            if (fragment == null) {
+                System.out.println("Could not rebuild the fragment(" + chunk.getChunkNo() + ")!");
+                done.run();
+                return;
+            }
+            new BackupChunk(fragment, true, layout.getWidth()).backUp(dispatcher, done);
+            return;
+        }
 
-        new StoredChunk(chunk).run();
+        new BackupChunk(chunk, false).backUp(dispatcher, () -> {
+            new StoredChunk(chunk).run();
+            done.run();
+        });
     }
 
     /**
@@ -4,6 +4,8 @@ import sdis.BackupService;
 import sdis.network.ChannelType;
 import sdis.storage.Chunk;
 
+import java.util.List;
+
 /**
  * Get chunk protocol
  */
@@ -63,8 +65,11 @@ public class GetChunk implements BackupProtocol, Runnable {
             if (currentAttempt > 5)
                 break;
             int index = -1;
-            if (BackupService.getInstance().getChannelsHandler().waitingForChunks.containsKey(chunk.getFileID()))
-                index = BackupService.getInstance().getChannelsHandler().waitingForChunks.get(chunk.getFileID()).indexOf(chunk.getChunkNo());
+            List<Integer> waiting = BackupService.getInstance().getChannelsHandler().waitingForChunks.get(chunk.getFileID());
+            if (waiting != null)
+                synchronized (waiting) {
+                    index = waiting.indexOf(chunk.getChunkNo());
+                }
 
             if (index != -1) {
                 try {
@@ -0,0 +1,147 @@
+package sdis.protocol;
+
+import sdis.BackupService;
+import sdis.network.ChannelType;
+import sdis.utils.Utilities;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Get chunks protocol, asking for many chunks of a file in a single message. The
+ * chunks still missing are asked for again only once they stop arriving.
+ */
+public class GetChunks implements BackupProtocol, Runnable {
+
+    /**
+     * System property to ask for the chunks of a restore together, true by default
+     */
+    public static final String RANGED_PROPERTY = "sdis.restore.ranged";
+
+    /**
+     * Time to wait for chunks to arrive before checking the ones still missing, in milliseconds
+     */
+    private static final int CHECK_DELAY = 1000;
+
+    /**
+     * Number of checks without any chunk arriving before giving up
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * File id of the chunks
+     */
+    private final String fileId;
+
+    /**
+     * Numbers of the chunks still missing, spanning at most {@link BackupProtocol#MAX_BITMAP_SPAN}
+     */
+    private final BitSet missing;
+
+    /**
+     * Enhancement boolean
+     */
+    private final boolean enhanced;
+
+    /**
+     * TCP port
+     */
+    private final int port;
+
+    /**
+     * Constructor of GetChunks
+     *
+     * @param fileId   file id of the chunks
+     * @param chunks   numbers of the chunks, spanning at most {@link BackupProtocol#MAX_BITMAP_SPAN}
+     * @param enhanced true to use the enhanced protocol, false otherwise
+     * @param port     port of the TCP server
+     */
+    public GetChunks(final String fileId, final BitSet chunks, final boolean enhanced, final int port) {
+        this.fileId = fileId;
+        this.missing = (BitSet) chunks.clone();
+        this.enhanced = enhanced;
+        this.port = port;
+    }
+
+    /**
+     * Check if the chunks of a restore are asked for together, as configured by the {@link #RANGED_PROPERTY} system property
+     *
+     * @return true to ask for them together, false to ask for each chunk
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty(RANGED_PROPERTY, "true"));
+    }
+
+    /**
+     * Run method of the get chunks
+     */
+    @Override
+    public void run() {
+        BackupService.getInstance().getChannelsHandler().sendMessage(getMessage(), ChannelType.MC);
+
+        int attempts = 1;
+        int missingCount = missing.cardinality();
+        while (attempts <= MAX_ATTEMPTS) {
+            try {
+                Thread.sleep(CHECK_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            updateMissing();
+            if (missing.isEmpty())
+                return;
+
+            // The holders are still sending the chunks
+            if (missing.cardinality() < missingCount) {
+                missingCount = missing.cardinality();
+                continue;
+            }
+
+            attempts++;
+            BackupService.getInstance().getChannelsHandler().sendMessage(getMessage(), ChannelType.MC);
+        }
+    }
+
+    /**
+     * Keep as missing only the chunks the restore is still waiting for
+     */
+    private void updateMissing() {
+        List<Integer> waiting = BackupService.getInstance().getChannelsHandler().waitingForChunks.get(fileId);
+        if (waiting == null) {
+            missing.clear();
+            return;
+        }
+
+        Set<Integer> stillWaiting;
+        synchronized (waiting) {
+            stillWaiting = new HashSet<>(waiting);
+        }
+        for (int chunkNo = missing.nextSetBit(0); chunkNo >= 0; chunkNo = missing.nextSetBit(chunkNo + 1))
+            if (!stillWaiting.contains(chunkNo))
+                missing.clear(chunkNo);
+    }
+
+    /**
+     * Get the get chunks protocol message, for the chunks still missing
+     *
+     * @return get chunks protocol message
+     */
+    @Override
+    public byte[] getMessage() {
+        int first = missing.nextSetBit(0);
+        String header =
+                BackupProtocol.GETCHUNKS_MESSAGE + " "
+                        + (enhanced ? BackupProtocol.VERSION_ENHANCEMENT : BackupProtocol.VERSION) + " "
+                        + BackupService.getInstance().getServerId() + " "
+                        + fileId + " "
+                        + first + " "
+                        + Utilities.toBitmap(missing, first)
+                        + (enhanced ? " " + port : "")
+                        + BackupProtocol.CRLF
+                        + BackupProtocol.CRLF;
+        return header.getBytes();
+    }
+}
@@ -0,0 +1,73 @@
+package sdis.protocol;
+
+import sdis.BackupService;
+import sdis.network.ChannelType;
+import sdis.storage.Chunk;
+import sdis.storage.ChunkCodec;
+import sdis.utils.Utilities;
+
+/**
+ * Have chunk protocol, asking the peers that already hold the content of a
+ * chunk to store it without its body being sent
+ */
+public class HaveChunk implements BackupProtocol, Runnable {
+
+    /**
+     * Chunk to be backed up
+     */
+    private final Chunk chunk;
+
+    /**
+     * SHA-256 hash of the content of the chunk
+     */
+    private final byte[] contentHash;
+
+    /**
+     * Codec of the content of the chunk
+     */
+    private final ChunkCodec codec;
+
+    /**
+     * Constructor of HaveChunk
+     *
+     * @param chunk       chunk to be backed up
+     * @param contentHash SHA-256 hash of the content of the chunk
+     * @param codec       codec of the content of the chunk
+     */
+    public HaveChunk(final Chunk chunk, final byte[] contentHash, final ChunkCodec codec) {
+        this.chunk = chunk;
+        this.contentHash = contentHash;
+        this.codec = codec;
+    }
+
+    /**
+     * Run method of the have chunk
+     */
+    @Override
+    public void run() {
+        // Send have chunk message
+        byte[] message = getMessage();
+        BackupService.getInstance().getChannelsHandler().sendMessage(message, ChannelType.MC);
+    }
+
+    /**
+     * Get the have chunk protocol message
+     *
+     * @return have chunk protocol message
+     */
+    @Override
+    public byte[] getMessage() {
+        String header =
+                BackupProtocol.HAVE_MESSAGE + " "
+                        + (codec != ChunkCodec.NONE ? BackupProtocol.VERSION_COMPRESSION : BackupProtocol.VERSION_ENHANCEMENT) + " "
+                        + BackupService.getInstance().getServerId() + " "
+                        + chunk.getFileID() + " "
+                        + chunk.getChunkNo() + " "
+                        + chunk.getState().getMinReplicationDegree() + " "
+                        + Utilities.toHex(contentHash)
+                        + (codec != ChunkCodec.NONE ? " " + codec : "")
+                        + BackupProtocol.CRLF
+                        + BackupProtocol.CRLF;
+        return header.getBytes();
+    }
+}
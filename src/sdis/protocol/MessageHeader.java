@@ -0,0 +1,236 @@
+package sdis.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header of a received message, parsed in place. The fields are located in the
+ * message once and only decoded when asked for, so a parser can be reused for every
+ * message of a channel without allocating, and {@link #detach()} keeps a copy of the
+ * header for when the message is handled later.
+ */
+public class MessageHeader {
+
+    /**
+     * Maximum number of fields of a header
+     */
+    private static final int MAX_FIELDS = 10;
+
+    /**
+     * Separator of the header and the body, as bytes
+     */
+    private static final byte[] SEPARATOR = (BackupProtocol.CRLF + BackupProtocol.CRLF).getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Starts of the fields in the message
+     */
+    private final int[] starts;
+
+    /**
+     * Ends of the fields in the message
+     */
+    private final int[] ends;
+
+    /**
+     * Message being parsed
+     */
+    private ByteBuffer message;
+
+    /**
+     * Number of fields of the header
+     */
+    private int fields;
+
+    /**
+     * Start of the body in the message
+     */
+    private int bodyStart;
+
+    /**
+     * Type of the message, null if unknown
+     */
+    private MessageType type;
+
+    /**
+     * Constructor of MessageHeader
+     */
+    public MessageHeader() {
+        this.starts = new int[MAX_FIELDS];
+        this.ends = new int[MAX_FIELDS];
+    }
+
+    /**
+     * Parse the header of a message, which must not change while the header is in use
+     *
+     * @param message message from its position to its limit
+     * @return true if the header has a known type, a version, a sender and a file id, false otherwise
+     */
+    public boolean parse(final ByteBuffer message) {
+        this.message = message;
+        this.fields = 0;
+        this.type = null;
+
+        int limit = message.limit();
+        int i = message.position();
+        while (i < limit) {
+            byte b = message.get(i);
+            if (b == '\n' || b == '\r')
+                break;
+            if (b == ' ') {
+                i++;
+                continue;
+            }
+            if (fields == MAX_FIELDS)
+                return false;
+            starts[fields] = i;
+            while (i < limit && (b = message.get(i)) != ' ' && b != '\n' && b != '\r')
+                i++;
+            ends[fields++] = i;
+        }
+
+        this.bodyStart = findBody(i);
+        if (fields <= BackupProtocol.FILE_ID_INDEX || !isNumber(BackupProtocol.VERSION_INDEX))
+            return false;
+        this.type = MessageType.fromHeader(message, starts[BackupProtocol.MESSAGE_TYPE_INDEX], ends[BackupProtocol.MESSAGE_TYPE_INDEX]);
+        return type != null;
+    }
+
+    /**
+     * Find the start of the body, after the separator that ends the header
+     *
+     * @param from end of the header line
+     * @return start of the body, the limit of the message if it has none
+     */
+    private int findBody(final int from) {
+        int limit = message.limit();
+        for (int i = from; i + SEPARATOR.length <= limit; i++) {
+            int matched = 0;
+            while (matched < SEPARATOR.length && message.get(i + matched) == SEPARATOR[matched])
+                matched++;
+            if (matched == SEPARATOR.length)
+                return i + SEPARATOR.length;
+        }
+        return limit;
+    }
+
+    /**
+     * Get the type of the message
+     *
+     * @return type of the message, null if unknown
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Get the version of the protocol of the message
+     *
+     * @return version of the protocol
+     */
+    public int getVersion() {
+        return getInt(BackupProtocol.VERSION_INDEX);
+    }
+
+    /**
+     * Get the number of fields of the header
+     *
+     * @return number of fields
+     */
+    public int getFieldCount() {
+        return fields;
+    }
+
+    /**
+     * Check if the message was sent by a peer
+     *
+     * @param serverId id of the peer, as bytes
+     * @return true if the sender field is the id of the peer, false otherwise
+     */
+    public boolean isSender(final byte[] serverId) {
+        int start = starts[BackupProtocol.SENDER_INDEX];
+        if (ends[BackupProtocol.SENDER_INDEX] - start != serverId.length)
+            return false;
+        for (int i = 0; i < serverId.length; i++)
+            if (message.get(start + i) != serverId[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Get a field as an integer, decoded in place
+     *
+     * @param index index of the field
+     * @return value of the field
+     * @throws NumberFormatException if the field is missing or not a number
+     */
+    public int getInt(final int index) {
+        if (!isNumber(index))
+            throw new NumberFormatException("Field " + index + " is not a number");
+
+        int value = 0;
+        for (int i = starts[index]; i < ends[index]; i++)
+            value = 10 * value + (message.get(i) - '0');
+        return value;
+    }
+
+    /**
+     * Check if a field is a number that fits an integer
+     *
+     * @param index index of the field
+     * @return true if the field is a number, false otherwise
+     */
+    private boolean isNumber(final int index) {
+        if (index >= fields || ends[index] == starts[index] || ends[index] - starts[index] > 9)
+            return false;
+        for (int i = starts[index]; i < ends[index]; i++)
+            if (message.get(i) < '0' || message.get(i) > '9')
+                return false;
+        return true;
+    }
+
+    /**
+     * Get a field as a string
+     *
+     * @param index index of the field
+     * @return value of the field, null if missing
+     */
+    public String getString(final int index) {
+        if (index >= fields)
+            return null;
+
+        byte[] field = new byte[ends[index] - starts[index]];
+        message.duplicate().position(starts[index]).get(field);
+        return new String(field, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the body of the message, sharing the content of the message
+     *
+     * @return body of the message, from its position to its limit
+     */
+    public ByteBuffer getBody() {
+        return message.duplicate().position(bodyStart).slice();
+    }
+
+    /**
+     * Copy the header out of the message, so it can be used once the message is reused
+     *
+     * @return copy of the header, without the body
+     */
+    public MessageHeader detach() {
+        int start = starts[0];
+        byte[] copy = new byte[ends[fields - 1] - start];
+        message.duplicate().position(start).get(copy);
+
+        MessageHeader header = new MessageHeader();
+        header.message = ByteBuffer.wrap(copy);
+        header.fields = fields;
+        header.type = type;
+        header.bodyStart = copy.length;
+        for (int i = 0; i < fields; i++) {
+            header.starts[i] = starts[i] - start;
+            header.ends[i] = ends[i] - start;
+        }
+        return header;
+    }
+}
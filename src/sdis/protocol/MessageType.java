@@ -0,0 +1,100 @@
+package sdis.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Types of the protocol messages, named as in their headers
+ */
+public enum MessageType {
+
+    /**
+     * Put chunk message
+     */
+    PUTCHUNK(BackupProtocol.PUTCHUNK_MESSAGE),
+
+    /**
+     * Stored message
+     */
+    STORED(BackupProtocol.STORED_MESSAGE),
+
+    /**
+     * Stored chunks message
+     */
+    STOREDBATCH(BackupProtocol.STORED_BATCH_MESSAGE),
+
+    /**
+     * Deleted chunk message
+     */
+    DELETEDCHUNK(BackupProtocol.DELETED_MESSAGE),
+
+    /**
+     * Get chunk message
+     */
+    GETCHUNK(BackupProtocol.GETCHUNK_MESSAGE),
+
+    /**
+     * Get chunks message
+     */
+    GETCHUNKS(BackupProtocol.GETCHUNKS_MESSAGE),
+
+    /**
+     * Chunk message
+     */
+    CHUNK(BackupProtocol.CHUNK_MESSAGE),
+
+    /**
+     * Delete message
+     */
+    DELETE(BackupProtocol.DELETE_MESSAGE),
+
+    /**
+     * Removed message
+     */
+    REMOVED(BackupProtocol.REMOVED_MESSAGE),
+
+    /**
+     * Have message
+     */
+    HAVE(BackupProtocol.HAVE_MESSAGE);
+
+    /**
+     * Every type, without copying the array of the values on each lookup
+     */
+    private static final MessageType[] TYPES = values();
+
+    /**
+     * Name of the type in the header, as bytes
+     */
+    private final byte[] name;
+
+    /**
+     * Constructor of MessageType
+     *
+     * @param name name of the type in the header
+     */
+    MessageType(final String name) {
+        this.name = name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the type named by some bytes of a message
+     *
+     * @param message message with the name
+     * @param start   start of the name in the message
+     * @param end     end of the name in the message
+     * @return type with that name, null if unknown
+     */
+    static MessageType fromHeader(final ByteBuffer message, final int start, final int end) {
+        for (MessageType type : TYPES) {
+            if (type.name.length != end - start)
+                continue;
+            int i = 0;
+            while (i < type.name.length && message.get(start + i) == type.name[i])
+                i++;
+            if (i == type.name.length)
+                return type;
+        }
+        return null;
+    }
+}
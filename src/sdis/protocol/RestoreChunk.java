@@ -3,12 +3,11 @@ package sdis.protocol;
 import sdis.BackupService;
 import sdis.network.ChannelType;
 import sdis.storage.Chunk;
+import sdis.storage.ChunkCodec;
 import sdis.utils.Utilities;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -58,30 +57,27 @@ public class RestoreChunk implements BackupProtocol, Runnable {
     @Override
     public void run() {
         try {
-            Thread.sleep((int) (Math.random() * 400));
+            Thread.sleep((int) (Math.random() * MAX_RESPONSE_DELAY));
         } catch (InterruptedException ignore) {
         }
 
+        send();
+    }
+
+    /**
+     * Send the chunk right away, unless another peer has already sent it
+     */
+    public void send() {
         if (!restore.get())
             return;
 
         byte[] message = getMessage();
         BackupService.getInstance().getChannelsHandler().sendMessage(message, ChannelType.MDR);
 
-        // Directly connect to TCP server
-        if (enhanced) {
-            try {
-                Socket clientSocket = new Socket(address, port);
-                DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
-                // Get the message this time with the body
-                enhanced = false;
-                message = getMessage();
-                outToServer.write(message);
-                outToServer.close();
-                clientSocket.close();
-            } catch (IOException e) {
-            }
-        }
+        // Send the header with the body over the connection to the TCP server, straight from the disk view of the chunk
+        if (enhanced)
+            BackupService.getInstance().getChannelsHandler().getConnectionPool()
+                    .send(new InetSocketAddress(address, port), getHeader().getBytes(), chunk.getBuffer());
     }
 
     /**
@@ -98,14 +94,24 @@ public class RestoreChunk implements BackupProtocol, Runnable {
      */
     @Override
     public byte[] getMessage() {
-        String header =
-                BackupProtocol.CHUNK_MESSAGE + " "
-                        + BackupProtocol.VERSION + " "
-                        + BackupService.getInstance().getServerId() + " "
-                        + chunk.getFileID() + " "
-                        + chunk.getChunkNo()
-                        + BackupProtocol.CRLF
-                        + BackupProtocol.CRLF;
-        return (enhanced ? header.getBytes() : Utilities.concatBytes(header.getBytes(), chunk.getData()));
+        String header = getHeader();
+        return (enhanced ? header.getBytes() : Utilities.concatBytes(header.getBytes(), chunk.getBuffer()));
+    }
+
+    /**
+     * Get the header of the restore chunk protocol message
+     *
+     * @return header of the restore chunk protocol message
+     */
+    private String getHeader() {
+        ChunkCodec codec = chunk.getState().getCodec();
+        return BackupProtocol.CHUNK_MESSAGE + " "
+                + (codec != ChunkCodec.NONE ? BackupProtocol.VERSION_COMPRESSION : BackupProtocol.VERSION) + " "
+                + BackupService.getInstance().getServerId() + " "
+                + chunk.getFileID() + " "
+                + chunk.getChunkNo()
+                + (codec != ChunkCodec.NONE ? " " + codec : "")
+                + BackupProtocol.CRLF
+                + BackupProtocol.CRLF;
     }
 }
@@ -0,0 +1,162 @@
+package sdis.protocol;
+
+import sdis.BackupService;
+import sdis.network.MessageDispatcher;
+import sdis.storage.Chunk;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Restore chunks protocol, sending the chunks of a file asked for by a get chunks
+ * message a few at a time, in a random order so that the peers holding the same chunks
+ * send different ones first. Each chunk is read from the disk only when sent, and
+ * is skipped if another peer sends it first.
+ */
+public class RestoreChunks {
+
+    /**
+     * Number of chunks sent at each step
+     */
+    private static final int BATCH_CHUNKS = 8;
+
+    /**
+     * Time between the steps, in milliseconds
+     */
+    private static final int BATCH_INTERVAL = 20;
+
+    /**
+     * File id of the chunks
+     */
+    private final String fileId;
+
+    /**
+     * Numbers of the chunks still to be sent
+     */
+    private final BitSet pending;
+
+    /**
+     * Address to send the chunks
+     */
+    private final InetAddress address;
+
+    /**
+     * Port to send the chunks (if enhanced)
+     */
+    private final int port;
+
+    /**
+     * True once every chunk has been sent, when no more chunks can be added
+     */
+    private boolean finished;
+
+    /**
+     * Constructor of RestoreChunks
+     *
+     * @param fileId  file id of the chunks
+     * @param address address to send the chunks
+     * @param port    port to send the chunks (-1 to use non enhanced)
+     */
+    public RestoreChunks(final String fileId, final InetAddress address, final int port) {
+        this.fileId = fileId;
+        this.pending = new BitSet();
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Add chunks to be sent
+     *
+     * @param chunks  numbers of the chunks
+     * @param address address to send the chunks
+     * @param port    port to send the chunks (-1 to use non enhanced)
+     * @return true if added, false if the chunks have already all been sent or go elsewhere
+     */
+    public synchronized boolean add(final BitSet chunks, final InetAddress address, final int port) {
+        if (finished || !this.address.equals(address) || this.port != port)
+            return false;
+        pending.or(chunks);
+        return true;
+    }
+
+    /**
+     * Cancel a chunk, sent by another peer
+     *
+     * @param chunkNo number of the chunk
+     * @return true if the chunk was still to be sent, false otherwise
+     */
+    public synchronized boolean cancel(final int chunkNo) {
+        boolean wasPending = pending.get(chunkNo);
+        pending.clear(chunkNo);
+        return wasPending;
+    }
+
+    /**
+     * Get the next chunk to be sent, the first one still pending from a random chunk number
+     *
+     * @return number of the chunk, -1 once every chunk has been sent
+     */
+    private synchronized int next() {
+        int chunkNo = pending.nextSetBit((int) (Math.random() * pending.length()));
+        if (chunkNo < 0) {
+            finished = true;
+            return -1;
+        }
+        pending.clear(chunkNo);
+        return chunkNo;
+    }
+
+    /**
+     * Send the chunks after a random delay, a batch at each step scheduled on the dispatcher,
+     * until every chunk has been sent or cancelled
+     *
+     * @param dispatcher dispatcher running the steps
+     * @param done       run once every chunk has been sent or the steps can not be scheduled
+     */
+    public void send(final MessageDispatcher dispatcher, final Runnable done) {
+        step(dispatcher, done, (long) (Math.random() * BackupProtocol.MAX_RESPONSE_DELAY));
+    }
+
+    /**
+     * Schedule the next step of the sending
+     *
+     * @param dispatcher dispatcher running the steps
+     * @param done       run once every chunk has been sent or the steps can not be scheduled
+     * @param delay      delay of the step in milliseconds
+     */
+    private void step(final MessageDispatcher dispatcher, final Runnable done, final long delay) {
+        try {
+            dispatcher.schedule(() -> {
+                boolean more = false;
+                try {
+                    more = sendBatch();
+                } finally {
+                    if (!more)
+                        done.run();
+                }
+                if (more)
+                    step(dispatcher, done, BATCH_INTERVAL);
+            }, delay);
+        } catch (RejectedExecutionException e) {
+            done.run();
+        }
+    }
+
+    /**
+     * Send a batch of chunks
+     *
+     * @return true if there may be chunks left to send, false otherwise
+     */
+    private boolean sendBatch() {
+        for (int i = 0; i < BATCH_CHUNKS; i++) {
+            int chunkNo = next();
+            if (chunkNo < 0)
+                return false;
+            Chunk chunk = BackupService.getInstance().getDisk().getChunk(fileId, chunkNo);
+            if (chunk != null)
+                new RestoreChunk(chunk, port != -1, address, port).send();
+        }
+        return true;
+    }
+}
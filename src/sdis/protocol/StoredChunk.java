@@ -30,11 +30,17 @@ public class StoredChunk implements BackupProtocol, Runnable {
     public void run() {
         // Wait a random time between 0 and 400 before sending the stored message
         try {
-            Thread.sleep((int) (Math.random() * 400));
+            Thread.sleep((int) (Math.random() * MAX_RESPONSE_DELAY));
         } catch (InterruptedException ignore) {
         }
 
-        // Send stored chunk message
+        send();
+    }
+
+    /**
+     * Send the stored chunk message right away
+     */
+    public void send() {
         byte[] message = getMessage();
         BackupService.getInstance().getChannelsHandler().sendMessage(message, ChannelType.MC);
     }
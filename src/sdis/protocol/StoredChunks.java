@@ -0,0 +1,78 @@
+package sdis.protocol;
+
+import sdis.BackupService;
+import sdis.network.ChannelType;
+import sdis.utils.Utilities;
+
+import java.util.BitSet;
+
+/**
+ * Stored chunks protocol, acknowledging many stored chunks of a file in a single
+ * message, as the first chunk number and a bitmap of the chunks from it
+ */
+public class StoredChunks implements BackupProtocol {
+
+    /**
+     * System property to send the stored messages of a file together, true by default
+     */
+    public static final String BATCH_PROPERTY = "sdis.stored.batch";
+
+    /**
+     * File id of the chunks
+     */
+    private final String fileId;
+
+    /**
+     * Numbers of the chunks stored
+     */
+    private final BitSet chunks;
+
+    /**
+     * Constructor of StoredChunks
+     *
+     * @param fileId file id of the chunks
+     * @param chunks numbers of the chunks stored, spanning at most {@link BackupProtocol#MAX_BITMAP_SPAN}
+     */
+    public StoredChunks(final String fileId, final BitSet chunks) {
+        this.fileId = fileId;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Check if the stored messages are sent together, as configured by the {@link #BATCH_PROPERTY} system property
+     *
+     * @return true to send them together, false to send one per chunk
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty(BATCH_PROPERTY, "true"));
+    }
+
+    /**
+     * Send the stored chunks message right away
+     */
+    public void send() {
+        byte[] message = getMessage();
+        BackupService.getInstance().getChannelsHandler().sendMessage(message, ChannelType.MC);
+    }
+
+    /**
+     * Get the stored chunks protocol message, a plain stored message if it acknowledges a single chunk
+     *
+     * @return stored chunks protocol message
+     */
+    @Override
+    public byte[] getMessage() {
+        int first = chunks.nextSetBit(0);
+        boolean single = chunks.cardinality() == 1;
+        String header =
+                (single ? BackupProtocol.STORED_MESSAGE : BackupProtocol.STORED_BATCH_MESSAGE) + " "
+                        + BackupProtocol.VERSION + " "
+                        + BackupService.getInstance().getServerId() + " "
+                        + fileId + " "
+                        + first
+                        + (single ? "" : " " + Utilities.toBitmap(chunks, first))
+                        + BackupProtocol.CRLF
+                        + BackupProtocol.CRLF;
+        return header.getBytes();
+    }
+}
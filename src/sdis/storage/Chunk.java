@@ -1,5 +1,7 @@
 package sdis.storage;
 
+import java.nio.ByteBuffer;
+
 /**
  * Chunk Object
  */
@@ -18,7 +20,12 @@ public class Chunk {
     /**
      * Data in the chunk
      */
-    private final byte[] data;
+    private final ByteBuffer data;
+
+    /**
+     * Data in the chunk copied to the heap, only when requested
+     */
+    private byte[] dataArray;
 
     /**
      * State of the chunk
@@ -34,8 +41,23 @@ public class Chunk {
      * @param state   state of the chunk
      */
     public Chunk(final String fileID, final int chunkNo, final byte[] data, final ChunkState state) {
-        this(fileID, chunkNo, data, state.getMinReplicationDegree(), state.getReplicationDegree());
-        this.state.mirrorDevices = state.mirrorDevices;
+        this(fileID, chunkNo, ByteBuffer.wrap(data), state);
+        this.dataArray = data;
+    }
+
+    /**
+     * Constructor of Chunk
+     *
+     * @param fileID  identification of the file
+     * @param chunkNo number of the chunk
+     * @param data    view of the data in the chunk
+     * @param state   state of the chunk
+     */
+    public Chunk(final String fileID, final int chunkNo, final ByteBuffer data, final ChunkState state) {
+        this.fileID = fileID;
+        this.chunkNo = chunkNo;
+        this.data = data.asReadOnlyBuffer();
+        this.state = new ChunkState(state);
     }
 
     /**
@@ -62,7 +84,8 @@ public class Chunk {
     public Chunk(final String fileID, final int chunkNo, final byte[] data, final int minReplicationDegree, final int replicationDegree) {
         this.fileID = fileID;
         this.chunkNo = chunkNo;
-        this.data = data;
+        this.data = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        this.dataArray = data;
         this.state = new ChunkState(minReplicationDegree, replicationDegree);
     }
 
@@ -85,12 +108,36 @@ public class Chunk {
     }
 
     /**
-     * Get the data in the chunk
+     * Get the data in the chunk. Chunks read from the disk are copied to
+     * the heap, prefer {@link #getBuffer()} when possible.
      *
      * @return data in the chunk
      */
     public byte[] getData() {
-        return data;
+        if (dataArray == null) {
+            byte[] array = new byte[data.remaining()];
+            data.duplicate().get(array);
+            dataArray = array;
+        }
+        return dataArray;
+    }
+
+    /**
+     * Get a read-only view of the data in the chunk, without copying it
+     *
+     * @return view of the data in the chunk
+     */
+    public ByteBuffer getBuffer() {
+        return data.duplicate();
+    }
+
+    /**
+     * Get the size of the data in the chunk
+     *
+     * @return size of the data in the chunk
+     */
+    public int getSize() {
+        return data.remaining();
     }
 
     /**
@@ -0,0 +1,280 @@
+package sdis.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of chunk payloads bounded by a byte budget, with a segmented LRU policy.
+ * New chunks enter a probation segment and are only promoted to the protected
+ * segment when they are requested again, so a scan of cold chunks never
+ * evicts the chunks that are being restored repeatedly.
+ */
+public class ChunkCache {
+
+    /**
+     * System property with the byte budget of the cache (0 disables it)
+     */
+    public static final String BUDGET_PROPERTY = "sdis.cache.bytes";
+
+    /**
+     * Fraction of the budget for the protected segment
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * Maximum bytes of the cache
+     */
+    private final long maxBytes;
+
+    /**
+     * Maximum bytes of the protected segment
+     */
+    private final long maxProtectedBytes;
+
+    /**
+     * Chunks requested only once, in access order
+     */
+    private final LinkedHashMap<Key, ByteBuffer> probation;
+
+    /**
+     * Chunks requested more than once, in access order
+     */
+    private final LinkedHashMap<Key, ByteBuffer> protectedSegment;
+
+    /**
+     * Bytes in the probation segment
+     */
+    private long probationBytes;
+
+    /**
+     * Bytes in the protected segment
+     */
+    private long protectedBytes;
+
+    /**
+     * Number of cache hits
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of cache misses
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Number of evicted chunks
+     */
+    private final AtomicLong evictions;
+
+    /**
+     * Constructor of ChunkCache
+     *
+     * @param maxBytes maximum bytes of the cache
+     */
+    public ChunkCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+    }
+
+    /**
+     * Create the cache configured by the {@link #BUDGET_PROPERTY} system property
+     *
+     * @return created cache, null if the cache is disabled
+     */
+    public static ChunkCache fromProperties() {
+        long budget = Long.getLong(BUDGET_PROPERTY, 0);
+        return budget > 0 ? new ChunkCache(budget) : null;
+    }
+
+    /**
+     * Get a chunk from the cache
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return read-only view of the chunk payload, null if not cached
+     */
+    public synchronized ByteBuffer get(final String fileId, final int chunkNo) {
+        Key key = new Key(fileId, chunkNo);
+
+        ByteBuffer data = protectedSegment.get(key);
+        if (data == null) {
+            data = probation.remove(key);
+            if (data == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            // Requested again, promote it
+            probationBytes -= data.capacity();
+            protectedSegment.put(key, data);
+            protectedBytes += data.capacity();
+            demoteProtected();
+        }
+
+        hits.incrementAndGet();
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Add a chunk to the cache, copying its payload
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    payload of the chunk
+     */
+    public void put(final String fileId, final int chunkNo, final ByteBuffer data) {
+        if (data.remaining() > maxBytes - maxProtectedBytes)
+            return;
+
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+
+        synchronized (this) {
+            Key key = new Key(fileId, chunkNo);
+            remove(key);
+            probation.put(key, copy);
+            probationBytes += copy.capacity();
+            evict();
+        }
+    }
+
+    /**
+     * Invalidate a chunk of the cache
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     */
+    public synchronized void invalidate(final String fileId, final int chunkNo) {
+        remove(new Key(fileId, chunkNo));
+    }
+
+    /**
+     * Get the number of cache hits
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of cache misses
+     *
+     * @return number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of evicted chunks
+     *
+     * @return number of evicted chunks
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the bytes in the cache
+     *
+     * @return bytes in the cache
+     */
+    public synchronized long getUsedBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    /**
+     * Remove a chunk from any segment
+     *
+     * @param key key of the chunk
+     */
+    private void remove(final Key key) {
+        ByteBuffer data = probation.remove(key);
+        if (data != null)
+            probationBytes -= data.capacity();
+        data = protectedSegment.remove(key);
+        if (data != null)
+            protectedBytes -= data.capacity();
+    }
+
+    /**
+     * Move the least recently used protected chunks back to probation
+     * while the protected segment is over its budget
+     */
+    private void demoteProtected() {
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+            Map.Entry<Key, ByteBuffer> eldest = iterator.next();
+            iterator.remove();
+            protectedBytes -= eldest.getValue().capacity();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().capacity();
+        }
+        evict();
+    }
+
+    /**
+     * Evict the least recently used probation chunks while the cache is over its budget
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, ByteBuffer> eldest = iterator.next();
+            iterator.remove();
+            probationBytes -= eldest.getValue().capacity();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Key of a cached chunk
+     */
+    private static class Key {
+
+        /**
+         * File id of the chunk
+         */
+        private final String fileId;
+
+        /**
+         * Number of the chunk
+         */
+        private final int chunkNo;
+
+        /**
+         * Constructor of Key
+         *
+         * @param fileId  file id of the chunk
+         * @param chunkNo number of the chunk
+         */
+        private Key(final String fileId, final int chunkNo) {
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return chunkNo == key.chunkNo && fileId.equals(key.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileId.hashCode() + chunkNo;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package sdis.storage;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec of the data of a chunk. The data is compressed by the initiator of a
+ * backup, stored compressed by the peers and only decompressed when the file
+ * is restored.
+ */
+public enum ChunkCodec {
+
+    /**
+     * Data kept as is
+     */
+    NONE(0, Deflater.NO_COMPRESSION),
+
+    /**
+     * Deflate with the fastest level
+     */
+    DEFLATE_FAST(1, Deflater.BEST_SPEED),
+
+    /**
+     * Deflate with the default level
+     */
+    DEFLATE(2, Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * System property with the name of the codec used to back up chunks
+     */
+    public static final String CODEC_PROPERTY = "sdis.codec";
+
+    /**
+     * Number of bytes of a chunk sampled to estimate its entropy
+     */
+    private static final int PROBE_SAMPLES = 4096;
+
+    /**
+     * Entropy in bits per byte above which a chunk is not worth compressing
+     */
+    private static final double MAX_ENTROPY = 7.5;
+
+    /**
+     * Identifier of the codec kept in the disk journal, never reused for another codec
+     */
+    private final int id;
+
+    /**
+     * Level of the deflater
+     */
+    private final int level;
+
+    /**
+     * Constructor of ChunkCodec
+     *
+     * @param id    identifier of the codec kept in the disk journal
+     * @param level level of the deflater
+     */
+    ChunkCodec(final int id, final int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /**
+     * Get the identifier of the codec kept in the disk journal
+     *
+     * @return identifier of the codec
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Compress the data of a chunk
+     *
+     * @param data data of the chunk
+     * @return compressed data, null if the data is not worth compressing
+     */
+    public byte[] compress(final byte[] data) {
+        if (this == NONE || !isCompressible(data))
+            return null;
+
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            // Only a smaller output is kept
+            byte[] output = new byte[data.length];
+            int length = deflater.deflate(output);
+            return deflater.finished() && length < data.length ? Arrays.copyOf(output, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress the data of a chunk
+     *
+     * @param data compressed data of the chunk
+     * @return data of the chunk, null if it could not be decompressed
+     */
+    public byte[] decompress(final byte[] data) {
+        if (this == NONE)
+            return data;
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] output = new byte[FileChunker.MAX_SIZE_CHUNK];
+            int length = inflater.inflate(output);
+            if (!inflater.finished()) {
+                System.out.println("Failed to decompress a chunk ! Data larger than a chunk");
+                return null;
+            }
+            return Arrays.copyOf(output, length);
+        } catch (DataFormatException e) {
+            System.out.println("Failed to decompress a chunk ! " + e.getMessage());
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Estimate if the data of a chunk can be compressed from the entropy of a sample of its bytes
+     *
+     * @param data data of the chunk
+     * @return true if the data looks compressible, false otherwise
+     */
+    static boolean isCompressible(final byte[] data) {
+        if (data.length == 0)
+            return false;
+
+        int step = Math.max(1, data.length / PROBE_SAMPLES);
+        int[] counts = new int[256];
+        int samples = 0;
+        for (int i = 0; i < data.length; i += step, samples++)
+            counts[data[i] & 0xff]++;
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0)
+                continue;
+            double p = (double) count / samples;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy <= MAX_ENTROPY;
+    }
+
+    /**
+     * Get the codec with an identifier kept in the disk journal
+     *
+     * @param id identifier of the codec
+     * @return codec with that identifier, null if unknown
+     */
+    public static ChunkCodec fromId(final int id) {
+        for (ChunkCodec codec : values())
+            if (codec.id == id)
+                return codec;
+        return null;
+    }
+
+    /**
+     * Get the codec named in a message header
+     *
+     * @param name name of the codec
+     * @return codec with that name, null if unknown
+     */
+    public static ChunkCodec fromHeader(final String name) {
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown chunk codec " + name + " !");
+            return null;
+        }
+    }
+
+    /**
+     * Get the codec configured by the {@link #CODEC_PROPERTY} system property
+     *
+     * @return configured codec, NONE by default
+     */
+    public static ChunkCodec fromProperties() {
+        String name = System.getProperty(CODEC_PROPERTY, NONE.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown chunk codec " + name + " ! Using " + NONE);
+            return NONE;
+        }
+    }
+}
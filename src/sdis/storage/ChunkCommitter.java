@@ -0,0 +1,224 @@
+package sdis.storage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Committer of the chunks saved to the disk. Once a chunk and its journal record
+ * are durable, as required by the durability mode, the action waiting for it runs.
+ * In group mode the chunks written within a commit window share a single commit.
+ */
+public class ChunkCommitter {
+
+    /**
+     * Maximum time in millis a chunk waits for others to share its commit
+     */
+    private static final int COMMIT_WINDOW = 10;
+
+    /**
+     * Number of chunks that commit at once without waiting for the window to end
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Durability mode of the committer
+     */
+    private final DurabilityMode mode;
+
+    /**
+     * Store of the chunk payloads
+     */
+    private final ChunkStore store;
+
+    /**
+     * Journal of the disk metadata
+     */
+    private final DiskJournal journal;
+
+    /**
+     * Chunks waiting to be committed
+     */
+    private List<Commit> pending;
+
+    /**
+     * Flag to tell if the committer was closed
+     */
+    private boolean closed;
+
+    /**
+     * Thread that commits the pending chunks, null unless in group mode
+     */
+    private final Thread committer;
+
+    /**
+     * Constructor of ChunkCommitter
+     *
+     * @param mode    durability mode of the committer
+     * @param store   store of the chunk payloads
+     * @param journal journal of the disk metadata
+     */
+    public ChunkCommitter(final DurabilityMode mode, final ChunkStore store, final DiskJournal journal) {
+        this.mode = mode;
+        this.store = store;
+        this.journal = journal;
+        this.pending = new ArrayList<>();
+
+        if (mode == DurabilityMode.GROUP) {
+            this.committer = new Thread(this::commitLoop, "ChunkCommitter");
+            this.committer.setDaemon(true);
+            this.committer.start();
+        } else this.committer = null;
+    }
+
+    /**
+     * Get the durability mode of the committer
+     *
+     * @return durability mode
+     */
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Run an action once a written chunk is durable
+     *
+     * @param storeId      id of the payload of the chunk in the store
+     * @param storeChunkNo number of the payload of the chunk in the store
+     * @param action       action to run, it is dropped if the chunk could not be made durable
+     */
+    public void commit(final String storeId, final int storeChunkNo, final Runnable action) {
+        switch (mode) {
+            case NONE:
+                action.run();
+                return;
+            case CHUNK:
+                if (!store.force(storeId, storeChunkNo) || !journal.sync())
+                    return;
+                action.run();
+                return;
+            default:
+                break;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                action.run();
+                return;
+            }
+            pending.add(new Commit(storeId, storeChunkNo, action));
+            if (pending.size() == 1 || pending.size() >= MAX_BATCH)
+                notifyAll();
+        }
+    }
+
+    /**
+     * Commit the pending chunks in batches until the committer is closed
+     */
+    private void commitLoop() {
+        while (true) {
+            List<Commit> batch;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+
+                // Let other chunks join the batch until the window ends
+                long deadline = System.currentTimeMillis() + COMMIT_WINDOW;
+                long remaining;
+                while (pending.size() < MAX_BATCH && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+
+            commitBatch(batch);
+        }
+    }
+
+    /**
+     * Commit a batch of chunks, forcing each payload once and the journal after them all.
+     * The actions of the whole batch are dropped if the journal fails to commit.
+     *
+     * @param batch chunks to be committed
+     */
+    private void commitBatch(final List<Commit> batch) {
+        Set<String> forced = new HashSet<>();
+        Set<String> failed = new HashSet<>();
+        for (Commit commit : batch) {
+            String key = commit.storeId + ":" + commit.storeChunkNo;
+            if (forced.add(key) && !store.force(commit.storeId, commit.storeChunkNo))
+                failed.add(key);
+        }
+        if (!journal.sync()) {
+            System.out.println("Dropped " + batch.size() + " actions waiting for the disk journal!");
+            return;
+        }
+
+        for (Commit commit : batch)
+            if (!failed.contains(commit.storeId + ":" + commit.storeChunkNo))
+                commit.action.run();
+    }
+
+    /**
+     * Commit the pending chunks and close the committer
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (committer == null)
+            return;
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            System.out.println("Failed to close the chunk committer! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Chunk waiting to be committed
+     */
+    private static class Commit {
+
+        /**
+         * Id of the payload of the chunk in the store
+         */
+        private final String storeId;
+
+        /**
+         * Number of the payload of the chunk in the store
+         */
+        private final int storeChunkNo;
+
+        /**
+         * Action to run once the chunk is durable
+         */
+        private final Runnable action;
+
+        /**
+         * Constructor of Commit
+         *
+         * @param storeId      id of the payload of the chunk in the store
+         * @param storeChunkNo number of the payload of the chunk in the store
+         * @param action       action to run once the chunk is durable
+         */
+        private Commit(final String storeId, final int storeChunkNo, final Runnable action) {
+            this.storeId = storeId;
+            this.storeChunkNo = storeChunkNo;
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package sdis.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of the chunks received while restoring a file
+ */
+public interface ChunkSink {
+
+    /**
+     * Write the data of a received chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    data of the chunk
+     * @return true if the chunk was written, false otherwise
+     */
+    boolean writeChunk(String fileId, int chunkNo, ByteBuffer data);
+
+    /**
+     * Check if a chunk is still needed, chunks that were not received may no longer be
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if the chunk is still needed, false otherwise
+     */
+    boolean isNeeded(String fileId, int chunkNo);
+}
@@ -1,8 +1,12 @@
 package sdis.storage;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * Class to control the state of a chunk like the minimum replication degree
@@ -15,18 +19,62 @@ public class ChunkState implements Serializable {
      */
     private static final long serialVersionUID = 1317200560983715340L;
 
+    /**
+     * Serialized fields of the ChunkState, the mirrors are kept as a bitset
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("minReplicationDegree", int.class),
+            new ObjectStreamField("replicationDegree", int.class),
+            new ObjectStreamField("size", int.class),
+            new ObjectStreamField("mirrors", long.class),
+            new ObjectStreamField("extraMirrors", int[].class),
+            new ObjectStreamField("contentHash", byte[].class),
+            new ObjectStreamField("codec", ChunkCodec.class),
+            new ObjectStreamField("checksum", long.class)
+    };
+
+    /**
+     * Checksum of a chunk stored without one
+     */
+    public static final long NO_CHECKSUM = -1;
+
+    /**
+     * Number of device ids kept in the mirrors bitset
+     */
+    private static final int MIRRORS_BITS = 64;
+
     /**
      * Minimum degree of replication
      */
-    private final int minReplicationDegree;
+    private int minReplicationDegree;
+    /**
+     * Bitset with the mirror devices with an id lower than {@link #MIRRORS_BITS}
+     */
+    private long mirrors;
     /**
-     * Set with all mirror devices
+     * Sorted mirror devices with any other id, null if there are none
      */
-    public Set<Integer> mirrorDevices;
+    private int[] extraMirrors;
     /**
      * Current replication degree
      */
     private int replicationDegree;
+    /**
+     * Size of the chunk in bytes, when stored in this peer
+     */
+    private int size;
+    /**
+     * SHA-256 hash of the content of the chunk, when stored by its content in this peer
+     */
+    private byte[] contentHash;
+    /**
+     * Codec of the data of the chunk, null if kept as is
+     */
+    private ChunkCodec codec;
+    /**
+     * CRC32C checksum of the stored data of the chunk, {@link #NO_CHECKSUM} if unknown
+     */
+    private long checksum;
 
     /**
      * Constructor of ChunkState
@@ -37,7 +85,23 @@ public class ChunkState implements Serializable {
     public ChunkState(final int minReplicationDegree, final int replicationDegree) {
         this.minReplicationDegree = minReplicationDegree;
         this.replicationDegree = replicationDegree;
-        this.mirrorDevices = new HashSet<>();
+        this.checksum = NO_CHECKSUM;
+    }
+
+    /**
+     * Constructor of ChunkState, copying another state
+     *
+     * @param state state to be copied
+     */
+    public ChunkState(final ChunkState state) {
+        this.minReplicationDegree = state.minReplicationDegree;
+        this.replicationDegree = state.replicationDegree;
+        this.size = state.size;
+        this.mirrors = state.mirrors;
+        this.extraMirrors = state.extraMirrors;
+        this.contentHash = state.contentHash;
+        this.codec = state.codec;
+        this.checksum = state.checksum;
     }
 
     /**
@@ -58,6 +122,78 @@ public class ChunkState implements Serializable {
         return replicationDegree;
     }
 
+    /**
+     * Get the size of the chunk
+     *
+     * @return size of the chunk in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Set the size of the chunk
+     *
+     * @param size size of the chunk in bytes
+     */
+    public void setSize(final int size) {
+        this.size = size;
+    }
+
+    /**
+     * Get the hash of the content of the chunk
+     *
+     * @return SHA-256 hash of the content, null if the chunk is not stored by its content
+     */
+    public byte[] getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Set the hash of the content of the chunk
+     *
+     * @param contentHash SHA-256 hash of the content, null if the chunk is not stored by its content
+     */
+    public void setContentHash(final byte[] contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Get the codec of the data of the chunk
+     *
+     * @return codec of the data
+     */
+    public ChunkCodec getCodec() {
+        return codec == null ? ChunkCodec.NONE : codec;
+    }
+
+    /**
+     * Set the codec of the data of the chunk
+     *
+     * @param codec codec of the data
+     */
+    public void setCodec(final ChunkCodec codec) {
+        this.codec = codec == ChunkCodec.NONE ? null : codec;
+    }
+
+    /**
+     * Get the checksum of the stored data of the chunk
+     *
+     * @return CRC32C checksum of the data, {@link #NO_CHECKSUM} if unknown
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Set the checksum of the stored data of the chunk
+     *
+     * @param checksum CRC32C checksum of the data, {@link #NO_CHECKSUM} if unknown
+     */
+    public void setChecksum(final long checksum) {
+        this.checksum = checksum;
+    }
+
     /**
      * Check if the chunk is safe, that is, if the replication degree
      * is higher or equal than the minimum replication degree of the chunk
@@ -73,10 +209,9 @@ public class ChunkState implements Serializable {
      *
      * @param deviceId device id that has mirrored the chunk
      */
-    public void increaseReplicas(Integer deviceId) {
-        if (this.mirrorDevices.contains(deviceId))
+    public void increaseReplicas(int deviceId) {
+        if (!addMirror(deviceId))
             return;
-        this.mirrorDevices.add(deviceId);
         this.replicationDegree++;
     }
 
@@ -85,11 +220,133 @@ public class ChunkState implements Serializable {
      *
      * @param deviceId device id that has deleted the chunk
      */
-    public void decreaseReplicas(Integer deviceId) {
-        if (!this.mirrorDevices.contains(deviceId))
+    public void decreaseReplicas(int deviceId) {
+        if (!removeMirror(deviceId))
             return;
-        this.mirrorDevices.remove(deviceId);
         if(replicationDegree > 0)
             this.replicationDegree--;
     }
+
+    /**
+     * Check if a device mirrors the chunk
+     *
+     * @param deviceId device id
+     * @return true if the device mirrors the chunk, false otherwise
+     */
+    public boolean hasMirror(final int deviceId) {
+        if (deviceId >= 0 && deviceId < MIRRORS_BITS)
+            return (mirrors & (1L << deviceId)) != 0;
+        return extraMirrors != null && Arrays.binarySearch(extraMirrors, deviceId) >= 0;
+    }
+
+    /**
+     * Get the devices that mirror the chunk
+     *
+     * @return ids of the mirror devices
+     */
+    public int[] getMirrors() {
+        int extra = extraMirrors != null ? extraMirrors.length : 0;
+        int[] devices = new int[Long.bitCount(mirrors) + extra];
+        int i = 0;
+        for (long bits = mirrors; bits != 0; bits &= bits - 1)
+            devices[i++] = Long.numberOfTrailingZeros(bits);
+        if (extra > 0)
+            System.arraycopy(extraMirrors, 0, devices, i, extra);
+        return devices;
+    }
+
+    /**
+     * Add a mirror device without changing the replication degree
+     *
+     * @param deviceId device id
+     * @return true if the device was added, false if it was already a mirror
+     */
+    boolean addMirror(final int deviceId) {
+        if (hasMirror(deviceId))
+            return false;
+
+        if (deviceId >= 0 && deviceId < MIRRORS_BITS) {
+            mirrors |= 1L << deviceId;
+        } else if (extraMirrors == null) {
+            extraMirrors = new int[]{deviceId};
+        } else {
+            int[] devices = Arrays.copyOf(extraMirrors, extraMirrors.length + 1);
+            devices[extraMirrors.length] = deviceId;
+            Arrays.sort(devices);
+            extraMirrors = devices;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a mirror device without changing the replication degree
+     *
+     * @param deviceId device id
+     * @return true if the device was removed, false if it was not a mirror
+     */
+    boolean removeMirror(final int deviceId) {
+        if (!hasMirror(deviceId))
+            return false;
+
+        if (deviceId >= 0 && deviceId < MIRRORS_BITS) {
+            mirrors &= ~(1L << deviceId);
+        } else if (extraMirrors.length == 1) {
+            extraMirrors = null;
+        } else {
+            int[] devices = new int[extraMirrors.length - 1];
+            int i = 0;
+            for (int device : extraMirrors)
+                if (device != deviceId)
+                    devices[i++] = device;
+            extraMirrors = devices;
+        }
+        return true;
+    }
+
+    /**
+     * Read the state from a stream, converting the mirrors of states
+     * that were saved as a set of device ids
+     *
+     * @param input stream to read from
+     * @throws IOException            error while reading
+     * @throws ClassNotFoundException class of a field not found
+     */
+    private void readObject(final ObjectInputStream input) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = input.readFields();
+        this.minReplicationDegree = fields.get("minReplicationDegree", 0);
+        this.replicationDegree = fields.get("replicationDegree", 0);
+        this.size = fields.get("size", 0);
+        this.contentHash = (byte[]) fields.get("contentHash", null);
+        this.codec = (ChunkCodec) fields.get("codec", null);
+        this.checksum = fields.get("checksum", NO_CHECKSUM);
+
+        if (fields.getObjectStreamClass().getField("mirrorDevices") != null) {
+            Object devices = fields.get("mirrorDevices", null);
+            if (devices instanceof Collection)
+                for (Object device : (Collection<?>) devices)
+                    addMirror((Integer) device);
+        } else {
+            this.mirrors = fields.get("mirrors", 0L);
+            this.extraMirrors = (int[]) fields.get("extraMirrors", null);
+        }
+    }
+
+    /**
+     * Write the state to a stream
+     *
+     * @param output stream to write to
+     * @throws IOException error while writing
+     */
+    private void writeObject(final ObjectOutputStream output) throws IOException {
+        ObjectOutputStream.PutField fields = output.putFields();
+        fields.put("minReplicationDegree", minReplicationDegree);
+        fields.put("replicationDegree", replicationDegree);
+        fields.put("size", size);
+        fields.put("mirrors", mirrors);
+        fields.put("extraMirrors", extraMirrors);
+        fields.put("contentHash", contentHash);
+        fields.put("codec", codec);
+        fields.put("checksum", checksum);
+        output.writeFields();
+    }
 }
@@ -0,0 +1,84 @@
+package sdis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Storage of the chunk payloads of a disk
+ */
+public interface ChunkStore {
+
+    /**
+     * System property to choose the chunk store (directory or segment)
+     */
+    String STORE_PROPERTY = "sdis.chunkstore";
+
+    /**
+     * Write the payload of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    payload of the chunk
+     * @return true if successful, false otherwise
+     */
+    boolean write(String fileId, int chunkNo, ByteBuffer data);
+
+    /**
+     * Read the payload of a chunk, as a read-only buffer, that stores may map instead of copying to the heap
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return payload of the chunk, null if it could not be read
+     */
+    ByteBuffer read(String fileId, int chunkNo);
+
+    /**
+     * Force the payload of a written chunk to the device
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if successful, false otherwise
+     */
+    boolean force(String fileId, int chunkNo);
+
+    /**
+     * Delete the payload of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if successful, false otherwise
+     */
+    boolean delete(String fileId, int chunkNo);
+
+    /**
+     * List the payloads in the store
+     *
+     * @return length of each payload by file id and chunk number, null if the store could not be listed
+     */
+    Map<String, Map<Integer, Integer>> list();
+
+    /**
+     * Close the chunk store
+     */
+    void close();
+
+    /**
+     * Open the chunk store of a server, chosen by the {@link #STORE_PROPERTY} system property
+     *
+     * @param serverId identification of the server
+     * @return opened chunk store
+     * @throws IOException error while opening the chunk store
+     */
+    static ChunkStore open(final String serverId) throws IOException {
+        switch (System.getProperty(STORE_PROPERTY, "directory")) {
+            case "segment":
+                return new SegmentChunkStore(new File(serverId + "segments"));
+            case "directory":
+                return new DirectoryChunkStore(new File(serverId + "data"));
+            default:
+                throw new IOException("Unknown chunk store " + System.getProperty(STORE_PROPERTY));
+        }
+    }
+}
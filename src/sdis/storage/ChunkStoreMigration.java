@@ -0,0 +1,82 @@
+package sdis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tool to migrate the chunks of a peer from the directory layout
+ * to the segment chunk store. Must be run while the peer is stopped.
+ */
+public class ChunkStoreMigration {
+
+    /**
+     * Main method of the ChunkStoreMigration
+     *
+     * @param args arguments sent to the console
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Please execute the migration using the following format:");
+            System.out.println("java sdis.storage.ChunkStoreMigration <serverId>");
+            return;
+        }
+
+        DirectoryChunkStore source = new DirectoryChunkStore(new File(args[0] + "data"));
+        SegmentChunkStore target = new SegmentChunkStore(new File(args[0] + "segments"));
+
+        // Chunks copied to the segments, only deleted once the segments are forced
+        List<String> copiedFileIds = new ArrayList<>();
+        List<Integer> copiedChunkNos = new ArrayList<>();
+
+        int migrated = 0, failed = 0;
+        File[] fileDirs = source.getRoot().listFiles(File::isDirectory);
+        if (fileDirs != null) {
+            for (File fileDir : fileDirs) {
+                String fileId = fileDir.getName();
+                File[] chunkFiles = fileDir.listFiles((dir, name) -> name.endsWith(".bin"));
+                if (chunkFiles == null)
+                    continue;
+
+                for (File chunkFile : chunkFiles) {
+                    int chunkNo;
+                    try {
+                        chunkNo = Integer.parseInt(chunkFile.getName().substring(0, chunkFile.getName().length() - 4));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+
+                    // Only keep the chunk for deletion once it can be read back from the segments
+                    ByteBuffer data = source.read(fileId, chunkNo);
+                    if (data != null && target.write(fileId, chunkNo, data)
+                            && data.equals(target.read(fileId, chunkNo))) {
+                        copiedFileIds.add(fileId);
+                        copiedChunkNos.add(chunkNo);
+                    } else {
+                        System.out.println("Failed to migrate chunk " + chunkNo + " of " + fileId + "!");
+                        failed++;
+                    }
+                }
+            }
+        }
+
+        // Delete the old chunks once the segments holding them are on the device
+        for (int i = 0; i < copiedFileIds.size(); i++) {
+            String fileId = copiedFileIds.get(i);
+            int chunkNo = copiedChunkNos.get(i);
+            if (target.force(fileId, chunkNo)) {
+                source.delete(fileId, chunkNo);
+                migrated++;
+            } else {
+                System.out.println("Failed to migrate chunk " + chunkNo + " of " + fileId + "!");
+                failed++;
+            }
+        }
+
+        target.close();
+        System.out.println("Migrated " + migrated + " chunks (" + failed + " failed).");
+        System.out.println("Start the peer with -D" + ChunkStore.STORE_PROPERTY + "=segment to use them.");
+    }
+}
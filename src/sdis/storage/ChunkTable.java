@@ -0,0 +1,251 @@
+package sdis.storage;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * States of the stored chunks of a file, indexed by chunk number. The states are kept in an
+ * array sized to the highest chunk number, and moved to a map once the array would be mostly
+ * empty, as a peer may hold only a few chunks of a large file.
+ * Reads never lock, changes must be made under the lock of the file.
+ */
+public class ChunkTable implements Serializable {
+
+    /**
+     * Serial version of the ChunkTable
+     */
+    private static final long serialVersionUID = 6120442619470338251L;
+
+    /**
+     * Initial capacity of the table
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Marker of a table written with the compact encoding of the states, in place of the number of chunks
+     */
+    private static final int COMPACT_FORMAT = -1;
+
+    /**
+     * Length of the array from which the states may be moved to a map
+     */
+    private static final int MIN_SPARSE_LENGTH = 1024;
+
+    /**
+     * Number of slots of the array per stored chunk above which the states are moved to a map.
+     * An empty slot takes 4 bytes and an entry of the map about 60, so a map is smaller once
+     * fewer than 1 in 15 slots are used.
+     */
+    private static final int SPARSE_RATIO = 16;
+
+    /**
+     * States of the chunks, null where the chunk is not stored
+     */
+    private transient volatile AtomicReferenceArray<ChunkState> states;
+
+    /**
+     * States of the chunks once moved to a map, null while they are kept in the array
+     */
+    private transient volatile Map<Integer, ChunkState> sparse;
+
+    /**
+     * Number of stored chunks
+     */
+    private transient volatile int count;
+
+    /**
+     * Constructor of ChunkTable
+     */
+    public ChunkTable() {
+        this.states = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Get the state of a chunk
+     *
+     * @param chunkNo number of the chunk
+     * @return state of the chunk, null if not stored
+     */
+    public ChunkState get(final int chunkNo) {
+        Map<Integer, ChunkState> map = sparse;
+        if (map != null)
+            return map.get(chunkNo);
+
+        AtomicReferenceArray<ChunkState> current = states;
+        if (chunkNo < 0 || chunkNo >= current.length())
+            return null;
+        return current.get(chunkNo);
+    }
+
+    /**
+     * Set the state of a chunk
+     *
+     * @param chunkNo number of the chunk
+     * @param state   state of the chunk
+     * @return previous state of the chunk, null if it was not stored
+     */
+    public ChunkState put(final int chunkNo, final ChunkState state) {
+        if (chunkNo < 0)
+            throw new IllegalArgumentException("Negative chunk number " + chunkNo);
+
+        Map<Integer, ChunkState> map = sparse;
+        AtomicReferenceArray<ChunkState> current = states;
+        if (map == null && chunkNo >= current.length()) {
+            int length = Math.max(chunkNo + 1, 2 * current.length());
+            if (length >= MIN_SPARSE_LENGTH && (count + 1) * SPARSE_RATIO < length) {
+                map = new ConcurrentHashMap<>();
+                for (int i = 0; i < current.length(); i++)
+                    if (current.get(i) != null)
+                        map.put(i, current.get(i));
+                sparse = map;
+            } else {
+                AtomicReferenceArray<ChunkState> grown = new AtomicReferenceArray<>(length);
+                for (int i = 0; i < current.length(); i++)
+                    grown.set(i, current.get(i));
+                states = current = grown;
+            }
+        }
+
+        ChunkState previous = map != null ? map.put(chunkNo, state) : current.getAndSet(chunkNo, state);
+        if (previous == null)
+            count++;
+        return previous;
+    }
+
+    /**
+     * Replace the state of a stored chunk
+     *
+     * @param chunkNo number of the chunk
+     * @param state   new state of the chunk
+     * @return previous state of the chunk, null if not stored and nothing was replaced
+     */
+    public ChunkState replace(final int chunkNo, final ChunkState state) {
+        return get(chunkNo) != null ? put(chunkNo, state) : null;
+    }
+
+    /**
+     * Remove the state of a chunk
+     *
+     * @param chunkNo number of the chunk
+     * @return removed state of the chunk, null if not stored
+     */
+    public ChunkState remove(final int chunkNo) {
+        Map<Integer, ChunkState> map = sparse;
+        AtomicReferenceArray<ChunkState> current = states;
+        if (map == null && (chunkNo < 0 || chunkNo >= current.length()))
+            return null;
+
+        ChunkState previous = map != null ? map.remove(chunkNo) : current.getAndSet(chunkNo, null);
+        if (previous != null)
+            count--;
+        return previous;
+    }
+
+    /**
+     * Get the number of stored chunks
+     *
+     * @return number of stored chunks
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Check if no chunk is stored
+     *
+     * @return true if no chunk is stored, false otherwise
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Get the numbers of the stored chunks
+     *
+     * @return numbers of the stored chunks, in ascending order
+     */
+    public int[] chunkNumbers() {
+        Map<Integer, ChunkState> map = sparse;
+        if (map != null) {
+            int[] numbers = map.keySet().stream().mapToInt(Integer::intValue).toArray();
+            Arrays.sort(numbers);
+            return numbers;
+        }
+
+        AtomicReferenceArray<ChunkState> current = states;
+        int[] numbers = new int[current.length()];
+        int n = 0;
+        for (int i = 0; i < current.length(); i++)
+            if (current.get(i) != null)
+                numbers[n++] = i;
+        return Arrays.copyOf(numbers, n);
+    }
+
+    /**
+     * Write the table to a stream as the number of chunks followed by each chunk number,
+     * size and state, encoded as in the journal rather than as serialized objects
+     *
+     * @param output stream to write to
+     * @throws IOException error while writing
+     */
+    private void writeObject(final ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        int[] numbers = chunkNumbers();
+        ByteArrayOutputStream recordsBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordsBytes);
+        int chunks = 0;
+        for (int chunkNo : numbers) {
+            ChunkState state = get(chunkNo);
+            if (state == null)
+                continue;
+            stateBytes.reset();
+            DiskJournal.writeState(new DataOutputStream(stateBytes), state);
+            records.writeInt(chunkNo);
+            records.writeInt(state.getSize());
+            records.writeShort(stateBytes.size());
+            stateBytes.writeTo(records);
+            chunks++;
+        }
+
+        output.writeInt(COMPACT_FORMAT);
+        output.writeInt(chunks);
+        output.writeInt(recordsBytes.size());
+        recordsBytes.writeTo(output);
+    }
+
+    /**
+     * Read the table from a stream, with the states encoded or as serialized objects
+     *
+     * @param input stream to read from
+     * @throws IOException            error while reading
+     * @throws ClassNotFoundException class of a field not found
+     */
+    private void readObject(final ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        this.states = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        int chunks = input.readInt();
+        if (chunks != COMPACT_FORMAT) {
+            for (int i = 0; i < chunks; i++)
+                put(input.readInt(), (ChunkState) input.readObject());
+            return;
+        }
+
+        chunks = input.readInt();
+        byte[] recordsBytes = new byte[input.readInt()];
+        input.readFully(recordsBytes);
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(recordsBytes));
+        for (int i = 0; i < chunks; i++) {
+            int chunkNo = records.readInt();
+            int size = records.readInt();
+            byte[] stateBytes = new byte[records.readUnsignedShort()];
+            records.readFully(stateBytes);
+            ChunkState state = DiskJournal.readState(new DataInputStream(new ByteArrayInputStream(stateBytes)));
+            state.setSize(size);
+            put(chunkNo, state);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package sdis.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Content defined chunker. The boundaries of the chunks are chosen by a rolling
+ * gear hash of the content, so an edit in a file only changes the chunks around
+ * it and every other chunk keeps its content.
+ */
+public class ContentChunker {
+
+    /**
+     * Minimum size of a chunk, except the last one
+     */
+    static final int MIN_SIZE_CHUNK = 16 * 1024;
+
+    /**
+     * Mask of the hash bits that are zero at a boundary, for an average of 32 KiB
+     */
+    private static final long BOUNDARY_MASK = (1L << 15) - 1;
+
+    /**
+     * Random value of each byte in the gear hash, fixed so every peer chunks alike
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5d15c0deL);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    /**
+     * Stream of the content
+     */
+    private final InputStream input;
+
+    /**
+     * Buffer of the content being chunked
+     */
+    private final byte[] buffer;
+
+    /**
+     * Start of the content in the buffer
+     */
+    private int start;
+
+    /**
+     * End of the content in the buffer
+     */
+    private int end;
+
+    /**
+     * True if the stream has no more content
+     */
+    private boolean eof;
+
+    /**
+     * Constructor of ContentChunker
+     *
+     * @param input stream of the content
+     */
+    public ContentChunker(final InputStream input) {
+        this.input = input;
+        this.buffer = new byte[4 * FileChunker.MAX_SIZE_CHUNK];
+    }
+
+    /**
+     * Get the next chunk of the content
+     *
+     * @return data of the next chunk, null if there is no more content
+     * @throws IOException error while reading the content
+     */
+    public byte[] next() throws IOException {
+        fill();
+        if (start == end)
+            return null;
+
+        int length = boundary(buffer, start, Math.min(end - start, FileChunker.MAX_SIZE_CHUNK));
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Find the length of the chunk that starts at an offset
+     *
+     * @param data      data being chunked
+     * @param offset    start of the chunk
+     * @param available bytes available after the offset, at most the maximum size of a chunk
+     * @return length of the chunk
+     */
+    static int boundary(final byte[] data, final int offset, final int available) {
+        if (available <= MIN_SIZE_CHUNK)
+            return available;
+
+        long hash = 0;
+        for (int i = MIN_SIZE_CHUNK; i < available; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & BOUNDARY_MASK) == 0)
+                return i + 1;
+        }
+        return available;
+    }
+
+    /**
+     * Fill the buffer until it holds a full chunk or the content ends
+     *
+     * @throws IOException error while reading the content
+     */
+    private void fill() throws IOException {
+        if (end - start >= FileChunker.MAX_SIZE_CHUNK || eof)
+            return;
+
+        // Move the remaining content to the start of the buffer
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+
+        while (end < buffer.length) {
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+                return;
+            }
+            end += read;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package sdis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Chunk store with one file per chunk, in a directory per file
+ * <root>/<FileId>/<ChunkNo>.bin
+ */
+public class DirectoryChunkStore implements ChunkStore {
+
+    /**
+     * Number of directories listed at once, most of the time goes to the file system
+     */
+    private static final int LIST_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Root directory of the chunks
+     */
+    private final File root;
+
+    /**
+     * Constructor of DirectoryChunkStore
+     *
+     * @param root root directory of the chunks
+     */
+    public DirectoryChunkStore(final File root) {
+        this.root = root;
+    }
+
+    /**
+     * Get the file of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return file of the chunk
+     */
+    File getChunkFile(final String fileId, final int chunkNo) {
+        return new File(root, fileId + File.separator + chunkNo + ".bin");
+    }
+
+    /**
+     * Get the root directory of the chunks
+     *
+     * @return root directory of the chunks
+     */
+    File getRoot() {
+        return root;
+    }
+
+    /**
+     * Write the payload of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    payload of the chunk
+     * @return true if successful, false otherwise
+     */
+    @Override
+    public boolean write(final String fileId, final int chunkNo, final ByteBuffer data) {
+        File chunkFile = getChunkFile(fileId, chunkNo);
+        File dir = chunkFile.getParentFile();
+        if (!dir.exists())
+            dir.mkdirs();
+
+        try (FileChannel channel = FileChannel.open(chunkFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer source = data.duplicate();
+            while (source.hasRemaining())
+                channel.write(source);
+        } catch (IOException e) {
+            System.out.println("Failed to save chunk to the disk! " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read the payload of a chunk into the heap. Chunk files are small and a mapping of each
+     * would only be released when collected, so many reads could exhaust the mappings of the process.
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return payload of the chunk, null if it could not be read
+     */
+    @Override
+    public ByteBuffer read(final String fileId, final int chunkNo) {
+        File chunkFile = getChunkFile(fileId, chunkNo);
+        try (FileChannel channel = FileChannel.open(chunkFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining())
+                if (channel.read(data, data.position()) < 0)
+                    break;
+            data.flip();
+            return data.asReadOnlyBuffer();
+        } catch (IOException e) {
+            System.out.println("Error while fetching chunk from the disk! " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Force the payload of a written chunk to the device, with the directory entry of its file
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if successful, false otherwise
+     */
+    @Override
+    public boolean force(final String fileId, final int chunkNo) {
+        File chunkFile = getChunkFile(fileId, chunkNo);
+        try (FileChannel channel = FileChannel.open(chunkFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Failed to force chunk to the disk! " + e.getMessage());
+            return false;
+        }
+
+        // A new chunk file is only durable once its directory is, not every platform can force one
+        try (FileChannel channel = FileChannel.open(chunkFile.getParentFile().toPath(), StandardOpenOption.READ)) {
+            channel.force(false);
+        } catch (IOException ignore) {
+        }
+        return true;
+    }
+
+    /**
+     * Delete the payload of a chunk, and the directory of the file if it becomes empty
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if successful, false otherwise
+     */
+    @Override
+    public boolean delete(final String fileId, final int chunkNo) {
+        File chunkFile = getChunkFile(fileId, chunkNo);
+        if (!chunkFile.delete())
+            return false;
+
+        // Delete file folder if no more chunks are stored
+        File fileFolder = chunkFile.getParentFile();
+        String[] remaining = fileFolder.list();
+        if (remaining != null && remaining.length <= 0)
+            return fileFolder.delete();
+        return true;
+    }
+
+    /**
+     * List the payloads in the store, listing the directories of the files in parallel
+     *
+     * @return length of each payload by file id and chunk number, null if the store could not be listed
+     */
+    @Override
+    public Map<String, Map<Integer, Integer>> list() {
+        Map<String, Map<Integer, Integer>> payloads = new ConcurrentHashMap<>();
+        if (!root.exists())
+            return payloads;
+        File[] fileDirs = root.listFiles(File::isDirectory);
+        if (fileDirs == null) {
+            System.out.println("Failed to list the chunks in " + root + " !");
+            return null;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(LIST_THREADS);
+        try {
+            List<Future<Void>> listings = new ArrayList<>();
+            for (File fileDir : fileDirs)
+                listings.add(executor.submit(() -> {
+                    File[] chunkFiles = fileDir.listFiles((dir, name) -> name.endsWith(".bin"));
+                    if (chunkFiles == null)
+                        throw new IOException("Could not list " + fileDir);
+
+                    Map<Integer, Integer> chunks = new HashMap<>();
+                    for (File chunkFile : chunkFiles) {
+                        try {
+                            chunks.put(Integer.parseInt(chunkFile.getName().substring(0, chunkFile.getName().length() - 4)),
+                                    (int) chunkFile.length());
+                        } catch (NumberFormatException ignore) {
+                        }
+                    }
+                    payloads.put(fileDir.getName(), chunks);
+                    return null;
+                }));
+            for (Future<Void> listing : listings)
+                listing.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Failed to list the chunks in " + root + " ! " + e.getMessage());
+            return null;
+        } finally {
+            executor.shutdown();
+        }
+        return payloads;
+    }
+
+    /**
+     * Close the chunk store
+     */
+    @Override
+    public void close() {
+    }
+}
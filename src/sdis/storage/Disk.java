@@ -3,17 +3,32 @@ package sdis.storage;
 import sdis.BackupService;
 import sdis.protocol.ChunkDeleted;
 import sdis.protocol.RemoveChunk;
+import sdis.utils.Utilities;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Disk
+ *
+ * Changes to different files run in parallel: every change takes the lock of the
+ * stripe of its file id plus the shared side of the checkpoint lock, which is only
+ * taken exclusively while the disk is being checkpointed.
  */
 public class Disk implements Serializable {
 
@@ -21,6 +36,26 @@ public class Disk implements Serializable {
      * Serial version of Disk
      */
     private static final long serialVersionUID = 8516322467343602642L;
+    /**
+     * Number of lock stripes
+     */
+    private static final int LOCK_STRIPES = 64;
+    /**
+     * Number of chunks removed at the same time while reclaiming space
+     */
+    private static final int RECLAIM_THREADS = 4;
+    /**
+     * System property to store the chunks by their content, once for all the files with the same content
+     */
+    public static final String DEDUP_PROPERTY = "sdis.dedup";
+    /**
+     * Prefix of the ids under which the contents are kept in the store
+     */
+    private static final String CONTENT_PREFIX = "content-";
+    /**
+     * Atomic updater of the used bytes
+     */
+    private static final AtomicIntegerFieldUpdater<Disk> USED_BYTES = AtomicIntegerFieldUpdater.newUpdater(Disk.class, "usedBytes");
     /**
      * HashMap to be able to retrieve the id from the filename
      */
@@ -44,12 +79,82 @@ public class Disk implements Serializable {
     /**
      * Used bytes of the disk
      */
-    private int usedBytes;
+    private volatile int usedBytes;
     /**
      * Map with all files and chunks saved as well as their state
-     * <FileId, <ChunkNo, ChunkState>>
+     * <FileId, [ChunkNo -> ChunkState]>
+     */
+    private ConcurrentHashMap<FileKey, ChunkTable> chunkTables;
+
+    /**
+     * Generation of the disk, increased on every checkpoint
+     */
+    private long journalGeneration;
+
+    /**
+     * Journal with the changes since the last checkpoint
+     */
+    private transient DiskJournal journal;
+
+    /**
+     * File where the disk is checkpointed to
+     */
+    private transient File diskFile;
+
+    /**
+     * Store of the chunk payloads
+     */
+    private transient ChunkStore store;
+
+    /**
+     * Cache of the most requested chunk payloads, null if disabled
      */
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkState>> files;
+    private transient ChunkCache cache;
+
+    /**
+     * Locks of the file id stripes
+     */
+    private transient ReentrantLock[] stripes;
+
+    /**
+     * Lock shared by all changes and exclusive while checkpointing
+     */
+    private transient ReentrantReadWriteLock checkpointLock;
+
+    /**
+     * Index of the stored chunks in reclaim order
+     */
+    private transient ReclaimPlanner planner;
+
+    /**
+     * True to store new chunks by their content
+     */
+    private transient boolean dedup;
+
+    /**
+     * Number of stored chunks that reference each content
+     */
+    private transient ConcurrentHashMap<FileKey, Integer> contentRefs;
+
+    /**
+     * Locks of the content stripes, always taken after the lock of the file id
+     */
+    private transient ReentrantLock[] contentStripes;
+
+    /**
+     * Scrubber of the stored chunks, null if disabled
+     */
+    private transient Thread scrubber;
+
+    /**
+     * Committer of the saved chunks
+     */
+    private transient ChunkCommitter committer;
+
+    /**
+     * Chunks dropped when the disk was verified against the store, to be announced as removed
+     */
+    private transient List<Chunk> lostChunks;
 
     /**
      * Constructor of Disk
@@ -57,11 +162,115 @@ public class Disk implements Serializable {
      */
     public Disk() {
         this.usedBytes = 0;
-        this.files = new ConcurrentHashMap<>();
-        this.filenames = new HashMap<>();
-        this.filesizes = new HashMap<>();
-        this.mirrorDevices = new HashMap<>();
+        this.chunkTables = new ConcurrentHashMap<>();
+        this.filenames = new ConcurrentHashMap<>();
+        this.filesizes = new ConcurrentHashMap<>();
+        this.mirrorDevices = new ConcurrentHashMap<>();
         this.idSet = new ArrayList<>();
+        initTransient();
+    }
+
+    /**
+     * Read the disk from a stream, making its maps concurrent and converting
+     * the chunks of disks saved with a map of chunk numbers per file
+     *
+     * @param input stream to read from
+     * @throws IOException            error while reading
+     * @throws ClassNotFoundException class of a field not found
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream input) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = input.readFields();
+        this.filenames = new ConcurrentHashMap<>((Map<String, String>) fields.get("filenames", new HashMap<>()));
+        this.filesizes = new ConcurrentHashMap<>((Map<String, Integer>) fields.get("filesizes", new HashMap<>()));
+        this.mirrorDevices = new ConcurrentHashMap<>((Map<String, Map<Integer, ChunkState>>) fields.get("mirrorDevices", new HashMap<>()));
+        this.idSet = (ArrayList<String>) fields.get("idSet", new ArrayList<>());
+        this.sem = (Semaphore) fields.get("sem", new Semaphore(1));
+        this.usedBytes = fields.get("usedBytes", 0);
+        this.journalGeneration = fields.get("journalGeneration", 0L);
+
+        if (fields.getObjectStreamClass().getField("files") != null) {
+            this.chunkTables = new ConcurrentHashMap<>();
+            Map<String, Map<Integer, ChunkState>> files = (Map<String, Map<Integer, ChunkState>>) fields.get("files", null);
+            if (files != null)
+                for (Map.Entry<String, Map<Integer, ChunkState>> filesEntry : files.entrySet()) {
+                    ChunkTable table = new ChunkTable();
+                    for (Map.Entry<Integer, ChunkState> chunksEntry : filesEntry.getValue().entrySet())
+                        table.put(chunksEntry.getKey(), chunksEntry.getValue());
+                    if (!table.isEmpty())
+                        chunkTables.put(FileKey.of(filesEntry.getKey()), table);
+                }
+        } else {
+            this.chunkTables = (ConcurrentHashMap<FileKey, ChunkTable>) fields.get("chunkTables", new ConcurrentHashMap<>());
+        }
+
+        initTransient();
+
+        for (Map.Entry<FileKey, ChunkTable> tablesEntry : chunkTables.entrySet()) {
+            String fileHash = tablesEntry.getKey().toString();
+            for (int chunkNumber : tablesEntry.getValue().chunkNumbers()) {
+                ChunkState state = tablesEntry.getValue().get(chunkNumber);
+                planner.update(fileHash, chunkNumber, state);
+                if (state.getContentHash() != null)
+                    contentRefs.merge(FileKey.of(state.getContentHash()), 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Create the locks and the reclaim index of the disk
+     */
+    private void initTransient() {
+        this.stripes = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            this.stripes[i] = new ReentrantLock();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.planner = new ReclaimPlanner(ReclaimPolicy.fromProperties());
+        this.dedup = Boolean.getBoolean(DEDUP_PROPERTY);
+        this.contentRefs = new ConcurrentHashMap<>();
+        this.contentStripes = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            this.contentStripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Get the lock of the stripe of a content
+     *
+     * @param hash SHA-256 hash of the content
+     * @return lock of the content stripe
+     */
+    private ReentrantLock contentLock(final byte[] hash) {
+        return contentStripes[(FileKey.of(hash).hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Get the id under which a content is kept in the store
+     *
+     * @param hash SHA-256 hash of the content
+     * @return id of the content in the store
+     */
+    private static String contentId(final byte[] hash) {
+        return CONTENT_PREFIX + FileKey.of(hash);
+    }
+
+    /**
+     * Lock the stripe of a key for a change
+     *
+     * @param key key of the change (file id or filename)
+     */
+    private void lock(final String key) {
+        checkpointLock.readLock().lock();
+        stripes[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES].lock();
+    }
+
+    /**
+     * Unlock the stripe of a key after a change
+     *
+     * @param key key of the change (file id or filename)
+     */
+    private void unlock(final String key) {
+        stripes[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES].unlock();
+        checkpointLock.readLock().unlock();
     }
 
     /**
@@ -69,7 +278,7 @@ public class Disk implements Serializable {
      *
      * @return used bytes of the disk
      */
-    public synchronized int getUsedBytes() {
+    public int getUsedBytes() {
         return usedBytes;
     }
 
@@ -80,27 +289,137 @@ public class Disk implements Serializable {
      * @param chunkNumber chunk number
      * @return chunk with that file hash and chunk number
      */
-    public synchronized Chunk getChunk(final String fileHash, final int chunkNumber) {
-        if (!hasChunk(fileHash, chunkNumber))
+    public Chunk getChunk(final String fileHash, final int chunkNumber) {
+        // Chunk state
+        ChunkState state = getChunkState(fileHash, chunkNumber);
+        if (state == null)
             return null;
 
-        // Chunk state
-        ChunkState state = files.get(fileHash).get(chunkNumber);
+        // Get a view of the chunk from the cache or the disk
+        ByteBuffer data = cache != null ? cache.get(fileHash, chunkNumber) : null;
+        if (data == null) {
+            data = readStoredData(fileHash, chunkNumber, state);
+            if (data == null)
+                return null;
+            // Never serve a corrupted chunk
+            if (!isIntact(state, data)) {
+                quarantineChunk(fileHash, chunkNumber, state, data);
+                return null;
+            }
+            if (cache != null) {
+                cache.put(fileHash, chunkNumber, data);
+                // The chunk may have been removed meanwhile
+                if (!hasChunk(fileHash, chunkNumber))
+                    cache.invalidate(fileHash, chunkNumber);
+            }
+        }
 
-        // Get chunk from the disk
-        File chunkFile = new File(BackupService.getInstance().getServerId().toString() + "data" + File.separator + fileHash + File.separator + chunkNumber + ".bin");
-        byte[] data = new byte[(int) chunkFile.length()];
-        try {
-            FileInputStream fis = new FileInputStream(chunkFile);
-            fis.read(data);
-            fis.close();
+        planner.touch(fileHash, chunkNumber);
 
-        } catch (Exception e) {
-            System.out.println("Error while fetching chunk from the disk! " + e.getMessage());
-            return null;
+        return new Chunk(fileHash, chunkNumber, data, state);
+    }
+
+    /**
+     * Read the stored data of a chunk from the store
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       state of the chunk
+     * @return view of the stored data, null if it could not be read
+     */
+    private ByteBuffer readStoredData(final String fileHash, final int chunkNumber, final ChunkState state) {
+        return state.getContentHash() != null
+                ? store.read(contentId(state.getContentHash()), 0)
+                : store.read(fileHash, chunkNumber);
+    }
+
+    /**
+     * Check the stored data of a chunk against its checksum
+     *
+     * @param state state of the chunk
+     * @param data  stored data of the chunk
+     * @return true if the data matches the checksum or the chunk has none, false otherwise
+     */
+    private static boolean isIntact(final ChunkState state, final ByteBuffer data) {
+        return state.getChecksum() == ChunkState.NO_CHECKSUM || state.getChecksum() == Utilities.crc32c(data);
+    }
+
+    /**
+     * Scrub a stored chunk, reading it from the store to check it against its checksum
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @return bytes read from the store, -1 if the chunk was corrupted and has been quarantined
+     */
+    public int scrubChunk(final String fileHash, final int chunkNumber) {
+        ChunkState state = getChunkState(fileHash, chunkNumber);
+        if (state == null)
+            return 0;
+
+        ByteBuffer data = readStoredData(fileHash, chunkNumber, state);
+        if (data == null)
+            return 0;
+        if (isIntact(state, data))
+            return data.remaining();
+
+        quarantineChunk(fileHash, chunkNumber, state, data);
+        return -1;
+    }
+
+    /**
+     * Quarantine a corrupted chunk. Its data is kept aside for inspection, the chunk is
+     * removed from the disk and announced as removed so that it is backed up again.
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       state of the chunk
+     * @param data        corrupted data of the chunk
+     */
+    private void quarantineChunk(final String fileHash, final int chunkNumber, final ChunkState state, final ByteBuffer data) {
+        // The chunk may have been replaced since it was read
+        if (getChunkState(fileHash, chunkNumber) != state)
+            return;
+
+        System.out.println("Chunk " + chunkNumber + " of " + fileHash + " is corrupted ! Quarantining it.");
+
+        File directory = new File(BackupService.getInstance().getServerId() + "quarantine");
+        if (directory.isDirectory() || directory.mkdirs()) {
+            File file = new File(directory, fileHash + "_" + chunkNumber + ".bin");
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = data.duplicate();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (IOException e) {
+                System.out.println("Failed to quarantine the chunk " + chunkNumber + " of " + fileHash + " ! " + e.getMessage());
+            }
         }
 
-        return new Chunk(fileHash, chunkNumber, data, state);
+        if (removeStoredChunk(fileHash, chunkNumber, false) >= 0)
+            (new RemoveChunk(new Chunk(fileHash, chunkNumber, new byte[0], state))).run();
+    }
+
+    /**
+     * Get the file ids with stored chunks
+     *
+     * @return file ids with stored chunks
+     */
+    public List<String> getStoredFiles() {
+        List<String> fileIds = new ArrayList<>();
+        for (FileKey key : chunkTables.keySet())
+            fileIds.add(key.toString());
+        return fileIds;
+    }
+
+    /**
+     * Get the numbers of the stored chunks of a file
+     *
+     * @param fileHash file hash of the file
+     * @return numbers of the stored chunks, in ascending order
+     */
+    public int[] getStoredChunks(final String fileHash) {
+        ChunkTable table = chunkTables.get(FileKey.of(fileHash));
+        return table == null ? new int[0] : table.chunkNumbers();
     }
 
     /**
@@ -110,12 +429,9 @@ public class Disk implements Serializable {
      * @param chunkNumber number of the chunk
      * @return chunk state of the chunk
      */
-    public synchronized ChunkState getChunkState(final String fileHash, int chunkNumber) {
-        if (!files.containsKey(fileHash))
-            return null;
-        if (!files.get(fileHash).containsKey(chunkNumber))
-            return null;
-        return files.get(fileHash).get(chunkNumber);
+    public ChunkState getChunkState(final String fileHash, int chunkNumber) {
+        ChunkTable table = chunkTables.get(FileKey.of(fileHash));
+        return table == null ? null : table.get(chunkNumber);
     }
 
     /**
@@ -125,69 +441,156 @@ public class Disk implements Serializable {
      * @param chunkNumber number of the chunk to check
      * @return true if chunk file exists, false otherwise
      */
-    public synchronized boolean hasChunk(final String fileHash, final int chunkNumber) {
-        if (!files.containsKey(fileHash))
-            return false;
-        return files.get(fileHash).containsKey(chunkNumber);
+    public boolean hasChunk(final String fileHash, final int chunkNumber) {
+        return getChunkState(fileHash, chunkNumber) != null;
     }
 
     /**
-     * File a chunk to a file
+     * Save a chunk to the disk
      *
-     * @param chunk chunk to be saved
+     * @param chunk to be added
      */
-    public synchronized void saveToFile(final Chunk chunk) {
+    public boolean saveChunk(final Chunk chunk) {
+        if (chunk == null)
+            return false;
+
+        lock(chunk.getFileID());
         try {
-            RandomAccessFile file = new RandomAccessFile(chunk.getFileID(), "rw");
-            file.seek(FileChunker.getMaxSizeChunk() * chunk.getChunkNo());
-            file.write(chunk.getData());
-            file.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            // Save chunk in the disk
+            if (cache != null)
+                cache.invalidate(chunk.getFileID(), chunk.getChunkNo());
+            chunk.getState().setSize(chunk.getSize());
+            chunk.getState().setChecksum(Utilities.crc32c(chunk.getBuffer()));
+
+            if (dedup) {
+                // Release the content of the chunk being replaced first
+                ChunkState previous = getChunkState(chunk.getFileID(), chunk.getChunkNo());
+                if (previous != null && deleteStoredChunk(chunk.getFileID(), chunk.getChunkNo(), previous) < 0)
+                    return false;
+
+                byte[] hash = Utilities.sha256(chunk.getBuffer());
+                chunk.getState().setContentHash(hash);
+
+                ReentrantLock contentLock = contentLock(hash);
+                contentLock.lock();
+                try {
+                    // Only the first chunk with a content writes it
+                    if (!contentRefs.containsKey(FileKey.of(hash)) && !store.write(contentId(hash), 0, chunk.getBuffer()))
+                        return false;
+                    applySaveChunk(chunk.getFileID(), chunk.getChunkNo(), chunk.getState(), chunk.getSize());
+                } finally {
+                    contentLock.unlock();
+                }
+            } else {
+                if (!store.write(chunk.getFileID(), chunk.getChunkNo(), chunk.getBuffer()))
+                    return false;
+                applySaveChunk(chunk.getFileID(), chunk.getChunkNo(), chunk.getState(), chunk.getSize());
+            }
+
+            // Log the change
+            journal.logSaveChunk(chunk.getFileID(), chunk.getChunkNo(), chunk.getState(), chunk.getSize());
+        } finally {
+            unlock(chunk.getFileID());
         }
+        checkpointIfNeeded();
+
+        return true;
     }
 
     /**
-     * Save a chunk to the disk
+     * Run an action once a saved chunk is durable, as required by the durability mode
      *
-     * @param chunk to be added
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param action      action to run, it is dropped if the chunk is not stored or could not be made durable
      */
-    public synchronized boolean saveChunk(final Chunk chunk) {
-        if (chunk == null)
+    public void whenDurable(final String fileHash, final int chunkNumber, final Runnable action) {
+        ChunkState state = getChunkState(fileHash, chunkNumber);
+        if (state == null)
+            return;
+
+        if (state.getContentHash() != null)
+            committer.commit(contentId(state.getContentHash()), 0, action);
+        else committer.commit(fileHash, chunkNumber, action);
+    }
+
+    /**
+     * Save a chunk whose content is already stored by another chunk, without its data
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       state of the chunk, with the hash of its content
+     * @return true if the chunk was saved, false if the content is not stored or the chunk already was
+     */
+    public boolean aliasChunk(final String fileHash, final int chunkNumber, final ChunkState state) {
+        byte[] hash = state.getContentHash();
+        if (!dedup || hash == null)
             return false;
 
-        // Save chunk in the disk
+        lock(fileHash);
         try {
+            if (hasChunk(fileHash, chunkNumber))
+                return false;
 
-            File dir = new File(BackupService.getInstance().getServerId().toString() + "data" + File.separator + chunk.getFileID());
-
-            File chunkFile = new File(dir.toString() + File.separator + chunk.getChunkNo() + ".bin");
-            if (!dir.exists()) {
-                dir.mkdirs();
+            ReentrantLock contentLock = contentLock(hash);
+            contentLock.lock();
+            try {
+                if (!contentRefs.containsKey(FileKey.of(hash)))
+                    return false;
+                ByteBuffer data = store.read(contentId(hash), 0);
+                if (data == null)
+                    return false;
+                state.setChecksum(Utilities.crc32c(data));
+                applySaveChunk(fileHash, chunkNumber, state, data.remaining());
+            } finally {
+                contentLock.unlock();
             }
-            FileOutputStream f = new FileOutputStream(chunkFile);
-            BufferedOutputStream chunkFileOutputStream = new BufferedOutputStream(f);
-            chunkFileOutputStream.write(chunk.getData());
-            chunkFileOutputStream.close();
-            f.close();
-        } catch (IOException e) {
-            System.out.println("Failed to save chunk to the disk! " + e.getMessage());
-            return false;
+
+            // Log the change
+            journal.logSaveChunk(fileHash, chunkNumber, state, state.getSize());
+        } finally {
+            unlock(fileHash);
         }
+        checkpointIfNeeded();
 
-        // Added used space
-        usedBytes += chunk.getData().length;
+        return true;
+    }
 
-        // Save in chunk's map
-        if (!files.containsKey(chunk.getFileID()))
-            files.put(chunk.getFileID(), new ConcurrentHashMap<>());
+    /**
+     * Apply a saved chunk to the disk metadata
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       state of the chunk
+     * @param size        size of the chunk
+     */
+    void applySaveChunk(final String fileHash, final int chunkNumber, final ChunkState state, final int size) {
+        state.setSize(size);
 
-        files.get(chunk.getFileID()).put(chunk.getChunkNo(), chunk.getState());
+        ChunkState previous = chunkTables.computeIfAbsent(FileKey.of(fileHash), k -> new ChunkTable()).put(chunkNumber, state);
+        if (previous != null)
+            releaseBytes(previous, previous.getSize());
 
-        // Save the disk
-        this.saveDisk();
+        // Added used space, only once for each content
+        if (state.getContentHash() == null || contentRefs.merge(FileKey.of(state.getContentHash()), 1, Integer::sum) == 1)
+            USED_BYTES.addAndGet(this, size);
+        planner.update(fileHash, chunkNumber, state);
+    }
 
-        return true;
+    /**
+     * Release the bytes of a chunk that is no longer stored
+     *
+     * @param state state of the chunk
+     * @param size  size of the chunk
+     * @return bytes freed, 0 if its content is still referenced by other chunks
+     */
+    private int releaseBytes(final ChunkState state, final int size) {
+        if (state.getContentHash() != null
+                && contentRefs.computeIfPresent(FileKey.of(state.getContentHash()), (k, refs) -> refs > 1 ? refs - 1 : null) != null)
+            return 0;
+
+        USED_BYTES.addAndGet(this, -size);
+        return size;
     }
 
     /**
@@ -196,14 +599,14 @@ public class Disk implements Serializable {
      * @param fileHash file hash to delete all the chunks
      * @return true if successfull, false otherwise
      */
-    public synchronized boolean removeChunks(final String fileHash, boolean enhanced) {
-        if (!files.containsKey(fileHash))
+    public boolean removeChunks(final String fileHash, boolean enhanced) {
+        ChunkTable table = chunkTables.get(FileKey.of(fileHash));
+        if (table == null)
             return true;
 
         // Remove all chunks
-        Map<Integer, ChunkState> chunks = files.get(fileHash);
-        for (Map.Entry<Integer, ChunkState> entry : new HashMap<>(chunks).entrySet()) {
-            if (!removeChunk(fileHash, entry.getKey(),enhanced))
+        for (int chunkNumber : table.chunkNumbers()) {
+            if (!removeChunk(fileHash, chunkNumber, enhanced))
                 return false;
         }
 
@@ -217,11 +620,8 @@ public class Disk implements Serializable {
      * @param chunkNumber chunk number to be removed
      * @return true if successfull, false otherwise
      */
-    public synchronized boolean removeChunk(final String fileHash, final int chunkNumber, boolean enhanced) {
-        Chunk chunk = getChunk(fileHash, chunkNumber);
-        if (chunk != null)
-            return removeChunk(getChunk(fileHash, chunkNumber),enhanced);
-        else return true;
+    public boolean removeChunk(final String fileHash, final int chunkNumber, boolean enhanced) {
+        return !hasChunk(fileHash, chunkNumber) || removeStoredChunk(fileHash, chunkNumber, enhanced) >= 0;
     }
 
     /**
@@ -230,71 +630,186 @@ public class Disk implements Serializable {
      * @param chunk chunk to be removed
      * @return true if chunk was removed, false otherwise
      */
-    public synchronized boolean removeChunk(final Chunk chunk,boolean enhanced) {
-
-        if (chunk == null)
-            return false;
-        // Check disk space
-        if (chunk.getData().length > getUsedBytes()) {
-            System.out.println("Removing more bytes than the ones being used!");
-            return false;
-        }
+    public boolean removeChunk(final Chunk chunk,boolean enhanced) {
+        return chunk != null && removeStoredChunk(chunk.getFileID(), chunk.getChunkNo(), enhanced) >= 0;
+    }
 
-        // Check if chunk exists
-        if (!hasChunk(chunk.getFileID(), chunk.getChunkNo()))
-            return false;
+    /**
+     * Remove a stored chunk from the disk, using only its metadata
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber chunk number to be removed
+     * @param enhanced    true to announce the deletion with the enhanced protocol
+     * @return bytes freed in the disk, -1 if the chunk was not removed
+     */
+    private int removeStoredChunk(final String fileHash, final int chunkNumber, boolean enhanced) {
+        ChunkState state;
+        int freed;
+        lock(fileHash);
+        try {
+            // Check if chunk exists
+            state = getChunkState(fileHash, chunkNumber);
+            if (state == null)
+                return -1;
 
-        File chunkFile = new File(BackupService.getInstance().getServerId().toString() + "data" + File.separator + chunk.getFileID() + File.separator + chunk.getChunkNo() + ".bin");
-        System.gc();
+            // Check disk space
+            if (state.getSize() > getUsedBytes()) {
+                System.out.println("Removing more bytes than the ones being used!");
+                return -1;
+            }
 
-        if (!chunkFile.delete())
-            return false;
+            freed = deleteStoredChunk(fileHash, chunkNumber, state);
+            if (freed < 0)
+                return -1;
+        } finally {
+            unlock(fileHash);
+        }
+        checkpointIfNeeded();
 
-        BackupService.getInstance().getChannelsHandler().decreaseStoredConfirmation(chunk.getFileID(),chunk.getChunkNo(),(new Integer(BackupService.getInstance().getServerId())).toString());
+        // Only call back into the channels handler without holding any lock of the disk
+        BackupService.getInstance().getChannelsHandler().decreaseStoredConfirmation(fileHash,chunkNumber,(new Integer(BackupService.getInstance().getServerId())).toString());
 
         //BackupService.getInstance().getChannelsHandler().stopListenStoredConfirmations(chunk.getFileID(),chunk.getChunkNo());
 
-        // Delete file folder if no more chunks are stored
-        File fileFolder = chunkFile.getParentFile();
-        if (fileFolder.list().length <= 0)
-            if (!fileFolder.delete())
-                return false;
+        if(enhanced) {
+            ChunkDeleted chunkDeleted = new ChunkDeleted(new Chunk(fileHash, chunkNumber, new byte[0], state));
 
-        // Add free space
-        usedBytes -= chunk.getData().length;
+            chunkDeleted.run();
+        }
 
-        // Remove in chunk's map
-        files.get(chunk.getFileID()).remove(chunk.getChunkNo());
+        return freed;
+    }
 
-        //Remove file from file's map is no more chunks exist
-        if (files.get(chunk.getFileID()).isEmpty())
-            files.remove(chunk.getFileID());
+    /**
+     * Delete a stored chunk from the store and the disk metadata, holding the lock of its file.
+     * A chunk stored by its content only deletes the content when no other chunk references it.
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       state of the chunk
+     * @return bytes freed in the disk, -1 if the chunk was not deleted
+     */
+    private int deleteStoredChunk(final String fileHash, final int chunkNumber, final ChunkState state) {
+        if (cache != null)
+            cache.invalidate(fileHash, chunkNumber);
 
-        // Save the disk
-        this.saveDisk();
+        int freed;
+        byte[] hash = state.getContentHash();
+        if (hash != null) {
+            ReentrantLock contentLock = contentLock(hash);
+            contentLock.lock();
+            try {
+                freed = applyRemoveChunk(fileHash, chunkNumber, state.getSize());
+                if (!contentRefs.containsKey(FileKey.of(hash)))
+                    store.delete(contentId(hash), 0);
+            } finally {
+                contentLock.unlock();
+            }
+        } else {
+            if (!store.delete(fileHash, chunkNumber))
+                return -1;
+            freed = applyRemoveChunk(fileHash, chunkNumber, state.getSize());
+        }
 
-        if(enhanced) {
-            ChunkDeleted chunkDeleted = new ChunkDeleted(chunk);
+        // Log the change
+        journal.logRemoveChunk(fileHash, chunkNumber, state.getSize());
+        return freed;
+    }
 
-            chunkDeleted.run();
-        }
+    /**
+     * Apply a removed chunk to the disk metadata
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param size        size of the chunk
+     * @return bytes freed in the disk
+     */
+    int applyRemoveChunk(final String fileHash, final int chunkNumber, final int size) {
+        int[] freed = new int[1];
+        chunkTables.computeIfPresent(FileKey.of(fileHash), (k, table) -> {
+            // Remove in chunk's table and add free space
+            ChunkState removed = table.remove(chunkNumber);
+            if (removed != null)
+                freed[0] = releaseBytes(removed, size);
+            planner.remove(fileHash, chunkNumber);
 
-        // Save the disk
-        this.saveDisk();
+            //Remove file from file's map is no more chunks exist
+            return table.isEmpty() ? null : table;
+        });
+        return freed[0];
+    }
 
-        return true;
+    /**
+     * Increase the replicas of a stored chunk
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param deviceId    device id that has mirrored the chunk
+     * @return updated state of the chunk, null if the chunk is not stored
+     */
+    public ChunkState increaseReplicas(final String fileHash, final int chunkNumber, final int deviceId) {
+        return updateChunkState(fileHash, chunkNumber, deviceId, true);
     }
 
     /**
-     * Update the state of a chunk
+     * Decrease the replicas of a stored chunk
      *
-     * @param chunk chunk to be updated
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param deviceId    device id that has deleted the chunk
+     * @return updated state of the chunk, null if the chunk is not stored
      */
-    public synchronized void updateChunkState(final Chunk chunk) {
-        files.get(chunk.getFileID()).put(chunk.getChunkNo(), chunk.getState());
+    public ChunkState decreaseReplicas(final String fileHash, final int chunkNumber, final int deviceId) {
+        return updateChunkState(fileHash, chunkNumber, deviceId, false);
+    }
 
-        // Save the disk
-        this.saveDisk();
+    /**
+     * Update the replicas of a stored chunk
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param deviceId    device id that has mirrored or deleted the chunk
+     * @param increase    true to increase the replicas, false to decrease them
+     * @return updated state of the chunk, null if the chunk is not stored
+     */
+    private ChunkState updateChunkState(final String fileHash, final int chunkNumber, final int deviceId, final boolean increase) {
+        ChunkState state;
+        lock(fileHash);
+        try {
+            state = getChunkState(fileHash, chunkNumber);
+            if (state == null)
+                return null;
+
+            if (increase)
+                state.increaseReplicas(deviceId);
+            else state.decreaseReplicas(deviceId);
+            planner.update(fileHash, chunkNumber, state);
+
+            // Log the change
+            journal.logChunkState(fileHash, chunkNumber, state);
+        } finally {
+            unlock(fileHash);
+        }
+        checkpointIfNeeded();
+
+        return state;
+    }
+
+    /**
+     * Apply the state of a saved chunk to the disk metadata
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       new state of the chunk
+     */
+    void applyChunkState(final String fileHash, final int chunkNumber, final ChunkState state) {
+        ChunkTable table = chunkTables.get(FileKey.of(fileHash));
+        ChunkState previous = table == null ? null : table.get(chunkNumber);
+        if (previous == null)
+            return;
+        state.setSize(previous.getSize());
+        table.replace(chunkNumber, state);
+        planner.update(fileHash, chunkNumber, state);
     }
 
     /**
@@ -303,9 +818,15 @@ public class Disk implements Serializable {
      * @param filename of the file
      * @param id       of the file
      */
-    public synchronized void addFilename(String filename, String id) {
-        filenames.put(filename, id);
-        this.saveDisk();
+    public void addFilename(String filename, String id) {
+        lock(filename);
+        try {
+            filenames.put(filename, id);
+            journal.logAddFilename(filename, id);
+        } finally {
+            unlock(filename);
+        }
+        checkpointIfNeeded();
     }
 
     /**
@@ -313,9 +834,15 @@ public class Disk implements Serializable {
      *
      * @param filename to be removed
      */
-    public synchronized void removeFilename(String filename) {
-        filenames.remove(filename);
-        this.saveDisk();
+    public void removeFilename(String filename) {
+        lock(filename);
+        try {
+            filenames.remove(filename);
+            journal.logRemoveFilename(filename);
+        } finally {
+            unlock(filename);
+        }
+        checkpointIfNeeded();
     }
 
     /**
@@ -324,7 +851,7 @@ public class Disk implements Serializable {
      * @param filename of the file
      * @return id of the file
      */
-    public synchronized String getId(String filename) {
+    public String getId(String filename) {
         return filenames.get(filename);
     }
 
@@ -334,9 +861,15 @@ public class Disk implements Serializable {
      * @param id   of the file
      * @param size - number of chunks of the file
      */
-    public synchronized void addNumberOfChunks(String id, int size) {
-        filesizes.put(id, size);
-        this.saveDisk();
+    public void addNumberOfChunks(String id, int size) {
+        lock(id);
+        try {
+            filesizes.put(id, size);
+            journal.logNumberOfChunks(id, size);
+        } finally {
+            unlock(id);
+        }
+        checkpointIfNeeded();
     }
 
     /**
@@ -345,84 +878,417 @@ public class Disk implements Serializable {
      * @param id of the file
      * @return number of chunks of the file
      */
-    public synchronized int getNumberOfChunks(String id) {
+    public int getNumberOfChunks(String id) {
         return filesizes.get(id);
     }
 
     /**
-     * Saves the current Disk to Disk File
+     * Add the id of a file backed up by this peer
+     *
+     * @param id id of the file
      */
-    public synchronized void saveDisk() {
-        BackupService.getInstance().saveDisk();
+    public void addOwnFileId(String id) {
+        lock(id);
+        try {
+            synchronized (idSet) {
+                if (idSet.contains(id))
+                    return;
+                idSet.add(id);
+            }
+            journal.logOwnFileId(id);
+        } finally {
+            unlock(id);
+        }
+        checkpointIfNeeded();
     }
 
     /**
-     * Frees the given space in the disk
+     * Check if a file was backed up by this peer
+     *
+     * @param id id of the file
+     * @return true if the file was backed up by this peer, false otherwise
+     */
+    public boolean isOwnFileId(String id) {
+        synchronized (idSet) {
+            return idSet.contains(id);
+        }
+    }
+
+    /**
+     * Open the journal of the disk, replaying the changes that were not checkpointed
+     *
+     * @param diskFile    file where the disk is checkpointed to
+     * @param journalFile file of the journal
+     * @throws IOException error while opening the journal
+     */
+    public void openJournal(final File diskFile, final File journalFile) throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            this.diskFile = diskFile;
+            this.journal = DiskJournal.open(journalFile, this);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close the journal of the disk, checkpointing it first
+     */
+    public void closeJournal() {
+        // The chunks waiting to be durable need the journal
+        if (committer != null)
+            committer.close();
+
+        checkpointLock.writeLock().lock();
+        try {
+            writeCheckpoint();
+            journal.close();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open the store of the chunk payloads
+     *
+     * @param store store of the chunk payloads
+     */
+    public void openStore(final ChunkStore store) {
+        checkpointLock.writeLock().lock();
+        try {
+            this.store = store;
+            this.cache = ChunkCache.fromProperties();
+            this.committer = new ChunkCommitter(DurabilityMode.fromProperties(), store, journal);
+            reconcile();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+
+        this.scrubber = DiskScrubber.start(this);
+    }
+
+    /**
+     * Verify the stored chunks against the payloads in the store, repairing any drift
+     * left by a crash: chunks without their payload are dropped, payloads without
+     * their chunk are deleted and the used bytes are recounted
+     */
+    private void reconcile() {
+        long start = System.currentTimeMillis();
+        this.lostChunks = new ArrayList<>();
+
+        Map<String, Map<Integer, Integer>> payloads = store.list();
+        if (payloads == null) {
+            System.out.println("Could not verify the stored chunks ! Starting without verifying them.");
+            return;
+        }
+
+        // Verify the chunks of all the files in parallel
+        List<Chunk> missing = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger verified = new AtomicInteger();
+        chunkTables.entrySet().parallelStream().forEach(tablesEntry -> {
+            String fileHash = tablesEntry.getKey().toString();
+            for (int chunkNumber : tablesEntry.getValue().chunkNumbers()) {
+                ChunkState state = tablesEntry.getValue().get(chunkNumber);
+                if (state == null)
+                    continue;
+
+                Map<Integer, Integer> chunks = payloads.get(state.getContentHash() != null ? contentId(state.getContentHash()) : fileHash);
+                Integer length = chunks == null ? null : chunks.get(state.getContentHash() != null ? 0 : chunkNumber);
+                if (length == null || (state.getSize() != 0 && state.getSize() != length)) {
+                    missing.add(new Chunk(fileHash, chunkNumber, new byte[0], state));
+                } else if (state.getSize() == 0) {
+                    // States saved before sizes were kept have no size
+                    state.setSize(length);
+                    planner.update(fileHash, chunkNumber, state);
+                }
+                verified.incrementAndGet();
+            }
+        });
+
+        // Drop the chunks whose payload is missing or truncated
+        Set<String> dropped = new HashSet<>();
+        for (Chunk chunk : missing) {
+            dropped.add(chunk.getFileID() + ":" + chunk.getChunkNo());
+            applyRemoveChunk(chunk.getFileID(), chunk.getChunkNo(), chunk.getState().getSize());
+            journal.logRemoveChunk(chunk.getFileID(), chunk.getChunkNo(), chunk.getState().getSize());
+            lostChunks.add(chunk);
+        }
+
+        // Delete the payloads no chunk references, including the ones of dropped chunks
+        int orphans = 0;
+        for (Map.Entry<String, Map<Integer, Integer>> payloadsEntry : payloads.entrySet()) {
+            String id = payloadsEntry.getKey();
+            for (int chunkNumber : payloadsEntry.getValue().keySet()) {
+                ChunkState state = id.startsWith(CONTENT_PREFIX) ? null : getChunkState(id, chunkNumber);
+                boolean referenced = id.startsWith(CONTENT_PREFIX)
+                        ? contentRefs.containsKey(FileKey.of(id.substring(CONTENT_PREFIX.length())))
+                        : state != null && state.getContentHash() == null;
+                if (referenced || !store.delete(id, chunkNumber))
+                    continue;
+                orphans++;
+                // Peers may count a chunk this peer announced before crashing
+                if (!id.startsWith(CONTENT_PREFIX) && state == null && !dropped.contains(id + ":" + chunkNumber))
+                    lostChunks.add(new Chunk(id, chunkNumber, new byte[0], new ChunkState(0, 0)));
+            }
+        }
+
+        // Recount the used bytes, once for each content
+        long used = 0;
+        Set<FileKey> contents = new HashSet<>();
+        for (ChunkTable table : chunkTables.values())
+            for (int chunkNumber : table.chunkNumbers()) {
+                ChunkState state = table.get(chunkNumber);
+                if (state != null && (state.getContentHash() == null || contents.add(FileKey.of(state.getContentHash()))))
+                    used += state.getSize();
+            }
+        if (used != usedBytes) {
+            System.out.println("Recounted the used bytes of the disk from " + usedBytes + "b to " + used + "b.");
+            usedBytes = (int) used;
+        }
+
+        System.out.println("Verified " + verified.get() + " chunks in " + (System.currentTimeMillis() - start) + " ms, dropped "
+                + missing.size() + " chunks without payload and deleted " + orphans + " payloads without chunk.");
+    }
+
+    /**
+     * Announce as removed the chunks dropped when the disk was verified, once the channels are running
+     */
+    public void announceLostChunks() {
+        if (lostChunks == null)
+            return;
+        for (Chunk chunk : lostChunks)
+            (new RemoveChunk(chunk)).run();
+        lostChunks.clear();
+    }
+
+    /**
+     * Close the store of the chunk payloads
+     */
+    public void closeStore() {
+        // Stop the scrubber first, it takes the locks of the disk to quarantine chunks
+        if (scrubber != null) {
+            scrubber.interrupt();
+            try {
+                scrubber.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        checkpointLock.writeLock().lock();
+        try {
+            store.close();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the generation of the disk
+     *
+     * @return generation of the disk
+     */
+    long getJournalGeneration() {
+        return journalGeneration;
+    }
+
+    /**
+     * Checkpoint the disk if the journal has grown too much
+     */
+    private void checkpointIfNeeded() {
+        if (journal.getRecordsSinceCheckpoint() < DiskJournal.CHECKPOINT_RECORDS)
+            return;
+
+        checkpointLock.writeLock().lock();
+        try {
+            // Another change may have checkpointed the disk meanwhile
+            if (journal.getRecordsSinceCheckpoint() >= DiskJournal.CHECKPOINT_RECORDS)
+                writeCheckpoint();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Saves the current Disk to Disk File and discards the journal
+     */
+    public void checkpoint() {
+        checkpointLock.writeLock().lock();
+        try {
+            writeCheckpoint();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the checkpoint of the disk. Must hold the checkpoint lock exclusively.
+     */
+    private void writeCheckpoint() {
+        journalGeneration++;
+
+        // Write to a temporary file first so a crash never leaves a torn disk file
+        File tempFile = new File(diskFile.getPath() + ".tmp");
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeObject(this);
+        } catch (IOException e) {
+            System.out.println("Failed to save the disk! " + e.getMessage());
+            journalGeneration--;
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), diskFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to save the disk! " + e.getMessage());
+            journalGeneration--;
+            return;
+        }
+
+        journal.reset(journalGeneration);
+    }
+
+    /**
+     * Frees the given space in the disk, removing the chunks chosen by the reclaim policy
      *
      * @param space to be free
-     * @return true if the given space was made free, false if not
+     * @return true if the given space can be made free, false if not
      */
-    public synchronized boolean freeSpace(int space) {
+    public boolean freeSpace(int space) {
         if (space > usedBytes)
             return false;
 
-        int minFreeSpace = usedBytes - space;
-
         //So it can run simultaneous
-        Thread thread = new Thread() {
-            public void run() {
-                outerLoop:
-                {
-                    for (ConcurrentHashMap.Entry<String, ConcurrentHashMap<Integer, ChunkState>> filesEntry : files.entrySet())//iterate through files
-                        for (ConcurrentHashMap.Entry<Integer, ChunkState> chunksEntry : filesEntry.getValue().entrySet())//iterate chunkStates
-                        {
-                            Chunk chunk = getChunk(filesEntry.getKey(), chunksEntry.getKey());
-                            ChunkState state = chunksEntry.getValue();
-                            if (state.getReplicationDegree() > state.getMinReplicationDegree()) {
-                                if (removeChunk(chunk,false))
-                                    (new RemoveChunk(chunk)).run();
-                            }
-                            if (usedBytes <= minFreeSpace)
-                                break outerLoop;
-                        }
-                    outerLoop2:
-                    for (ConcurrentHashMap.Entry<String, ConcurrentHashMap<Integer, ChunkState>> filesEntry : files.entrySet())//iterate through files
-                        for (ConcurrentHashMap.Entry<Integer, ChunkState> chunksEntry : filesEntry.getValue().entrySet())//iterate chunkStates
-                        {
-                            Chunk chunk = getChunk(filesEntry.getKey(), chunksEntry.getKey());
-                            if (removeChunk(chunk,false))
-                                (new RemoveChunk(chunk)).run();
-                            if (usedBytes <= minFreeSpace)
-                                break outerLoop2;
-                        }
-                }
+        Thread thread = new Thread(() -> {
+            AtomicLong freed = new AtomicLong(0);
+            while (freed.get() < space && !Thread.currentThread().isInterrupted()) {
+                // Nothing else can be removed
+                if (reclaimChunks(planner.plan(space - freed.get()), freed) == 0)
+                    break;
             }
-        };
+            System.out.println("Reclaimed " + freed + " of " + space + " bytes (" + planner.getPolicy() + ")");
+        });
 
         thread.start();
 
-
         return true;
     }
 
-    public synchronized void printInfo() {
+    /**
+     * Remove the chosen chunks in parallel, announcing each removal
+     *
+     * @param plan  chunks to be removed
+     * @param freed bytes freed in the disk, increased by the removed chunks
+     * @return number of removed chunks
+     */
+    private int reclaimChunks(final List<ReclaimPlanner.Candidate> plan, final AtomicLong freed) {
+        AtomicInteger removed = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(RECLAIM_THREADS);
+
+        for (ReclaimPlanner.Candidate candidate : plan)
+            executor.execute(() -> {
+                ChunkState state = getChunkState(candidate.getFileId(), candidate.getChunkNo());
+                if (state == null)
+                    return;
+
+                Chunk chunk = new Chunk(candidate.getFileId(), candidate.getChunkNo(), new byte[0], state);
+                int bytes = removeStoredChunk(candidate.getFileId(), candidate.getChunkNo(), false);
+                if (bytes >= 0) {
+                    freed.addAndGet(bytes);
+                    removed.incrementAndGet();
+                    (new RemoveChunk(chunk)).run();
+                }
+            });
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("Reclaim interrupted ! " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+
+        return removed.get();
+    }
+
+    public void printInfo() {
         System.out.println("Disk - f:" + this.getUsedBytes() + "b");
+        if (cache != null)
+            System.out.println("Cache - " + cache.getUsedBytes() + "b, hits:" + cache.getHits()
+                    + " misses:" + cache.getMisses() + " evictions:" + cache.getEvictions());
     }
 
     /**
      * Get the mirrorDevices variable
      * @return mirrorDevices
      */
-    public synchronized Map<String, Map<Integer, ChunkState>> getMirrorDevices() {
+    public Map<String, Map<Integer, ChunkState>> getMirrorDevices() {
         return mirrorDevices;
     }
 
     /**
-     * Setes the variable mirrorDevices
-     * @param mirrorDevices
+     * Increase the mirrors of a chunk of one of our files
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param deviceId    device id that has mirrored the chunk
+     * @return updated state with the mirrors of the chunk
+     */
+    public ChunkState increaseMirrors(final String fileHash, final int chunkNumber, final int deviceId) {
+        return updateMirrorState(fileHash, chunkNumber, deviceId, true);
+    }
+
+    /**
+     * Decrease the mirrors of a chunk of one of our files
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param deviceId    device id that has deleted the chunk
+     * @return updated state with the mirrors of the chunk
+     */
+    public ChunkState decreaseMirrors(final String fileHash, final int chunkNumber, final int deviceId) {
+        return updateMirrorState(fileHash, chunkNumber, deviceId, false);
+    }
+
+    /**
+     * Update the mirrors of a chunk of one of our files. The states of the mirrors are only
+     * changed here, under the lock of the file, so a checkpoint never sees one being changed.
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param deviceId    device id that has mirrored or deleted the chunk
+     * @param increase    true to increase the mirrors, false to decrease them
+     * @return updated state with the mirrors of the chunk
+     */
+    private ChunkState updateMirrorState(final String fileHash, final int chunkNumber, final int deviceId, final boolean increase) {
+        ChunkState state;
+        lock(fileHash);
+        try {
+            state = mirrorDevices.computeIfAbsent(fileHash, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(chunkNumber, k -> new ChunkState(-1, 0));
+
+            if (increase)
+                state.increaseReplicas(deviceId);
+            else state.decreaseReplicas(deviceId);
+
+            // Log the change
+            journal.logMirrorState(fileHash, chunkNumber, state);
+        } finally {
+            unlock(fileHash);
+        }
+        checkpointIfNeeded();
+
+        return state;
+    }
+
+    /**
+     * Apply the mirrors of a chunk to the disk metadata
+     *
+     * @param fileHash    file hash of the chunk
+     * @param chunkNumber number of the chunk
+     * @param state       state with the mirrors of the chunk
      */
-    public synchronized void setMirrorDevices(Map<String, Map<Integer, ChunkState>> mirrorDevices){
-        this.mirrorDevices = mirrorDevices;
-        saveDisk();
+    void applyMirrorState(final String fileHash, final int chunkNumber, final ChunkState state) {
+        mirrorDevices.computeIfAbsent(fileHash, k -> new ConcurrentHashMap<>()).put(chunkNumber, state);
     }
 }
\ No newline at end of file
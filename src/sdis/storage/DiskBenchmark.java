@@ -0,0 +1,178 @@
+package sdis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tool to measure the contention on the disk of a peer. Writers save the chunks of their own
+ * file while readers look chunks up, as the handlers of a peer do, for an increasing number of
+ * writers. Must be run with a server id without chunks, its files are deleted afterwards.
+ */
+public class DiskBenchmark {
+
+    /**
+     * Size of the saved chunks
+     */
+    private static final int CHUNK_SIZE = 64000;
+
+    /**
+     * Time between the lookups of each reader, in nanos
+     */
+    private static final long LOOKUP_INTERVAL = TimeUnit.MICROSECONDS.toNanos(20);
+
+    /**
+     * Main method of the DiskBenchmark
+     *
+     * @param args arguments sent to the console
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Please execute the benchmark using the following format:");
+            System.out.println("java sdis.storage.DiskBenchmark <serverId> [<maxWriters> [<chunksPerWriter> [<readers>]]]");
+            return;
+        }
+
+        String serverId = args[0];
+        int maxWriters = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int chunks = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int readers = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        File[] files = {new File(serverId + "data"), new File(serverId + "segments"),
+                new File(serverId + "benchmark.ser"), new File(serverId + "benchmark.journal")};
+        for (File file : files) {
+            if (file.exists()) {
+                System.out.println("The server id " + serverId + " already has " + file + ", use another one!");
+                return;
+            }
+        }
+
+        System.out.println("Processors: " + Runtime.getRuntime().availableProcessors()
+                + ", chunk store: " + System.getProperty(ChunkStore.STORE_PROPERTY, "directory"));
+        try {
+            // The first round only warms up the code
+            run(serverId, maxWriters, chunks, readers, files, false);
+            for (int writers = 1; writers <= maxWriters; writers *= 2)
+                run(serverId, writers, chunks, readers, files, true);
+        } finally {
+            for (File file : files)
+                delete(file);
+        }
+    }
+
+    /**
+     * Run a round of the benchmark on a new disk
+     *
+     * @param serverId identification of the server
+     * @param writers  number of threads saving chunks
+     * @param chunks   number of chunks saved by each writer
+     * @param readers  number of threads looking chunks up
+     * @param files    files of the disk, deleted after the round
+     * @param report   true to print the results of the round
+     */
+    private static void run(final String serverId, final int writers, final int chunks, final int readers, final File[] files, final boolean report) throws IOException, InterruptedException {
+        Disk disk = new Disk();
+        disk.openJournal(files[2], files[3]);
+        disk.openStore(ChunkStore.open(serverId));
+
+        byte[] data = new byte[CHUNK_SIZE];
+        new Random(0).nextBytes(data);
+
+        // Readers look up chunks of the files being saved until the writers end
+        AtomicBoolean saving = new AtomicBoolean(true);
+        List<long[]> latencies = new ArrayList<>();
+        Thread[] lookups = new Thread[readers];
+        for (int i = 0; i < readers; i++) {
+            lookups[i] = new Thread(() -> {
+                Random random = new Random();
+                long[] latency = new long[1 << 20];
+                int count = 0;
+                while (saving.get() && count < latency.length) {
+                    String fileId = "benchmark" + random.nextInt(writers);
+                    int chunkNo = random.nextInt(chunks);
+                    long start = System.nanoTime();
+                    if (disk.hasChunk(fileId, chunkNo))
+                        disk.getChunkState(fileId, chunkNo);
+                    latency[count++] = System.nanoTime() - start;
+                    LockSupport.parkNanos(LOOKUP_INTERVAL);
+                }
+                synchronized (latencies) {
+                    latencies.add(Arrays.copyOf(latency, count));
+                }
+            });
+            lookups[i].start();
+        }
+
+        // Writers save the chunks of their own file
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] savers = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            String fileId = "benchmark" + i;
+            savers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int chunkNo = 0; chunkNo < chunks; chunkNo++)
+                    disk.saveChunk(new Chunk(fileId, chunkNo, data, 1));
+            });
+            savers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread saver : savers)
+            saver.join();
+        long elapsed = System.nanoTime() - begin;
+        saving.set(false);
+        for (Thread reader : lookups)
+            reader.join();
+
+        disk.closeStore();
+        disk.closeJournal();
+        for (File file : files)
+            delete(file);
+
+        if (!report)
+            return;
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("writers %2d: %6.0f saves/s, %7d lookups p50 %.1f us p99 %.1f us max %.1f ms%n",
+                writers, writers * chunks / (elapsed / 1e9), all.length,
+                percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, all.length > 0 ? all[all.length - 1] / 1e6 : 0);
+    }
+
+    /**
+     * Get a percentile of sorted values
+     *
+     * @param sorted     sorted values
+     * @param percentile percentile between 0 and 1
+     * @return value at the percentile, 0 if there are no values
+     */
+    private static double percentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    /**
+     * Delete a file or a directory with its contents
+     *
+     * @param file file to be deleted
+     */
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        if (file.exists() && !file.delete())
+            System.out.println("Failed to delete " + file + "!");
+    }
+}
@@ -0,0 +1,680 @@
+package sdis.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal with the changes made to the disk metadata.
+ * Each change is a small typed record, records are written in batches
+ * (group commit) and the journal is discarded every time the disk is checkpointed.
+ */
+public class DiskJournal {
+
+    /**
+     * Magic number at the start of the journal
+     */
+    private static final int MAGIC = 0x53444a31;
+
+    /**
+     * Size of the journal header (magic + generation)
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Size of the frame of each record (length + checksum)
+     */
+    private static final int FRAME_SIZE = 8;
+
+    /**
+     * Maximum time in millis a record waits before being committed
+     */
+    private static final int COMMIT_INTERVAL = 50;
+
+    /**
+     * Number of records after which the disk should be checkpointed
+     */
+    static final int CHECKPOINT_RECORDS = 10000;
+
+    /**
+     *
+     *          RECORD TYPES
+     *
+     */
+
+    /**
+     * A chunk was saved
+     */
+    private static final byte CHUNK_SAVED = 1;
+
+    /**
+     * A chunk was removed
+     */
+    private static final byte CHUNK_REMOVED = 2;
+
+    /**
+     * The state of a saved chunk was updated
+     */
+    private static final byte CHUNK_STATE = 3;
+
+    /**
+     * The mirrors of a chunk of one of our files were updated
+     */
+    private static final byte MIRROR_STATE = 4;
+
+    /**
+     * A filename was added
+     */
+    private static final byte FILENAME_ADDED = 5;
+
+    /**
+     * A filename was removed
+     */
+    private static final byte FILENAME_REMOVED = 6;
+
+    /**
+     * The number of chunks of a file was set
+     */
+    private static final byte NUMBER_OF_CHUNKS = 7;
+
+    /**
+     * A file was backed up by this peer
+     */
+    private static final byte OWN_FILE_ID = 8;
+
+    /**
+     * File of the journal
+     */
+    private final File file;
+
+    /**
+     * Channel used to write the journal
+     */
+    private final FileChannel channel;
+
+    /**
+     * Records waiting to be committed
+     */
+    private ByteArrayOutputStream pending;
+
+    /**
+     * Number of records appended so far
+     */
+    private long appendedRecords;
+
+    /**
+     * Number of records already committed to the journal file
+     */
+    private long committedRecords;
+
+    /**
+     * Length of the journal file up to the last committed record, guarded by the channel
+     */
+    private long committedLength;
+
+    /**
+     * Number of commits that failed so far
+     */
+    private long failedCommits;
+
+    /**
+     * Number of records appended when the last failed commit was taken
+     */
+    private long failedRecords;
+
+    /**
+     * Number of records since the last checkpoint
+     */
+    private int recordsSinceCheckpoint;
+
+    /**
+     * Flag to tell if the journal was closed
+     */
+    private boolean closed;
+
+    /**
+     * Thread that commits the pending records
+     */
+    private final Thread committer;
+
+    /**
+     * Constructor of DiskJournal
+     *
+     * @param file file of the journal
+     * @throws IOException error while opening the journal
+     */
+    private DiskJournal(final File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pending = new ByteArrayOutputStream();
+        this.committer = new Thread(this::commitLoop, "DiskJournal-committer");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Open the journal of a disk, replaying the records that were not
+     * yet checkpointed into the disk
+     *
+     * @param file file of the journal
+     * @param disk disk to replay the journal into
+     * @return opened journal
+     * @throws IOException error while opening the journal
+     */
+    public static DiskJournal open(final File file, final Disk disk) throws IOException {
+        DiskJournal journal = new DiskJournal(file);
+
+        long validLength = journal.replay(disk);
+        if (validLength < 0)
+            journal.writeHeader(disk.getJournalGeneration());
+        else {
+            journal.channel.truncate(validLength);
+            journal.committedLength = validLength;
+        }
+
+        if (journal.recordsSinceCheckpoint > 0)
+            System.out.println("Replayed " + journal.recordsSinceCheckpoint + " records from the disk journal.");
+
+        journal.committer.start();
+        return journal;
+    }
+
+    /**
+     * Replay the journal into the disk. A journal of an older generation was
+     * already checkpointed and is ignored, as well as a torn record at the end.
+     *
+     * @param disk disk to replay the journal into
+     * @return length of the valid part of the journal, -1 if the journal is not valid for the disk
+     */
+    private long replay(final Disk disk) {
+        if (file.length() < HEADER_SIZE)
+            return -1;
+
+        long validLength = HEADER_SIZE;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readLong() != disk.getJournalGeneration())
+                return -1;
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length, checksum;
+                try {
+                    length = input.readInt();
+                    checksum = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0)
+                    break;
+
+                byte[] record = new byte[length];
+                try {
+                    input.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                apply(record, disk);
+                validLength += FRAME_SIZE + length;
+                recordsSinceCheckpoint++;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to replay the disk journal! " + e.getMessage());
+        }
+
+        return validLength;
+    }
+
+    /**
+     * Apply a record to the disk
+     *
+     * @param record record to be applied
+     * @param disk   disk to apply the record into
+     * @throws IOException error while decoding the record
+     */
+    private static void apply(final byte[] record, final Disk disk) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        switch (input.readByte()) {
+            case CHUNK_SAVED: {
+                String fileId = input.readUTF();
+                int chunkNo = input.readInt();
+                int size = input.readInt();
+                disk.applySaveChunk(fileId, chunkNo, readState(input), size);
+                break;
+            }
+            case CHUNK_REMOVED: {
+                String fileId = input.readUTF();
+                int chunkNo = input.readInt();
+                int size = input.readInt();
+                disk.applyRemoveChunk(fileId, chunkNo, size);
+                break;
+            }
+            case CHUNK_STATE: {
+                String fileId = input.readUTF();
+                int chunkNo = input.readInt();
+                disk.applyChunkState(fileId, chunkNo, readState(input));
+                break;
+            }
+            case MIRROR_STATE: {
+                String fileId = input.readUTF();
+                int chunkNo = input.readInt();
+                disk.applyMirrorState(fileId, chunkNo, readState(input));
+                break;
+            }
+            case FILENAME_ADDED:
+                disk.filenames.put(input.readUTF(), input.readUTF());
+                break;
+            case FILENAME_REMOVED:
+                disk.filenames.remove(input.readUTF());
+                break;
+            case NUMBER_OF_CHUNKS:
+                disk.filesizes.put(input.readUTF(), input.readInt());
+                break;
+            case OWN_FILE_ID: {
+                String fileId = input.readUTF();
+                if (!disk.idSet.contains(fileId))
+                    disk.idSet.add(fileId);
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record");
+        }
+    }
+
+    /**
+     * Read a chunk state from a record
+     *
+     * @param input input of the record
+     * @return read chunk state
+     * @throws IOException error while reading
+     */
+    static ChunkState readState(final DataInputStream input) throws IOException {
+        ChunkState state = new ChunkState(input.readInt(), input.readInt());
+        int mirrors = input.readInt();
+        for (int i = 0; i < mirrors; i++)
+            state.addMirror(input.readInt());
+        // Records written before contents were hashed end here
+        if (input.available() > 0) {
+            byte[] hash = new byte[input.readUnsignedByte()];
+            input.readFully(hash);
+            if (hash.length > 0)
+                state.setContentHash(hash);
+        }
+        // Records written before chunks were compressed end here
+        if (input.available() > 0) {
+            int id = input.readUnsignedByte();
+            ChunkCodec codec = ChunkCodec.fromId(id);
+            if (codec == null)
+                throw new IOException("Unknown chunk codec " + id);
+            state.setCodec(codec);
+        }
+        // Records written before chunks were checksummed end here
+        if (input.available() > 0)
+            state.setChecksum(input.readInt() & 0xffffffffL);
+        return state;
+    }
+
+    /**
+     * Write a chunk state to a record
+     *
+     * @param output output of the record
+     * @param state  chunk state to be written
+     * @throws IOException error while writing
+     */
+    static void writeState(final DataOutputStream output, final ChunkState state) throws IOException {
+        output.writeInt(state.getMinReplicationDegree());
+        output.writeInt(state.getReplicationDegree());
+        int[] mirrors = state.getMirrors();
+        output.writeInt(mirrors.length);
+        for (int mirror : mirrors)
+            output.writeInt(mirror);
+        byte[] hash = state.getContentHash();
+        boolean checksum = state.getChecksum() != ChunkState.NO_CHECKSUM;
+        if (hash != null || state.getCodec() != ChunkCodec.NONE || checksum) {
+            output.writeByte(hash != null ? hash.length : 0);
+            if (hash != null)
+                output.write(hash);
+            output.writeByte(state.getCodec().getId());
+        }
+        if (checksum)
+            output.writeInt((int) state.getChecksum());
+    }
+
+    /**
+     *
+     *          RECORDS
+     *
+     */
+
+    /**
+     * Log a saved chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param state   state of the chunk
+     * @param size    size of the chunk
+     */
+    void logSaveChunk(final String fileId, final int chunkNo, final ChunkState state, final int size) {
+        append(output -> {
+            output.writeByte(CHUNK_SAVED);
+            output.writeUTF(fileId);
+            output.writeInt(chunkNo);
+            output.writeInt(size);
+            writeState(output, state);
+        });
+    }
+
+    /**
+     * Log a removed chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param size    size of the chunk
+     */
+    void logRemoveChunk(final String fileId, final int chunkNo, final int size) {
+        append(output -> {
+            output.writeByte(CHUNK_REMOVED);
+            output.writeUTF(fileId);
+            output.writeInt(chunkNo);
+            output.writeInt(size);
+        });
+    }
+
+    /**
+     * Log the update of a chunk state
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param state   new state of the chunk
+     */
+    void logChunkState(final String fileId, final int chunkNo, final ChunkState state) {
+        append(output -> {
+            output.writeByte(CHUNK_STATE);
+            output.writeUTF(fileId);
+            output.writeInt(chunkNo);
+            writeState(output, state);
+        });
+    }
+
+    /**
+     * Log the update of the mirrors of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param state   state with the mirrors of the chunk
+     */
+    void logMirrorState(final String fileId, final int chunkNo, final ChunkState state) {
+        append(output -> {
+            output.writeByte(MIRROR_STATE);
+            output.writeUTF(fileId);
+            output.writeInt(chunkNo);
+            writeState(output, state);
+        });
+    }
+
+    /**
+     * Log an added filename
+     *
+     * @param filename filename of the file
+     * @param id       id of the file
+     */
+    void logAddFilename(final String filename, final String id) {
+        append(output -> {
+            output.writeByte(FILENAME_ADDED);
+            output.writeUTF(filename);
+            output.writeUTF(id);
+        });
+    }
+
+    /**
+     * Log a removed filename
+     *
+     * @param filename filename that was removed
+     */
+    void logRemoveFilename(final String filename) {
+        append(output -> {
+            output.writeByte(FILENAME_REMOVED);
+            output.writeUTF(filename);
+        });
+    }
+
+    /**
+     * Log the number of chunks of a file
+     *
+     * @param id   id of the file
+     * @param size number of chunks of the file
+     */
+    void logNumberOfChunks(final String id, final int size) {
+        append(output -> {
+            output.writeByte(NUMBER_OF_CHUNKS);
+            output.writeUTF(id);
+            output.writeInt(size);
+        });
+    }
+
+    /**
+     * Log a file backed up by this peer
+     *
+     * @param id id of the file
+     */
+    void logOwnFileId(final String id) {
+        append(output -> {
+            output.writeByte(OWN_FILE_ID);
+            output.writeUTF(id);
+        });
+    }
+
+    /**
+     *
+     *          COMMITS
+     *
+     */
+
+    /**
+     * Append a record to the pending records
+     *
+     * @param writer writer of the record
+     */
+    private void append(final RecordWriter writer) {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(recordBytes));
+        } catch (IOException e) {
+            System.out.println("Failed to encode a journal record! " + e.getMessage());
+            return;
+        }
+
+        byte[] record = recordBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        frame.putInt(record.length);
+        frame.putInt((int) crc.getValue());
+
+        synchronized (this) {
+            if (closed)
+                return;
+            pending.write(frame.array(), 0, FRAME_SIZE);
+            pending.write(record, 0, record.length);
+            appendedRecords++;
+            recordsSinceCheckpoint++;
+        }
+    }
+
+    /**
+     * Commit the pending records in batches until the journal is closed. A batch that fails
+     * to commit is written again with the next one, from the end of the committed records,
+     * so the journal never holds a gap. Once closed, a failing batch is given up.
+     */
+    private void commitLoop() {
+        while (true) {
+            byte[] batch;
+            long batchRecords;
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        wait(COMMIT_INTERVAL);
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+                if (pending.size() == 0)
+                    return;
+
+                batch = pending.toByteArray();
+                batchRecords = appendedRecords;
+                pending = new ByteArrayOutputStream();
+            }
+
+            boolean committed = false;
+            try {
+                synchronized (channel) {
+                    // Drop what a failed commit may have left after the committed records
+                    if (channel.size() > committedLength)
+                        channel.truncate(committedLength);
+                    ByteBuffer buffer = ByteBuffer.wrap(batch);
+                    long position = committedLength;
+                    while (buffer.hasRemaining())
+                        position += channel.write(buffer, position);
+                    channel.force(false);
+                    committedLength = position;
+                }
+                committed = true;
+            } catch (IOException e) {
+                System.out.println("Failed to commit the disk journal! " + e.getMessage());
+            }
+
+            synchronized (this) {
+                if (committed)
+                    committedRecords = Math.max(committedRecords, batchRecords);
+                else {
+                    // Keep the batch before the records appended meanwhile, to be committed again
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream();
+                    retry.write(batch, 0, batch.length);
+                    byte[] appended = pending.toByteArray();
+                    retry.write(appended, 0, appended.length);
+                    pending = retry;
+                    failedCommits++;
+                    failedRecords = batchRecords;
+                }
+                notifyAll();
+                if (!committed) {
+                    if (closed)
+                        return;
+                    try {
+                        wait(COMMIT_INTERVAL);
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until all the appended records are committed
+     *
+     * @return true if committed, false if a commit of them failed, then they are committed again later
+     */
+    public synchronized boolean sync() {
+        long target = appendedRecords;
+        long failures = failedCommits;
+        notifyAll();
+        while (committedRecords < target && committer.isAlive()) {
+            if (failedCommits != failures && failedRecords >= target)
+                return false;
+            try {
+                wait(COMMIT_INTERVAL);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return committedRecords >= target;
+    }
+
+    /**
+     * Discard all the records, after the disk has been checkpointed
+     *
+     * @param generation new generation of the disk
+     */
+    void reset(final long generation) {
+        sync();
+        synchronized (this) {
+            // Records appended while the checkpoint was being written are already in it
+            pending = new ByteArrayOutputStream();
+            committedRecords = appendedRecords;
+            recordsSinceCheckpoint = 0;
+        }
+        try {
+            synchronized (channel) {
+                channel.truncate(0);
+                writeHeader(generation);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to reset the disk journal! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of records since the last checkpoint
+     *
+     * @return number of records since the last checkpoint
+     */
+    synchronized int getRecordsSinceCheckpoint() {
+        return recordsSinceCheckpoint;
+    }
+
+    /**
+     * Commit the pending records and close the journal
+     */
+    public void close() {
+        sync();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+            channel.close();
+        } catch (InterruptedException | IOException e) {
+            System.out.println("Failed to close the disk journal " + file + "! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the header of the journal
+     *
+     * @param generation generation of the disk
+     * @throws IOException error while writing
+     */
+    private void writeHeader(final long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putLong(generation);
+        header.flip();
+        channel.truncate(0);
+        committedLength = 0;
+        while (header.hasRemaining())
+            committedLength += channel.write(header, committedLength);
+        channel.force(false);
+    }
+
+    /**
+     * Writer of the body of a record
+     */
+    private interface RecordWriter {
+
+        /**
+         * Write the record
+         *
+         * @param output output of the record
+         * @throws IOException error while writing
+         */
+        void write(DataOutputStream output) throws IOException;
+    }
+}
@@ -0,0 +1,110 @@
+package sdis.storage;
+
+/**
+ * Scrubber of the stored chunks. It walks all the stored chunks in the
+ * background, checking them against their checksums without reading more
+ * than its budget of bytes per second, and quarantines the corrupted ones.
+ */
+public class DiskScrubber implements Runnable {
+
+    /**
+     * System property with the bytes per second the scrubber may read, 0 to disable it
+     */
+    public static final String RATE_PROPERTY = "sdis.scrub.rate";
+
+    /**
+     * Default bytes per second the scrubber may read
+     */
+    private static final long DEFAULT_RATE = 1024 * 1024;
+
+    /**
+     * Time between two walks over the stored chunks, in milliseconds
+     */
+    private static final long WALK_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Disk being scrubbed
+     */
+    private final Disk disk;
+
+    /**
+     * Bytes per second the scrubber may read
+     */
+    private final long rate;
+
+    /**
+     * Constructor of DiskScrubber
+     *
+     * @param disk disk to be scrubbed
+     * @param rate bytes per second the scrubber may read
+     */
+    private DiskScrubber(final Disk disk, final long rate) {
+        this.disk = disk;
+        this.rate = rate;
+    }
+
+    /**
+     * Start the scrubber of a disk with the budget of the {@link #RATE_PROPERTY} system property
+     *
+     * @param disk disk to be scrubbed
+     * @return thread of the scrubber, null if disabled
+     */
+    public static Thread start(final Disk disk) {
+        long rate = Long.getLong(RATE_PROPERTY, DEFAULT_RATE);
+        if (rate <= 0)
+            return null;
+
+        Thread thread = new Thread(new DiskScrubber(disk, rate), "scrubber");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Run method of the scrubber
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                walk();
+                Thread.sleep(WALK_INTERVAL);
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    /**
+     * Walk once over all the stored chunks
+     *
+     * @throws InterruptedException the scrubber was stopped
+     */
+    private void walk() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        int chunks = 0;
+        int corrupted = 0;
+
+        for (String fileId : disk.getStoredFiles()) {
+            for (int chunkNo : disk.getStoredChunks(fileId)) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException();
+
+                int read = disk.scrubChunk(fileId, chunkNo);
+                if (read < 0)
+                    corrupted++;
+                else
+                    bytes += read;
+                chunks++;
+
+                // Keep to the budget of bytes per second
+                long delay = start + bytes * 1000 / rate - System.currentTimeMillis();
+                if (delay > 0)
+                    Thread.sleep(delay);
+            }
+        }
+
+        if (corrupted > 0)
+            System.out.println("Scrubbed " + chunks + " chunks, quarantined " + corrupted + " corrupted chunks.");
+    }
+}
@@ -0,0 +1,43 @@
+package sdis.storage;
+
+/**
+ * Durability of the chunks saved to the disk, deciding when a peer may
+ * announce with STORED that it keeps a chunk
+ */
+public enum DurabilityMode {
+
+    /**
+     * Chunks are announced as soon as they are written, a crash may lose them
+     */
+    NONE,
+
+    /**
+     * Chunks are forced to the device in batches and announced once their batch is durable
+     */
+    GROUP,
+
+    /**
+     * Every chunk is forced to the device on its own before it is announced
+     */
+    CHUNK;
+
+    /**
+     * System property with the name of the durability mode
+     */
+    public static final String DURABILITY_PROPERTY = "sdis.durability";
+
+    /**
+     * Get the mode configured by the {@link #DURABILITY_PROPERTY} system property
+     *
+     * @return configured mode, GROUP by default
+     */
+    public static DurabilityMode fromProperties() {
+        String name = System.getProperty(DURABILITY_PROPERTY, GROUP.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown durability mode " + name + " ! Using " + GROUP);
+            return GROUP;
+        }
+    }
+}
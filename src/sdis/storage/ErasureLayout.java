@@ -0,0 +1,263 @@
+package sdis.storage;
+
+import java.io.*;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Layout of a file backed up with erasure coding. The chunks of the file are
+ * grouped into stripes of data fragments, and each stripe is extended with
+ * parity fragments. The fragments of a stripe take consecutive chunk numbers,
+ * the data fragments first, so a stripe of a file with fewer chunks left than
+ * data fragments leaves a gap before its parity fragments.
+ */
+public class ErasureLayout implements Serializable {
+
+    /**
+     * Serial version of the ErasureLayout
+     */
+    private static final long serialVersionUID = 3390514186092846817L;
+
+    /**
+     * File id of the file
+     */
+    private final String fileId;
+
+    /**
+     * Number of data fragments of a stripe
+     */
+    private final int dataFragments;
+
+    /**
+     * Number of parity fragments of a stripe
+     */
+    private final int parityFragments;
+
+    /**
+     * Size of the file
+     */
+    private final long size;
+
+    /**
+     * Constructor of ErasureLayout
+     *
+     * @param fileId          file id of the file
+     * @param dataFragments   number of data fragments of a stripe
+     * @param parityFragments number of parity fragments of a stripe
+     * @param size            size of the file
+     */
+    public ErasureLayout(final String fileId, final int dataFragments, final int parityFragments, final long size) {
+        this.fileId = fileId;
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.size = size;
+    }
+
+    /**
+     * Get the file id of the file
+     *
+     * @return file id of the file
+     */
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * Get the size of the file
+     *
+     * @return size of the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the number of fragments of a stripe, and of chunk numbers it takes
+     *
+     * @return number of fragments of a stripe
+     */
+    public int getWidth() {
+        return dataFragments + parityFragments;
+    }
+
+    /**
+     * Get the number of stripes of the file
+     *
+     * @return number of stripes
+     */
+    public int getStripes() {
+        return (getDataChunks() + dataFragments - 1) / dataFragments;
+    }
+
+    /**
+     * Get the number of chunks with the data of the file
+     *
+     * @return number of data chunks
+     */
+    private int getDataChunks() {
+        return (int) ((size + FileChunker.MAX_SIZE_CHUNK - 1) / FileChunker.MAX_SIZE_CHUNK);
+    }
+
+    /**
+     * Get the stripe of a fragment
+     *
+     * @param chunkNo chunk number of the fragment
+     * @return stripe of the fragment
+     */
+    public int getStripe(final int chunkNo) {
+        return chunkNo / getWidth();
+    }
+
+    /**
+     * Get the position of a fragment in its stripe
+     *
+     * @param chunkNo chunk number of the fragment
+     * @return position of the fragment, the data fragments first
+     */
+    public int getIndex(final int chunkNo) {
+        return chunkNo % getWidth();
+    }
+
+    /**
+     * Get the number of data fragments of a stripe, fewer than the others for the last one
+     *
+     * @param stripe stripe of the file
+     * @return number of data fragments of the stripe
+     */
+    public int getDataFragments(final int stripe) {
+        return Math.min(dataFragments, getDataChunks() - stripe * dataFragments);
+    }
+
+    /**
+     * Get the number of parity fragments of a stripe
+     *
+     * @return number of parity fragments
+     */
+    public int getParityFragments() {
+        return parityFragments;
+    }
+
+    /**
+     * Get the chunk number of a fragment
+     *
+     * @param stripe stripe of the fragment
+     * @param index  position of the fragment in the code of the stripe, the data fragments first
+     * @return chunk number of the fragment
+     */
+    public int getChunkNo(final int stripe, final int index) {
+        int data = getDataFragments(stripe);
+        return stripe * getWidth() + (index < data ? index : dataFragments + index - data);
+    }
+
+    /**
+     * Get the position of a fragment in the code of its stripe
+     *
+     * @param chunkNo chunk number of the fragment
+     * @return position of the fragment in the code, the data fragments first
+     */
+    public int getCodeIndex(final int chunkNo) {
+        int index = getIndex(chunkNo);
+        return index < dataFragments ? index : getDataFragments(getStripe(chunkNo)) + index - dataFragments;
+    }
+
+    /**
+     * Check if a fragment holds data of the file
+     *
+     * @param chunkNo chunk number of the fragment
+     * @return true if a data fragment, false if a parity fragment
+     */
+    public boolean isData(final int chunkNo) {
+        return getIndex(chunkNo) < dataFragments;
+    }
+
+    /**
+     * Get the offset in the file of a data fragment
+     *
+     * @param chunkNo chunk number of the data fragment
+     * @return offset of the fragment in the file
+     */
+    public long getOffset(final int chunkNo) {
+        return (long) FileChunker.MAX_SIZE_CHUNK * (getStripe(chunkNo) * dataFragments + getIndex(chunkNo));
+    }
+
+    /**
+     * Get the length of a fragment
+     *
+     * @param chunkNo chunk number of the fragment
+     * @return length of the fragment
+     */
+    public int getLength(final int chunkNo) {
+        if (!isData(chunkNo))
+            return getFragmentLength(getStripe(chunkNo));
+        return (int) Math.min(FileChunker.MAX_SIZE_CHUNK, size - getOffset(chunkNo));
+    }
+
+    /**
+     * Get the length of the fragments of a stripe, the one of its first fragment.
+     * Shorter data fragments are padded with zeros to this length to be encoded.
+     *
+     * @param stripe stripe of the file
+     * @return length of the fragments of the stripe
+     */
+    public int getFragmentLength(final int stripe) {
+        return getLength(stripe * getWidth());
+    }
+
+    /**
+     * Get the chunk numbers of the fragments of the file
+     *
+     * @param data true for the data fragments, false for the parity fragments
+     * @return chunk numbers of the fragments
+     */
+    public SortedSet<Integer> getChunks(final boolean data) {
+        SortedSet<Integer> chunks = new TreeSet<>();
+        for (int stripe = 0; stripe < getStripes(); stripe++) {
+            int first = data ? 0 : getDataFragments(stripe);
+            int last = data ? getDataFragments(stripe) : getDataFragments(stripe) + parityFragments;
+            for (int index = first; index < last; index++)
+                chunks.add(getChunkNo(stripe, index));
+        }
+        return chunks;
+    }
+
+    /**
+     * Get the code of a stripe
+     *
+     * @param stripe stripe of the file
+     * @return code of the stripe
+     */
+    public ReedSolomon getCode(final int stripe) {
+        return new ReedSolomon(getDataFragments(stripe), parityFragments);
+    }
+
+    /**
+     * Load the layout of a file id
+     *
+     * @param directory directory of the layouts
+     * @param fileId    file id of the file
+     * @return loaded layout, null if the file id was not backed up with erasure coding
+     */
+    public static ErasureLayout load(final File directory, final String fileId) {
+        return SerializedFiles.load(directory, fileId, "layout", ErasureLayout.class);
+    }
+
+    /**
+     * Save the layout, replacing it atomically
+     *
+     * @param directory directory of the layouts
+     * @return true if saved, false otherwise
+     */
+    public boolean save(final File directory) {
+        return SerializedFiles.save(directory, fileId, "layout", this);
+    }
+
+    /**
+     * Delete the layout of a file id
+     *
+     * @param directory directory of the layouts
+     * @param fileId    file id of the file
+     */
+    public static void delete(final File directory, final String fileId) {
+        SerializedFiles.delete(directory, fileId, "layout");
+    }
+}
@@ -0,0 +1,132 @@
+package sdis.storage;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary key of a file id. The SHA-256 ids of the files are kept as their
+ * 32 bytes instead of 64 characters, any other id is kept as its characters.
+ */
+public final class FileKey implements Serializable {
+
+    /**
+     * Serial version of the FileKey
+     */
+    private static final long serialVersionUID = 2840154823917410226L;
+
+    /**
+     * Length of the hexadecimal file ids
+     */
+    private static final int HEX_LENGTH = 64;
+
+    /**
+     * Hexadecimal digits
+     */
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Bytes of the key
+     */
+    private final byte[] bytes;
+
+    /**
+     * True if the bytes are the decoded hexadecimal id, false if they are its characters
+     */
+    private final boolean hex;
+
+    /**
+     * Hash code of the key
+     */
+    private final int hash;
+
+    /**
+     * Constructor of FileKey
+     *
+     * @param bytes bytes of the key
+     * @param hex   true if the bytes are the decoded hexadecimal id
+     */
+    private FileKey(final byte[] bytes, final boolean hex) {
+        this.bytes = bytes;
+        this.hex = hex;
+        this.hash = 31 * Arrays.hashCode(bytes) + (hex ? 1 : 0);
+    }
+
+    /**
+     * Get the key of a file id
+     *
+     * @param fileId file id
+     * @return key of the file id
+     */
+    public static FileKey of(final String fileId) {
+        if (fileId.length() != HEX_LENGTH)
+            return new FileKey(fileId.getBytes(StandardCharsets.UTF_8), false);
+
+        byte[] bytes = new byte[HEX_LENGTH / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = digit(fileId.charAt(2 * i));
+            int low = digit(fileId.charAt(2 * i + 1));
+            if (high < 0 || low < 0)
+                return new FileKey(fileId.getBytes(StandardCharsets.UTF_8), false);
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return new FileKey(bytes, true);
+    }
+
+    /**
+     * Get the key of a SHA-256 hash
+     *
+     * @param hash SHA-256 hash
+     * @return key of the hash
+     */
+    public static FileKey of(final byte[] hash) {
+        return new FileKey(hash.clone(), true);
+    }
+
+    /**
+     * Get the value of a lowercase hexadecimal digit
+     *
+     * @param c character of the digit
+     * @return value of the digit, -1 if not a lowercase hexadecimal digit
+     */
+    private static int digit(final char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof FileKey))
+            return false;
+        FileKey key = (FileKey) o;
+        return hex == key.hex && Arrays.equals(bytes, key.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Get the file id of the key
+     *
+     * @return file id
+     */
+    @Override
+    public String toString() {
+        if (!hex)
+            return new String(bytes, StandardCharsets.UTF_8);
+
+        char[] chars = new char[HEX_LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,276 @@
+package sdis.storage;
+
+import sdis.utils.Utilities;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Manifest of a version of a file backed up incrementally. It maps every part
+ * of the file to the chunk that holds its content, which may have been
+ * backed up with this version or with any previous version of the file.
+ */
+public class FileManifest implements Serializable {
+
+    /**
+     * Serial version of the FileManifest
+     */
+    private static final long serialVersionUID = 4471059321688160318L;
+
+    /**
+     * File id of this version
+     */
+    private final String fileId;
+
+    /**
+     * File ids of this and all the previous versions, whose chunks may be referenced
+     */
+    private final LinkedHashSet<String> versions;
+
+    /**
+     * Parts of the file, in order
+     */
+    private final ArrayList<Part> parts;
+
+    /**
+     * Size of the file
+     */
+    private long size;
+
+    /**
+     * Constructor of FileManifest
+     *
+     * @param fileId   file id of this version
+     * @param previous manifest of the previous version, null if none
+     */
+    public FileManifest(final String fileId, final FileManifest previous) {
+        this.fileId = fileId;
+        this.versions = new LinkedHashSet<>();
+        if (previous != null)
+            this.versions.addAll(previous.versions);
+        this.versions.add(fileId);
+        this.parts = new ArrayList<>();
+    }
+
+    /**
+     * Add the next part of the file
+     *
+     * @param hash    SHA-256 hash of the content of the part
+     * @param fileId  file id of the chunk with the content
+     * @param chunkNo number of the chunk with the content
+     * @param length  length of the part
+     */
+    public void addPart(final byte[] hash, final String fileId, final int chunkNo, final int length) {
+        parts.add(new Part(hash, fileId, chunkNo, size, length));
+        size += length;
+    }
+
+    /**
+     * Add the file id of an older version whose chunks must be deleted with the file
+     *
+     * @param fileId file id of the older version
+     */
+    public void addVersion(final String fileId) {
+        versions.add(fileId);
+    }
+
+    /**
+     * Get the file id of this version
+     *
+     * @return file id of this version
+     */
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * Get the file ids of this and all the previous versions
+     *
+     * @return file ids of all the versions
+     */
+    public Set<String> getVersions() {
+        return Collections.unmodifiableSet(versions);
+    }
+
+    /**
+     * Get the parts of the file
+     *
+     * @return parts of the file, in order
+     */
+    public List<Part> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * Get the size of the file
+     *
+     * @return size of the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the chunks with the content of the file, grouped by file id
+     *
+     * @return chunk numbers of each file id
+     */
+    public Map<String, SortedSet<Integer>> getChunks() {
+        Map<String, SortedSet<Integer>> chunks = new LinkedHashMap<>();
+        for (Part part : parts)
+            chunks.computeIfAbsent(part.fileId, k -> new TreeSet<>()).add(part.chunkNo);
+        return chunks;
+    }
+
+    /**
+     * Index the parts of the file by the hash of their content
+     *
+     * @return first part with each content
+     */
+    public Map<String, Part> indexByHash() {
+        Map<String, Part> index = new HashMap<>();
+        for (Part part : parts)
+            index.putIfAbsent(part.getHashKey(), part);
+        return index;
+    }
+
+    /**
+     * Get the SHA-256 hash of some content
+     *
+     * @param data content to hash
+     * @return SHA-256 hash of the content
+     */
+    public static byte[] hash(final byte[] data) {
+        return Utilities.sha256(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Load the manifest of a file id
+     *
+     * @param directory directory of the manifests
+     * @param fileId    file id of the version
+     * @return loaded manifest, null if the file id has no manifest
+     */
+    public static FileManifest load(final File directory, final String fileId) {
+        return SerializedFiles.load(directory, fileId, "manifest", FileManifest.class);
+    }
+
+    /**
+     * Save the manifest, replacing it atomically
+     *
+     * @param directory directory of the manifests
+     * @return true if saved, false otherwise
+     */
+    public boolean save(final File directory) {
+        return SerializedFiles.save(directory, fileId, "manifest", this);
+    }
+
+    /**
+     * Delete the manifest of a file id
+     *
+     * @param directory directory of the manifests
+     * @param fileId    file id of the version
+     */
+    public static void delete(final File directory, final String fileId) {
+        SerializedFiles.delete(directory, fileId, "manifest");
+    }
+
+    /**
+     * Part of a file and the chunk that holds its content
+     */
+    public static class Part implements Serializable {
+
+        /**
+         * Serial version of the Part
+         */
+        private static final long serialVersionUID = 7731297542106803357L;
+
+        /**
+         * SHA-256 hash of the content
+         */
+        private final byte[] hash;
+
+        /**
+         * File id of the chunk with the content
+         */
+        private final String fileId;
+
+        /**
+         * Number of the chunk with the content
+         */
+        private final int chunkNo;
+
+        /**
+         * Offset of the part in the file
+         */
+        private final long offset;
+
+        /**
+         * Length of the part
+         */
+        private final int length;
+
+        /**
+         * Constructor of Part
+         *
+         * @param hash    SHA-256 hash of the content
+         * @param fileId  file id of the chunk with the content
+         * @param chunkNo number of the chunk with the content
+         * @param offset  offset of the part in the file
+         * @param length  length of the part
+         */
+        private Part(final byte[] hash, final String fileId, final int chunkNo, final long offset, final int length) {
+            this.hash = hash;
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Get the hash of the content as a key
+         *
+         * @return hash of the content as a key
+         */
+        public String getHashKey() {
+            return Base64.getEncoder().encodeToString(hash);
+        }
+
+        /**
+         * Get the file id of the chunk with the content
+         *
+         * @return file id of the chunk
+         */
+        public String getFileId() {
+            return fileId;
+        }
+
+        /**
+         * Get the number of the chunk with the content
+         *
+         * @return number of the chunk
+         */
+        public int getChunkNo() {
+            return chunkNo;
+        }
+
+        /**
+         * Get the offset of the part in the file
+         *
+         * @return offset of the part
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the length of the part
+         *
+         * @return length of the part
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package sdis.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of the stored chunks in the order of a reclaim policy, kept up to date
+ * as chunks are saved, removed, mirrored and read, so that choosing the chunks
+ * to remove only visits the chunks that end up being removed.
+ */
+public class ReclaimPlanner {
+
+    /**
+     * Minimum time between two index updates of the access time of a chunk, in milliseconds
+     */
+    private static final long ACCESS_GRANULARITY = 1000;
+
+    /**
+     * Policy of the index
+     */
+    private final ReclaimPolicy policy;
+
+    /**
+     * Candidates in the order of the policy
+     */
+    private final ConcurrentSkipListSet<Candidate> index;
+
+    /**
+     * Current candidate of each chunk
+     */
+    private final ConcurrentHashMap<String, Candidate> candidates;
+
+    /**
+     * Constructor of ReclaimPlanner
+     *
+     * @param policy policy of the index
+     */
+    public ReclaimPlanner(final ReclaimPolicy policy) {
+        this.policy = policy;
+        this.index = new ConcurrentSkipListSet<>(policy.order);
+        this.candidates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the policy of the index
+     *
+     * @return policy of the index
+     */
+    public ReclaimPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Index a stored chunk, or update it after its state has changed
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param state   state of the chunk
+     */
+    public void update(final String fileId, final int chunkNo, final ChunkState state) {
+        candidates.compute(key(fileId, chunkNo), (k, previous) -> {
+            long lastAccess = previous != null ? previous.lastAccess : System.currentTimeMillis();
+            Candidate candidate = new Candidate(fileId, chunkNo, state, lastAccess);
+            if (previous != null)
+                index.remove(previous);
+            index.add(candidate);
+            return candidate;
+        });
+    }
+
+    /**
+     * Record a read of a stored chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     */
+    public void touch(final String fileId, final int chunkNo) {
+        if (policy != ReclaimPolicy.LRU)
+            return;
+
+        long now = System.currentTimeMillis();
+        candidates.computeIfPresent(key(fileId, chunkNo), (k, previous) -> {
+            if (now - previous.lastAccess < ACCESS_GRANULARITY)
+                return previous;
+            Candidate candidate = new Candidate(previous, now);
+            index.remove(previous);
+            index.add(candidate);
+            return candidate;
+        });
+    }
+
+    /**
+     * Remove a chunk from the index
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     */
+    public void remove(final String fileId, final int chunkNo) {
+        candidates.computeIfPresent(key(fileId, chunkNo), (k, previous) -> {
+            index.remove(previous);
+            return null;
+        });
+    }
+
+    /**
+     * Choose the chunks to remove to free the given bytes
+     *
+     * @param bytes bytes to be freed
+     * @return chunks to be removed, in the order of the policy
+     */
+    public List<Candidate> plan(final long bytes) {
+        List<Candidate> plan = new ArrayList<>();
+        long planned = 0;
+
+        Iterator<Candidate> iterator = index.iterator();
+        while (planned < bytes && iterator.hasNext()) {
+            Candidate candidate = iterator.next();
+            plan.add(candidate);
+            planned += candidate.size;
+        }
+
+        return plan;
+    }
+
+    /**
+     * Get the key of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return key of the chunk
+     */
+    private static String key(final String fileId, final int chunkNo) {
+        return fileId + ":" + chunkNo;
+    }
+
+    /**
+     * Snapshot of a stored chunk as seen by the index
+     */
+    public static class Candidate {
+
+        /**
+         * File id of the chunk
+         */
+        final String fileId;
+
+        /**
+         * Number of the chunk
+         */
+        final int chunkNo;
+
+        /**
+         * Replicas above the replication degree of the chunk
+         */
+        final int surplus;
+
+        /**
+         * Size of the chunk in bytes
+         */
+        final int size;
+
+        /**
+         * Time of the last read of the chunk, in milliseconds
+         */
+        final long lastAccess;
+
+        /**
+         * Constructor of Candidate
+         *
+         * @param fileId     file id of the chunk
+         * @param chunkNo    number of the chunk
+         * @param state      state of the chunk
+         * @param lastAccess time of the last read of the chunk
+         */
+        private Candidate(final String fileId, final int chunkNo, final ChunkState state, final long lastAccess) {
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+            this.surplus = state.getReplicationDegree() - state.getMinReplicationDegree();
+            this.size = state.getSize();
+            this.lastAccess = lastAccess;
+        }
+
+        /**
+         * Constructor of Candidate with a new access time
+         *
+         * @param candidate  previous candidate of the chunk
+         * @param lastAccess time of the last read of the chunk
+         */
+        private Candidate(final Candidate candidate, final long lastAccess) {
+            this.fileId = candidate.fileId;
+            this.chunkNo = candidate.chunkNo;
+            this.surplus = candidate.surplus;
+            this.size = candidate.size;
+            this.lastAccess = lastAccess;
+        }
+
+        /**
+         * Get the file id of the chunk
+         *
+         * @return file id of the chunk
+         */
+        public String getFileId() {
+            return fileId;
+        }
+
+        /**
+         * Get the number of the chunk
+         *
+         * @return number of the chunk
+         */
+        public int getChunkNo() {
+            return chunkNo;
+        }
+
+        /**
+         * Get the size of the chunk
+         *
+         * @return size of the chunk in bytes
+         */
+        public int getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package sdis.storage;
+
+import java.util.Comparator;
+
+/**
+ * Order in which stored chunks are removed to reclaim space.
+ * Chunks above their replication degree always go first, since
+ * removing them never puts a file at risk.
+ */
+public enum ReclaimPolicy {
+
+    /**
+     * Chunks with the most replicas above their degree first
+     */
+    MOST_REPLICATED(Comparator.comparingInt((ReclaimPlanner.Candidate c) -> -c.surplus)
+            .thenComparingInt(c -> -c.size)),
+
+    /**
+     * Least recently read chunks first
+     */
+    LRU(Comparator.comparingInt((ReclaimPlanner.Candidate c) -> c.surplus > 0 ? 0 : 1)
+            .thenComparingLong(c -> c.lastAccess)),
+
+    /**
+     * Largest chunks first
+     */
+    LARGEST(Comparator.comparingInt((ReclaimPlanner.Candidate c) -> c.surplus > 0 ? 0 : 1)
+            .thenComparingInt(c -> -c.size));
+
+    /**
+     * System property with the name of the policy
+     */
+    public static final String POLICY_PROPERTY = "sdis.reclaim.policy";
+
+    /**
+     * Order of the candidates of this policy
+     */
+    final Comparator<ReclaimPlanner.Candidate> order;
+
+    /**
+     * Constructor of ReclaimPolicy
+     *
+     * @param order order of the candidates, ties are broken by chunk
+     */
+    ReclaimPolicy(final Comparator<ReclaimPlanner.Candidate> order) {
+        this.order = order.thenComparing(c -> c.fileId).thenComparingInt(c -> c.chunkNo);
+    }
+
+    /**
+     * Get the policy configured by the {@link #POLICY_PROPERTY} system property
+     *
+     * @return configured policy, MOST_REPLICATED by default
+     */
+    public static ReclaimPolicy fromProperties() {
+        String name = System.getProperty(POLICY_PROPERTY, MOST_REPLICATED.name());
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown reclaim policy " + name + " ! Using " + MOST_REPLICATED);
+            return MOST_REPLICATED;
+        }
+    }
+}
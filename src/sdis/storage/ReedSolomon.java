@@ -0,0 +1,220 @@
+package sdis.storage;
+
+/**
+ * Systematic Reed-Solomon code over GF(256). A stripe of data fragments is
+ * extended with parity fragments so that any set of fragments as large as the
+ * data fragments is enough to rebuild all of them. The parity rows of the
+ * encoding matrix form a Cauchy matrix, so every square submatrix made of
+ * rows of the whole matrix is invertible.
+ */
+public class ReedSolomon {
+
+    /**
+     * Primitive polynomial of the field, x^8 + x^4 + x^3 + x^2 + 1
+     */
+    private static final int POLYNOMIAL = 0x11d;
+
+    /**
+     * Maximum number of fragments of a stripe
+     */
+    public static final int MAX_FRAGMENTS = 256;
+
+    /**
+     * Powers of the generator of the field, twice as long to skip the modulo when multiplying
+     */
+    private static final byte[] EXP = new byte[2 * MAX_FRAGMENTS];
+
+    /**
+     * Logarithms of the elements of the field
+     */
+    private static final int[] LOG = new int[MAX_FRAGMENTS];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < MAX_FRAGMENTS - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= MAX_FRAGMENTS)
+                x ^= POLYNOMIAL;
+        }
+        for (int i = MAX_FRAGMENTS - 1; i < EXP.length; i++)
+            EXP[i] = EXP[i - (MAX_FRAGMENTS - 1)];
+    }
+
+    /**
+     * Number of data fragments of a stripe
+     */
+    private final int dataFragments;
+
+    /**
+     * Number of parity fragments of a stripe
+     */
+    private final int parityFragments;
+
+    /**
+     * Rows of the encoding matrix, identity rows for the data fragments followed by the parity rows
+     */
+    private final byte[][] matrix;
+
+    /**
+     * Constructor of ReedSolomon
+     *
+     * @param dataFragments   number of data fragments of a stripe
+     * @param parityFragments number of parity fragments of a stripe
+     */
+    public ReedSolomon(final int dataFragments, final int parityFragments) {
+        if (dataFragments <= 0 || parityFragments < 0 || dataFragments + parityFragments > MAX_FRAGMENTS)
+            throw new IllegalArgumentException("Invalid code " + dataFragments + "+" + parityFragments);
+
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.matrix = new byte[dataFragments + parityFragments][dataFragments];
+        for (int i = 0; i < dataFragments; i++)
+            matrix[i][i] = 1;
+        for (int i = 0; i < parityFragments; i++)
+            for (int j = 0; j < dataFragments; j++)
+                matrix[dataFragments + i][j] = inverse((dataFragments + i) ^ j);
+    }
+
+    /**
+     * Compute the parity fragments of a stripe
+     *
+     * @param data data fragments of the stripe, all with the same length
+     * @return parity fragments of the stripe
+     */
+    public byte[][] encode(final byte[][] data) {
+        byte[][] parity = new byte[parityFragments][data[0].length];
+        for (int i = 0; i < parityFragments; i++)
+            combine(matrix[dataFragments + i], data, parity[i]);
+        return parity;
+    }
+
+    /**
+     * Rebuild the missing fragments of a stripe
+     *
+     * @param fragments data fragments followed by the parity fragments, null where missing,
+     *                  the present ones all with the same length
+     * @return true if the stripe was rebuilt, false if there were not enough fragments
+     */
+    public boolean decode(final byte[][] fragments) {
+        // Take the first fragments present, as many as the data fragments
+        int[] rows = new int[dataFragments];
+        byte[][] present = new byte[dataFragments][];
+        int n = 0;
+        for (int i = 0; i < fragments.length && n < dataFragments; i++)
+            if (fragments[i] != null) {
+                rows[n] = i;
+                present[n++] = fragments[i];
+            }
+        if (n < dataFragments)
+            return false;
+
+        // Recover the data fragments with the inverse of the rows of the fragments taken
+        byte[][] submatrix = new byte[dataFragments][];
+        for (int i = 0; i < dataFragments; i++)
+            submatrix[i] = matrix[rows[i]].clone();
+        byte[][] decoding = invert(submatrix);
+        for (int i = 0; i < dataFragments; i++)
+            if (fragments[i] == null) {
+                fragments[i] = new byte[present[0].length];
+                combine(decoding[i], present, fragments[i]);
+            }
+
+        // Encode the parity fragments again
+        byte[][] data = new byte[dataFragments][];
+        System.arraycopy(fragments, 0, data, 0, dataFragments);
+        for (int i = 0; i < parityFragments; i++)
+            if (fragments[dataFragments + i] == null) {
+                fragments[dataFragments + i] = new byte[present[0].length];
+                combine(matrix[dataFragments + i], data, fragments[dataFragments + i]);
+            }
+        return true;
+    }
+
+    /**
+     * Combine fragments linearly
+     *
+     * @param coefficients coefficient of each fragment
+     * @param fragments    fragments to combine
+     * @param output       combination of the fragments
+     */
+    private static void combine(final byte[] coefficients, final byte[][] fragments, final byte[] output) {
+        for (int j = 0; j < coefficients.length; j++) {
+            int coefficient = coefficients[j] & 0xff;
+            if (coefficient == 0)
+                continue;
+            byte[] fragment = fragments[j];
+            int log = LOG[coefficient];
+            for (int b = 0; b < output.length; b++)
+                if (fragment[b] != 0)
+                    output[b] ^= EXP[log + LOG[fragment[b] & 0xff]];
+        }
+    }
+
+    /**
+     * Multiply two elements of the field
+     *
+     * @param a first element
+     * @param b second element
+     * @return product of the elements
+     */
+    private static int multiply(final int a, final int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]] & 0xff;
+    }
+
+    /**
+     * Get the inverse of an element of the field
+     *
+     * @param a element, not zero
+     * @return inverse of the element
+     */
+    private static byte inverse(final int a) {
+        return EXP[MAX_FRAGMENTS - 1 - LOG[a]];
+    }
+
+    /**
+     * Invert a square matrix by Gauss-Jordan elimination
+     *
+     * @param a matrix to invert, changed in place
+     * @return inverse of the matrix
+     */
+    private static byte[][] invert(final byte[][] a) {
+        int size = a.length;
+        byte[][] inverse = new byte[size][size];
+        for (int i = 0; i < size; i++)
+            inverse[i][i] = 1;
+
+        for (int column = 0; column < size; column++) {
+            // Bring a row with a non zero pivot to the column
+            int pivot = column;
+            while (a[pivot][column] == 0)
+                pivot++;
+            byte[] row = a[pivot];
+            a[pivot] = a[column];
+            a[column] = row;
+            row = inverse[pivot];
+            inverse[pivot] = inverse[column];
+            inverse[column] = row;
+
+            // Scale the pivot to one
+            int scale = inverse(a[column][column] & 0xff) & 0xff;
+            for (int j = 0; j < size; j++) {
+                a[column][j] = (byte) multiply(a[column][j] & 0xff, scale);
+                inverse[column][j] = (byte) multiply(inverse[column][j] & 0xff, scale);
+            }
+
+            // Clear the column in every other row
+            for (int i = 0; i < size; i++) {
+                int factor = a[i][column] & 0xff;
+                if (i == column || factor == 0)
+                    continue;
+                for (int j = 0; j < size; j++) {
+                    a[i][j] ^= multiply(a[column][j] & 0xff, factor);
+                    inverse[i][j] ^= multiply(inverse[column][j] & 0xff, factor);
+                }
+            }
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,299 @@
+package sdis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assembler of a file being restored. The file is preallocated once and the
+ * chunks are written at their offsets through a single channel as they arrive,
+ * in any order and from any thread.
+ */
+public class RestoreAssembler implements ChunkSink {
+
+    /**
+     * System property to force the restored file to the device when it is complete
+     */
+    public static final String FSYNC_PROPERTY = "sdis.restore.fsync";
+
+    /**
+     * File being restored
+     */
+    private final File file;
+
+    /**
+     * Channel of the file being restored
+     */
+    private final FileChannel channel;
+
+    /**
+     * True to force the file to the device when it is complete
+     */
+    private final boolean fsync;
+
+    /**
+     * End of the restored data
+     */
+    private final AtomicLong end;
+
+    /**
+     * Offsets of the file where the content of each chunk goes, null if the chunks
+     * are laid out one after the other with the maximum size
+     */
+    private Map<String, long[]> placements;
+
+    /**
+     * Layout of the file when backed up with erasure coding, null otherwise
+     */
+    private ErasureLayout layout;
+
+    /**
+     * Decoders of the stripes being restored, when backed up with erasure coding
+     */
+    private Map<Integer, StripeDecoder> decoders;
+
+    /**
+     * Stripes already written to the file, when backed up with erasure coding
+     */
+    private Set<Integer> restoredStripes;
+
+    /**
+     * Constructor of RestoreAssembler
+     *
+     * @param file    file being restored
+     * @param channel channel of the file
+     * @param fsync   true to force the file to the device when it is complete
+     */
+    private RestoreAssembler(final File file, final FileChannel channel, final boolean fsync) {
+        this.file = file;
+        this.channel = channel;
+        this.fsync = fsync;
+        this.end = new AtomicLong(0);
+    }
+
+    /**
+     * Open an assembler, preallocating the file being restored
+     *
+     * @param file     file being restored
+     * @param capacity maximum size of the restored file
+     * @return opened assembler, null if the file could not be opened
+     */
+    public static RestoreAssembler open(final File file, final long capacity) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            if (capacity > 0)
+                channel.write(ByteBuffer.allocate(1), capacity - 1);
+            return new RestoreAssembler(file, channel, Boolean.getBoolean(FSYNC_PROPERTY));
+        } catch (IOException e) {
+            System.out.println("Failed to open the restored file " + file + " ! " + e.getMessage());
+            if (channel != null)
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            return null;
+        }
+    }
+
+    /**
+     * Open an assembler of a file backed up incrementally, laying out the chunks as its manifest
+     *
+     * @param file     file being restored
+     * @param manifest manifest of the version being restored
+     * @return opened assembler, null if the file could not be opened
+     */
+    public static RestoreAssembler open(final File file, final FileManifest manifest) {
+        RestoreAssembler assembler = open(file, manifest.getSize());
+        if (assembler == null)
+            return null;
+
+        Map<String, long[]> placements = new HashMap<>();
+        for (FileManifest.Part part : manifest.getParts()) {
+            long[] offsets = placements.get(key(part.getFileId(), part.getChunkNo()));
+            offsets = offsets == null ? new long[1] : Arrays.copyOf(offsets, offsets.length + 1);
+            offsets[offsets.length - 1] = part.getOffset();
+            placements.put(key(part.getFileId(), part.getChunkNo()), offsets);
+        }
+        assembler.placements = placements;
+        return assembler;
+    }
+
+    /**
+     * Open an assembler of a file backed up with erasure coding, decoding each stripe
+     * as soon as enough of its fragments arrive
+     *
+     * @param file   file being restored
+     * @param layout layout of the file
+     * @return opened assembler, null if the file could not be opened
+     */
+    public static RestoreAssembler open(final File file, final ErasureLayout layout) {
+        RestoreAssembler assembler = open(file, layout.getSize());
+        if (assembler == null)
+            return null;
+
+        assembler.layout = layout;
+        assembler.decoders = new ConcurrentHashMap<>();
+        assembler.restoredStripes = ConcurrentHashMap.newKeySet();
+        return assembler;
+    }
+
+    /**
+     * Write the data of a chunk wherever its content goes in the file
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    data of the chunk
+     * @return true if the chunk was written, false otherwise
+     */
+    @Override
+    public boolean writeChunk(final String fileId, final int chunkNo, final ByteBuffer data) {
+        if (layout != null)
+            return writeFragment(fileId, chunkNo, data);
+        if (placements == null)
+            return write((long) FileChunker.MAX_SIZE_CHUNK * chunkNo, data);
+
+        long[] offsets = placements.get(key(fileId, chunkNo));
+        if (offsets == null)
+            return false;
+        for (long offset : offsets)
+            if (!write(offset, data))
+                return false;
+        return true;
+    }
+
+    /**
+     * Write a fragment of a file backed up with erasure coding, writing the data of its
+     * stripe once the stripe can be decoded
+     *
+     * @param fileId  file id of the fragment
+     * @param chunkNo chunk number of the fragment
+     * @param data    data of the fragment
+     * @return true if the fragment was written, false otherwise
+     */
+    private boolean writeFragment(final String fileId, final int chunkNo, final ByteBuffer data) {
+        int stripe = layout.getStripe(chunkNo);
+        if (restoredStripes.contains(stripe))
+            return true;
+
+        StripeDecoder decoder = decoders.computeIfAbsent(stripe, s -> new StripeDecoder(layout, s));
+        synchronized (decoder) {
+            if (!decoder.writeChunk(fileId, chunkNo, data))
+                return false;
+            if (!decoder.isComplete() || restoredStripes.contains(stripe))
+                return true;
+
+            for (int index = 0; index < layout.getDataFragments(stripe); index++) {
+                int dataChunkNo = layout.getChunkNo(stripe, index);
+                byte[] fragment = decoder.getFragment(dataChunkNo);
+                if (fragment == null || !write(layout.getOffset(dataChunkNo), ByteBuffer.wrap(fragment)))
+                    return false;
+            }
+            restoredStripes.add(stripe);
+            decoders.remove(stripe);
+        }
+        return true;
+    }
+
+    /**
+     * Check if a chunk is still needed, the fragments of a stripe already written are not
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if the chunk is still needed, false otherwise
+     */
+    @Override
+    public boolean isNeeded(final String fileId, final int chunkNo) {
+        return layout == null || !restoredStripes.contains(layout.getStripe(chunkNo));
+    }
+
+    /**
+     * Write the data of a chunk at its offset
+     *
+     * @param offset offset of the chunk in the file
+     * @param data   data of the chunk
+     * @return true if the chunk was written, false otherwise
+     */
+    public boolean write(final long offset, final ByteBuffer data) {
+        ByteBuffer buffer = data.duplicate();
+        long position = offset;
+        try {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        } catch (IOException e) {
+            System.out.println("Failed to write a restored chunk ! " + e.getMessage());
+            return false;
+        }
+
+        end.accumulateAndGet(position, Math::max);
+        return true;
+    }
+
+    /**
+     * Finish the restore, trimming the preallocated space after the restored data
+     *
+     * @return true if the file is complete, false otherwise
+     */
+    public boolean finish() {
+        try {
+            channel.truncate(end.get());
+            if (fsync)
+                channel.force(true);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Failed to finish the restored file " + file + " ! " + e.getMessage());
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Abort the restore, deleting the partial file
+     */
+    public void abort() {
+        close();
+        if (!file.delete())
+            System.out.println("Failed to delete the partial file " + file + " !");
+    }
+
+    /**
+     * Get the file being restored
+     *
+     * @return file being restored
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the key of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return key of the chunk
+     */
+    private static String key(final String fileId, final int chunkNo) {
+        return fileId + ":" + chunkNo;
+    }
+
+    /**
+     * Close the channel of the file
+     */
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close the restored file " + file + " ! " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,747 @@
+package sdis.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured chunk store. Payloads are appended to large segment files
+ * and an in-memory index maps each chunk to its location. Deleted chunks
+ * leave a tombstone behind and their space is reclaimed by compacting the
+ * segments with few live bytes.
+ */
+public class SegmentChunkStore implements ChunkStore {
+
+    /**
+     * Maximum size of a segment before a new one is started
+     */
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Segments with a smaller fraction of live bytes are compacted
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * Interval between compactions in millis
+     */
+    private static final int COMPACTION_INTERVAL = 60000;
+
+    /**
+     * Magic number at the start of every record
+     */
+    private static final int RECORD_MAGIC = 0x53474d31;
+
+    /**
+     * Put record type
+     */
+    private static final byte PUT_RECORD = 1;
+
+    /**
+     * Delete record type (tombstone)
+     */
+    private static final byte DELETE_RECORD = 2;
+
+    /**
+     * Directory of the segments
+     */
+    private final File directory;
+
+    /**
+     * All segments by id
+     */
+    private final ConcurrentSkipListMap<Integer, Segment> segments;
+
+    /**
+     * Location of every chunk
+     * <FileId, <ChunkNo, Location>>
+     */
+    private final Map<String, Map<Integer, Location>> index;
+
+    /**
+     * Lock to prevent segments from being removed while being read
+     */
+    private final ReadWriteLock segmentsLock;
+
+    /**
+     * Lock for appending records to the active segment
+     */
+    private final Object appendLock;
+
+    /**
+     * Segment where records are being appended
+     */
+    private Segment active;
+
+    /**
+     * Timer of the background compaction
+     */
+    private final Timer compactionTimer;
+
+    /**
+     * Constructor of SegmentChunkStore
+     *
+     * @param directory directory of the segments
+     * @throws IOException error while opening the segments
+     */
+    public SegmentChunkStore(final File directory) throws IOException {
+        this.directory = directory;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.index = new ConcurrentHashMap<>();
+        this.segmentsLock = new ReentrantReadWriteLock();
+        this.appendLock = new Object();
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        // Rebuild the index from the existing segments
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName().substring(8, file.getName().length() - 4));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        for (Segment segment : segments.values())
+            scan(segment);
+
+        // Keep appending to the last segment
+        this.active = segments.isEmpty() ? newSegment() : segments.lastEntry().getValue();
+        for (Segment segment : segments.values())
+            if (segment != active)
+                segment.seal();
+
+        this.compactionTimer = new Timer("SegmentChunkStore-compaction", true);
+        this.compactionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL);
+    }
+
+    /**
+     * Write the payload of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    payload of the chunk
+     * @return true if successful, false otherwise
+     */
+    @Override
+    public boolean write(final String fileId, final int chunkNo, final ByteBuffer data) {
+        synchronized (appendLock) {
+            try {
+                Location location = append(PUT_RECORD, fileId, chunkNo, data.duplicate());
+                setLocation(fileId, chunkNo, location);
+            } catch (IOException e) {
+                System.out.println("Failed to save chunk to the disk! " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the payload of a chunk, as a view of the mapped segment once the segment is sealed
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return payload of the chunk, null if it could not be read
+     */
+    @Override
+    public ByteBuffer read(final String fileId, final int chunkNo) {
+        segmentsLock.readLock().lock();
+        try {
+            Location location = getLocation(fileId, chunkNo);
+            if (location == null)
+                return null;
+
+            return segments.get(location.segment).view(location.offset, location.length);
+        } catch (IOException e) {
+            System.out.println("Error while fetching chunk from the disk! " + e.getMessage());
+            return null;
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force the segment with the payload of a written chunk to the device
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if successful, false otherwise
+     */
+    @Override
+    public boolean force(final String fileId, final int chunkNo) {
+        segmentsLock.readLock().lock();
+        try {
+            Location location = getLocation(fileId, chunkNo);
+            if (location == null)
+                return false;
+
+            segments.get(location.segment).force();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Failed to force chunk to the disk! " + e.getMessage());
+            return false;
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the payload of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return true if successful, false otherwise
+     */
+    @Override
+    public boolean delete(final String fileId, final int chunkNo) {
+        synchronized (appendLock) {
+            if (getLocation(fileId, chunkNo) == null)
+                return false;
+            try {
+                append(DELETE_RECORD, fileId, chunkNo, ByteBuffer.allocate(0));
+            } catch (IOException e) {
+                System.out.println("Failed to delete chunk from the disk! " + e.getMessage());
+                return false;
+            }
+            setLocation(fileId, chunkNo, null);
+        }
+        return true;
+    }
+
+    /**
+     * List the payloads in the store, from the index rebuilt when the store was opened
+     *
+     * @return length of each payload by file id and chunk number
+     */
+    @Override
+    public Map<String, Map<Integer, Integer>> list() {
+        Map<String, Map<Integer, Integer>> payloads = new HashMap<>();
+        for (Map.Entry<String, Map<Integer, Location>> indexEntry : index.entrySet()) {
+            Map<Integer, Integer> chunks = new HashMap<>();
+            for (Map.Entry<Integer, Location> chunksEntry : indexEntry.getValue().entrySet())
+                chunks.put(chunksEntry.getKey(), chunksEntry.getValue().length);
+            payloads.put(indexEntry.getKey(), chunks);
+        }
+        return payloads;
+    }
+
+    /**
+     * Close the chunk store
+     */
+    @Override
+    public void close() {
+        compactionTimer.cancel();
+        segmentsLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.close();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compact all the sealed segments with few live bytes, copying their live
+     * chunks to the active segment and deleting them afterwards
+     */
+    public void compact() {
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.getLiveRatio() >= COMPACTION_THRESHOLD)
+                continue;
+
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                System.out.println("Failed to compact " + segment.file + "! " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compact a segment
+     *
+     * @param segment segment to be compacted
+     * @throws IOException error while compacting
+     */
+    private void compact(final Segment segment) throws IOException {
+        // Tombstones are only needed while older segments may still hold the chunk
+        final boolean keepTombstones = segments.lowerKey(segment.id) != null;
+
+        segment.forEachRecord((type, fileId, chunkNo, offset, length) -> {
+            synchronized (appendLock) {
+                if (type == PUT_RECORD) {
+                    Location location = getLocation(fileId, chunkNo);
+                    if (location == null || location.segment != segment.id || location.offset != offset)
+                        return;
+                    ByteBuffer data = ByteBuffer.allocate(length);
+                    segment.read(data, offset);
+                    data.flip();
+                    setLocation(fileId, chunkNo, append(PUT_RECORD, fileId, chunkNo, data));
+                } else if (keepTombstones && getLocation(fileId, chunkNo) == null) {
+                    append(DELETE_RECORD, fileId, chunkNo, ByteBuffer.allocate(0));
+                }
+            }
+        });
+
+        // The copied chunks must be durable before the segment is gone
+        for (Segment other : segments.values())
+            if (other != segment)
+                other.force();
+
+        segmentsLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.close();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        if (!segment.file.delete())
+            System.out.println("Failed to delete compacted segment " + segment.file + "!");
+    }
+
+    /**
+     * Rebuild the index with the records of a segment
+     *
+     * @param segment segment to be scanned
+     * @throws IOException error while reading the segment
+     */
+    private void scan(final Segment segment) throws IOException {
+        long validLength = segment.forEachRecord((type, fileId, chunkNo, offset, length) -> {
+            if (type == PUT_RECORD)
+                setLocation(fileId, chunkNo, new Location(segment.id, offset, length));
+            else setLocation(fileId, chunkNo, null);
+        });
+
+        // Drop a torn record at the end of the segment
+        if (validLength < segment.size())
+            segment.truncate(validLength);
+    }
+
+    /**
+     * Append a record to the active segment. Must hold the append lock.
+     *
+     * @param type    type of the record
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @param data    payload of the record
+     * @return location of the payload
+     * @throws IOException error while appending
+     */
+    private Location append(final byte type, final String fileId, final int chunkNo, final ByteBuffer data) throws IOException {
+        if (active.size() >= SEGMENT_SIZE) {
+            active.seal();
+            active = newSegment();
+        }
+
+        byte[] fileIdBytes = fileId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(Segment.headerSize(fileIdBytes.length));
+        header.putInt(RECORD_MAGIC);
+        header.put(type);
+        header.putShort((short) fileIdBytes.length);
+        header.put(fileIdBytes);
+        header.putInt(chunkNo);
+        header.putInt(data.remaining());
+        header.flip();
+
+        int length = data.remaining();
+        long offset = active.append(header, data);
+        active.addTotalBytes(header.capacity() + length);
+        return new Location(active.id, offset + header.capacity(), length);
+    }
+
+    /**
+     * Create a new segment after the existing ones
+     *
+     * @return created segment
+     * @throws IOException error while creating the segment
+     */
+    private Segment newSegment() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(directory, String.format("segment-%08d.log", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Get the location of a chunk
+     *
+     * @param fileId  file id of the chunk
+     * @param chunkNo number of the chunk
+     * @return location of the chunk, null if not stored
+     */
+    private Location getLocation(final String fileId, final int chunkNo) {
+        Map<Integer, Location> chunks = index.get(fileId);
+        return chunks == null ? null : chunks.get(chunkNo);
+    }
+
+    /**
+     * Set the location of a chunk, updating the live bytes of the segments
+     *
+     * @param fileId   file id of the chunk
+     * @param chunkNo  number of the chunk
+     * @param location new location of the chunk, null if it was deleted
+     */
+    private void setLocation(final String fileId, final int chunkNo, final Location location) {
+        Location previous;
+        if (location != null) {
+            previous = index.computeIfAbsent(fileId, k -> new ConcurrentHashMap<>()).put(chunkNo, location);
+            segments.get(location.segment).addLiveBytes(location.length);
+        } else {
+            Map<Integer, Location> chunks = index.get(fileId);
+            if (chunks == null)
+                return;
+            previous = chunks.remove(chunkNo);
+            if (chunks.isEmpty())
+                index.remove(fileId);
+        }
+
+        if (previous != null) {
+            Segment segment = segments.get(previous.segment);
+            if (segment != null)
+                segment.addLiveBytes(-previous.length);
+        }
+    }
+
+    /**
+     * Location of a chunk payload in a segment
+     */
+    private static class Location {
+
+        /**
+         * Id of the segment
+         */
+        private final int segment;
+
+        /**
+         * Offset of the payload in the segment
+         */
+        private final long offset;
+
+        /**
+         * Length of the payload
+         */
+        private final int length;
+
+        /**
+         * Constructor of Location
+         *
+         * @param segment id of the segment
+         * @param offset  offset of the payload in the segment
+         * @param length  length of the payload
+         */
+        private Location(final int segment, final long offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Visitor of the records of a segment
+     */
+    private interface RecordVisitor {
+
+        /**
+         * Visit a record
+         *
+         * @param type    type of the record
+         * @param fileId  file id of the chunk
+         * @param chunkNo number of the chunk
+         * @param offset  offset of the payload in the segment
+         * @param length  length of the payload
+         * @throws IOException error while visiting
+         */
+        void visit(byte type, String fileId, int chunkNo, long offset, int length) throws IOException;
+    }
+
+    /**
+     * Segment file
+     */
+    private static class Segment {
+
+        /**
+         * Id of the segment
+         */
+        private final int id;
+
+        /**
+         * File of the segment
+         */
+        private final File file;
+
+        /**
+         * Channel of the segment file
+         */
+        private final FileChannel channel;
+
+        /**
+         * Bytes of the payloads still referenced by the index
+         */
+        private final AtomicLong liveBytes;
+
+        /**
+         * Bytes of all records in the segment
+         */
+        private final AtomicLong totalBytes;
+
+        /**
+         * Bytes of the segment already forced to the device
+         */
+        private final AtomicLong forcedBytes = new AtomicLong(0);
+
+        /**
+         * True once the directory entry of the segment file was forced to the device
+         */
+        private volatile boolean directoryForced;
+
+        /**
+         * True once records are no longer appended to the segment
+         */
+        private volatile boolean sealed;
+
+        /**
+         * Read-only mapping of the segment, made once the segment is sealed
+         */
+        private volatile MappedByteBuffer mapped;
+
+        /**
+         * Constructor of Segment
+         *
+         * @param id   id of the segment
+         * @param file file of the segment
+         * @throws IOException error while opening the segment
+         */
+        private Segment(final int id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.liveBytes = new AtomicLong(0);
+            this.totalBytes = new AtomicLong(channel.size());
+        }
+
+        /**
+         * Size of the header of a record
+         *
+         * @param fileIdLength length of the file id in bytes
+         * @return size of the header
+         */
+        private static int headerSize(final int fileIdLength) {
+            return 4 + 1 + 2 + fileIdLength + 4 + 4;
+        }
+
+        /**
+         * Append a record to the segment
+         *
+         * @param header header of the record
+         * @param data   payload of the record
+         * @return offset of the record
+         * @throws IOException error while writing
+         */
+        private long append(final ByteBuffer header, final ByteBuffer data) throws IOException {
+            long offset = channel.size();
+            long position = offset;
+            while (header.hasRemaining())
+                position += channel.write(header, position);
+            while (data.hasRemaining())
+                position += channel.write(data, position);
+            return offset;
+        }
+
+        /**
+         * Read from the segment
+         *
+         * @param buffer buffer to read into
+         * @param offset offset in the segment
+         * @throws IOException error while reading
+         */
+        private void read(final ByteBuffer buffer, final long offset) throws IOException {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of segment " + file);
+                position += read;
+            }
+        }
+
+        /**
+         * Get a read-only view of a region of the segment. A sealed segment is mapped once and the
+         * region is not copied. The active segment is read into the heap instead, as its mapping
+         * would have to be made again for every read of a record appended after it.
+         *
+         * @param offset offset of the region
+         * @param length length of the region
+         * @return view of the region
+         * @throws IOException error while reading or mapping the segment
+         */
+        private ByteBuffer view(final long offset, final int length) throws IOException {
+            if (!sealed) {
+                ByteBuffer data = ByteBuffer.allocate(length);
+                read(data, offset);
+                data.flip();
+                return data.asReadOnlyBuffer();
+            }
+
+            MappedByteBuffer region = mapped;
+            if (region == null) {
+                synchronized (this) {
+                    region = mapped;
+                    if (region == null) {
+                        // Mappings stay valid even after the segment is compacted and deleted
+                        region = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        mapped = region;
+                    }
+                }
+            }
+
+            ByteBuffer view = region.duplicate();
+            view.limit((int) offset + length);
+            view.position((int) offset);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Seal the segment, once records are no longer appended to it
+         */
+        private void seal() {
+            sealed = true;
+        }
+
+        /**
+         * Visit all the records of the segment
+         *
+         * @param visitor visitor of the records
+         * @return length of the segment with valid records
+         * @throws IOException error while reading
+         */
+        private long forEachRecord(final RecordVisitor visitor) throws IOException {
+            long position = 0;
+            long size = channel.size();
+            ByteBuffer fixed = ByteBuffer.allocate(7);
+            while (position + fixed.capacity() <= size) {
+                fixed.clear();
+                read(fixed, position);
+                fixed.flip();
+                if (fixed.getInt() != RECORD_MAGIC)
+                    break;
+                byte type = fixed.get();
+                int fileIdLength = fixed.getShort();
+                int headerSize = headerSize(fileIdLength);
+                if (position + headerSize > size)
+                    break;
+
+                ByteBuffer rest = ByteBuffer.allocate(fileIdLength + 8);
+                read(rest, position + fixed.capacity());
+                rest.flip();
+                byte[] fileIdBytes = new byte[fileIdLength];
+                rest.get(fileIdBytes);
+                int chunkNo = rest.getInt();
+                int length = rest.getInt();
+                if (length < 0 || position + headerSize + length > size)
+                    break;
+
+                visitor.visit(type, new String(fileIdBytes, StandardCharsets.UTF_8), chunkNo, position + headerSize, length);
+                position += headerSize + length;
+            }
+            return position;
+        }
+
+        /**
+         * Force the segment to the device, unless nothing was written since the last time
+         *
+         * @throws IOException error while forcing
+         */
+        private void force() throws IOException {
+            long size = channel.size();
+            if (size <= forcedBytes.get())
+                return;
+            channel.force(false);
+
+            // A new segment file is only durable once its directory is, not every platform can force one
+            if (!directoryForced) {
+                try (FileChannel directory = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ)) {
+                    directory.force(false);
+                } catch (IOException ignore) {
+                }
+                directoryForced = true;
+            }
+            forcedBytes.accumulateAndGet(size, Math::max);
+        }
+
+        /**
+         * Get the size of the segment
+         *
+         * @return size of the segment
+         * @throws IOException error while reading the size
+         */
+        private long size() throws IOException {
+            return channel.size();
+        }
+
+        /**
+         * Truncate the segment
+         *
+         * @param length new length of the segment
+         * @throws IOException error while truncating
+         */
+        private void truncate(final long length) throws IOException {
+            channel.truncate(length);
+            totalBytes.set(length);
+        }
+
+        /**
+         * Add live bytes to the segment
+         *
+         * @param bytes bytes to be added (negative to remove)
+         */
+        private void addLiveBytes(final long bytes) {
+            liveBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Add bytes written to the segment
+         *
+         * @param bytes bytes written
+         */
+        private void addTotalBytes(final long bytes) {
+            totalBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Get the fraction of the segment that is still live
+         *
+         * @return fraction of live bytes
+         */
+        private double getLiveRatio() {
+            long total = totalBytes.get();
+            return total == 0 ? 1 : (double) liveBytes.get() / total;
+        }
+
+        /**
+         * Close the segment
+         */
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close segment " + file + "! " + e.getMessage());
+            }
+        }
+    }
+}
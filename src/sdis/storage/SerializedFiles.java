@@ -0,0 +1,86 @@
+package sdis.storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Serialized objects kept in a directory, one file per file id, that are replaced atomically
+ */
+final class SerializedFiles {
+
+    /**
+     * Constructor of SerializedFiles, not to be instantiated
+     */
+    private SerializedFiles() {
+    }
+
+    /**
+     * Load the object of a file id
+     *
+     * @param directory directory of the objects
+     * @param fileId    file id of the object
+     * @param kind      kind of the object, which names its files and messages
+     * @param type      class of the object
+     * @param <T>       type of the object
+     * @return loaded object, null if the file id has none
+     */
+    static <T> T load(final File directory, final String fileId, final String kind, final Class<T> type) {
+        File file = new File(directory, fileId + "." + kind);
+        if (!file.exists())
+            return null;
+
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return type.cast(input.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.println("Failed to load the " + kind + " of " + fileId + " ! " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save the object of a file id, writing a temporary file and moving it over the previous one
+     *
+     * @param directory directory of the objects
+     * @param fileId    file id of the object
+     * @param kind      kind of the object, which names its files and messages
+     * @param object    object to be saved
+     * @return true if saved, false otherwise
+     */
+    static boolean save(final File directory, final String fileId, final String kind, final Serializable object) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Failed to create the " + kind + "s directory " + directory + " !");
+            return false;
+        }
+
+        File file = new File(directory, fileId + "." + kind);
+        File temp = new File(directory, fileId + "." + kind + ".tmp");
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeObject(object);
+        } catch (IOException e) {
+            System.out.println("Failed to save the " + kind + " of " + fileId + " ! " + e.getMessage());
+            return false;
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Failed to save the " + kind + " of " + fileId + " ! " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Delete the object of a file id
+     *
+     * @param directory directory of the objects
+     * @param fileId    file id of the object
+     * @param kind      kind of the object, which names its files and messages
+     */
+    static void delete(final File directory, final String fileId, final String kind) {
+        File file = new File(directory, fileId + "." + kind);
+        if (file.exists() && !file.delete())
+            System.out.println("Failed to delete the " + kind + " of " + fileId + " !");
+    }
+}
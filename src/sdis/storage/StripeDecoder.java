@@ -0,0 +1,120 @@
+package sdis.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decoder of a stripe of a file backed up with erasure coding. It collects
+ * the fragments of the stripe until there are as many as its data fragments,
+ * then rebuilds the missing ones.
+ */
+public class StripeDecoder implements ChunkSink {
+
+    /**
+     * Layout of the file
+     */
+    private final ErasureLayout layout;
+
+    /**
+     * Stripe being decoded
+     */
+    private final int stripe;
+
+    /**
+     * Fragments of the stripe in the order of its code, null where missing
+     */
+    private final byte[][] fragments;
+
+    /**
+     * Number of fragments received
+     */
+    private int received;
+
+    /**
+     * True once the missing fragments have been rebuilt
+     */
+    private boolean decoded;
+
+    /**
+     * Constructor of StripeDecoder
+     *
+     * @param layout layout of the file
+     * @param stripe stripe to be decoded
+     */
+    public StripeDecoder(final ErasureLayout layout, final int stripe) {
+        this.layout = layout;
+        this.stripe = stripe;
+        this.fragments = new byte[layout.getDataFragments(stripe) + layout.getParityFragments()][];
+    }
+
+    /**
+     * Add a received fragment of the stripe, padding it to the length of the fragments of the stripe
+     *
+     * @param fileId  file id of the fragment
+     * @param chunkNo chunk number of the fragment
+     * @param data    data of the fragment
+     * @return true if the fragment belongs to the stripe, false otherwise
+     */
+    @Override
+    public synchronized boolean writeChunk(final String fileId, final int chunkNo, final ByteBuffer data) {
+        if (!fileId.equals(layout.getFileId()) || layout.getStripe(chunkNo) != stripe)
+            return false;
+
+        int index = layout.getCodeIndex(chunkNo);
+        if (fragments[index] != null || decoded)
+            return true;
+
+        byte[] fragment = new byte[layout.getFragmentLength(stripe)];
+        ByteBuffer view = data.duplicate();
+        view.get(fragment, 0, Math.min(view.remaining(), fragment.length));
+        fragments[index] = fragment;
+        received++;
+        return true;
+    }
+
+    /**
+     * Check if a fragment of the stripe is still needed
+     *
+     * @param fileId  file id of the fragment
+     * @param chunkNo chunk number of the fragment
+     * @return true until the stripe has enough fragments to be decoded
+     */
+    @Override
+    public synchronized boolean isNeeded(final String fileId, final int chunkNo) {
+        return !isComplete();
+    }
+
+    /**
+     * Check if the stripe has enough fragments to be decoded
+     *
+     * @return true if the stripe can be decoded, false otherwise
+     */
+    public synchronized boolean isComplete() {
+        return decoded || received >= layout.getDataFragments(stripe);
+    }
+
+    /**
+     * Get a fragment of the stripe, rebuilding it if it was not received
+     *
+     * @param chunkNo chunk number of the fragment
+     * @return data of the fragment, null if the stripe cannot be decoded
+     */
+    public synchronized byte[] getFragment(final int chunkNo) {
+        int index = layout.getCodeIndex(chunkNo);
+        if (fragments[index] == null) {
+            if (decoded || !layout.getCode(stripe).decode(fragments))
+                return null;
+            decoded = true;
+        }
+        return Arrays.copyOf(fragments[index], layout.getLength(chunkNo));
+    }
+
+    /**
+     * Get the stripe being decoded
+     *
+     * @return stripe being decoded
+     */
+    public int getStripe() {
+        return stripe;
+    }
+}
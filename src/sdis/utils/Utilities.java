@@ -2,11 +2,11 @@ package sdis.utils;
 
 import sdis.protocol.BackupProtocol;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
 
 /**
  * Utilities class
@@ -32,52 +32,128 @@ public class Utilities {
     }
 
     /**
-     * Extract the header of a message
+     * Concatenate a byte array with the contents of a buffer,
+     * copying the buffer only once
      *
-     * @param message message to be extract the header
-     * @return extracted header
+     * @param a first byte array
+     * @param b buffer with the second part
+     * @return concatenated byte array
      */
-    public static String[] extractHeader(final byte[] message) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(message);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+    public static byte[] concatBytes(byte[] a, ByteBuffer b) {
+        int aLen = a.length;
+        int bLen = b.remaining();
+
+        byte[] c = new byte[aLen + bLen];
+
+        System.arraycopy(a, 0, c, 0, aLen);
+        b.duplicate().get(c, aLen, bLen);
+
+        return c;
+    }
 
+    /**
+     * Get the SHA-256 hash of some data
+     *
+     * @param data data to hash
+     * @return SHA-256 hash of the data
+     */
+    public static byte[] sha256(ByteBuffer data) {
         try {
-            return reader.readLine().split(" ");
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
         }
     }
 
     /**
-     * Extract the body of a message
+     * Get the CRC32C checksum of some data
      *
-     * @param message message to get its body extracted
-     * @return extracted body
+     * @param data data to checksum
+     * @return CRC32C checksum of the data
      */
-    public static byte[] extractBody(final byte[] message, int length) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(message);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+    public static long crc32c(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
 
-        String line = null;
-        int headerLinesLengthSum = 0;
-        int numLines = 0;
+    /**
+     * Encode some bytes as lowercase hexadecimal digits
+     *
+     * @param data bytes to encode
+     * @return hexadecimal digits of the bytes
+     */
+    public static String toHex(byte[] data) {
+        StringBuilder hex = new StringBuilder(2 * data.length);
+        for (byte b : data)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
 
-        do {
-            try {
-                line = reader.readLine();
+    /**
+     * Decode hexadecimal digits into bytes
+     *
+     * @param hex hexadecimal digits
+     * @return decoded bytes, null if not valid hexadecimal digits
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0)
+            return null;
 
-                headerLinesLengthSum += line.length();
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0)
+                return null;
+            data[i] = (byte) ((high << 4) | low);
+        }
+        return data;
+    }
 
-                numLines++;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } while (line != null && !line.isEmpty());
+    /**
+     * Encode chunk numbers as a bitmap in hexadecimal, bit i being the chunk first + i
+     *
+     * @param chunks numbers of the chunks, from the first one
+     * @param first  number of the first chunk
+     * @return bitmap of the chunks in hexadecimal
+     */
+    public static String toBitmap(BitSet chunks, int first) {
+        return toHex(chunks.get(first, Math.max(first, chunks.length())).toByteArray());
+    }
 
-        int bodyStartIndex = headerLinesLengthSum + numLines * BackupProtocol.CRLF.getBytes().length;
+    /**
+     * Get the chunk numbers within a span
+     *
+     * @param chunks numbers of the chunks
+     * @param first  first number of the span
+     * @param span   length of the span
+     * @return numbers of the chunks from first to first + span, exclusive
+     */
+    public static BitSet span(BitSet chunks, int first, int span) {
+        BitSet numbers = chunks.get(0, first + span);
+        numbers.clear(0, first);
+        return numbers;
+    }
 
+    /**
+     * Decode chunk numbers from a bitmap in hexadecimal, bit i being the chunk first + i
+     *
+     * @param first  number of the first chunk
+     * @param bitmap bitmap of the chunks in hexadecimal
+     * @return numbers of the chunks, null if the bitmap is not valid or spans more than {@link BackupProtocol#MAX_BITMAP_SPAN}
+     */
+    public static BitSet fromBitmap(int first, String bitmap) {
+        byte[] bytes = bitmap != null ? fromHex(bitmap) : null;
+        if (bytes == null || bytes.length > BackupProtocol.MAX_BITMAP_SPAN / 8)
+            return null;
 
-        return Arrays.copyOfRange(message, bodyStartIndex, length);
+        BitSet relative = BitSet.valueOf(bytes);
+        BitSet chunks = new BitSet();
+        for (int i = relative.nextSetBit(0); i >= 0; i = relative.nextSetBit(i + 1))
+            chunks.set(first + i);
+        return chunks;
     }
 }